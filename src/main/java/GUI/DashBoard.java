@@ -1,7 +1,9 @@
 package GUI;
 
 import client.ClientConnection;
+import client.ClientPool;
 import exception.SecureConnectionException;
+import exception.SessionExpiredException;
 import utils.protocols.CommonProtocol;
 import utils.protocols.EmailProtocol;
 import utils.protocols.UserProtocol;
@@ -12,6 +14,7 @@ import java.io.IOException;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -36,7 +39,7 @@ public class DashBoard extends JFrame {
     private JLabel tickLabel;
     private JButton replyButton;
     private EmailDetails currentEmailDetails;
-    private ClientConnection connection;
+    private ClientPool pool;
 
     /**
      * Holds metadata for an email displayed in the list.
@@ -45,6 +48,7 @@ public class DashBoard extends JFrame {
         String id;
         String sender;
         String subject;
+        // Null until the body is fetched with GET_EMAIL
         String content;
         String timestamp;
         boolean viewed;
@@ -63,14 +67,15 @@ public class DashBoard extends JFrame {
      * Constructs the dashboard for the given user.
      * Sets up sidebar, search, email list, preview, and compose panel.
      * @param username the user's email address
+     * @param pool the pool of connections logged in as the user
      */
-    public DashBoard(String username,ClientConnection connection) {
+    public DashBoard(String username, ClientPool pool) {
         this.username = username;
         setTitle("Email Dashboard - " + username);
         setSize(1000, 650);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
-        this.connection = connection;
+        this.pool = pool;
 
         // Main layout: sidebar + main area
         JPanel mainPanel = new JPanel(new BorderLayout());
@@ -106,7 +111,6 @@ public class DashBoard extends JFrame {
         btnInbox.addActionListener(e -> {
             showingSent = false;
             refreshEmails(false);
-            updateFolderButtons();
         });
         sidebar.add(btnInbox);
         sidebar.add(Box.createVerticalStrut(10));
@@ -121,7 +125,6 @@ public class DashBoard extends JFrame {
         btnSent.addActionListener(e -> {
             showingSent = true;
             refreshEmails(true);
-            updateFolderButtons();
         });
         sidebar.add(btnSent);
         sidebar.add(Box.createVerticalStrut(30));
@@ -142,13 +145,16 @@ public class DashBoard extends JFrame {
         btnLogout.setBorder(BorderFactory.createEmptyBorder(8, 24, 8, 24));
         btnLogout.addActionListener(e -> {
             try {
-                this.connection.send(UserProtocol.LOGOUT);
-                String response = this.connection.receive();
+                // The server closes the connection after LOGOUT, so it is not given back to the pool
+                ClientConnection connection = pool.borrow();
+                connection.send(UserProtocol.LOGOUT);
+                String response = connection.receive();
                 System.out.println("Logout response: " + response);
-                this.connection.close();
+                pool.invalidate(connection);
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
+            pool.close();
             dispose(); // close UI
             new LoginRegistrationGUI();
         });
@@ -244,7 +250,6 @@ public class DashBoard extends JFrame {
         setVisible(true);
         showingSent = false;
         refreshEmails(false);
-        updateFolderButtons();
 
         // In the constructor, after searchButton is created:
         searchButton.addActionListener(e -> {
@@ -284,6 +289,9 @@ public class DashBoard extends JFrame {
             EmailDetails details = emailDetailsMap.get(index);
             currentEmailDetails = details;
             if (details != null) {
+                if (details.content == null) {
+                    loadContent(details);
+                }
                 // Format timestamp
                 String formattedTime = details.timestamp;
                 try {
@@ -295,7 +303,7 @@ public class DashBoard extends JFrame {
                         "From: " + details.sender + "\n" +
                         "To: " + username + "\n" +
                         "Date: " + formattedTime + "\n\n" +
-                        details.content);
+                        (details.content == null ? "" : details.content));
                 // Mark as viewed if in inbox and not already viewed
                 if (!showingSent) {
                     replyButton.setVisible(true);
@@ -314,6 +322,29 @@ public class DashBoard extends JFrame {
         }
     }
 
+    /**
+     * Fetch the body of an email from the server with GET_EMAIL.
+     * @param details email details, whose content is filled in
+     */
+    private void loadContent(EmailDetails details) {
+        try {
+            String response = pool.execute(EmailProtocol.GET_EMAIL + CommonProtocol.SEP + details.id);
+            // GET_EMAIL##SUCCESS##id##sender##recipient##subject##content##timestamp##viewed
+            String[] parts = response.split(CommonProtocol.SEP, -1);
+            if (parts.length == 9 && parts[1].equals(EmailProtocol.SUCCESS)) {
+                details.content = parts[6];
+            } else {
+                messageArea.setText("Failed to load email: " + response);
+            }
+        } catch (SessionExpiredException ex) {
+            returnToLogin();
+        } catch (IOException ex) {
+            messageArea.setText("Error connecting to server: " + ex.getMessage());
+        } catch (SecureConnectionException e) {
+            JOptionPane.showMessageDialog(this, "Unable to establish a secure connection to the server.","Security Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
     /**
      * Update the WhatsApp-style tick status for sent emails.
      * @param details email details
@@ -331,17 +362,24 @@ public class DashBoard extends JFrame {
      * @param emailId the email ID
      */
     private void markEmailAsViewed(String emailId) {
-        // Send MARKASVIEWED to server
+        // Send MARKASVIEWED to server, with COUNTS in the same round trip to update the unread badge
         try {
-            ClientConnection connection = new ClientConnection(CommonProtocol.HOSTNAME, CommonProtocol.PORT);
-            connection.send(EmailProtocol.MARK_AS_VIEWED + CommonProtocol.SEP + emailId);
-            connection.receive();
-            connection.close();
+            String userEmail = username;
+            if (!userEmail.contains("@voidmail.com")) {
+                userEmail = userEmail + "@voidmail.com";
+            }
+
+            List<String> responses = pool.pipeline(List.of(
+                    EmailProtocol.MARK_AS_VIEWED + CommonProtocol.SEP + emailId,
+                    EmailProtocol.COUNTS + CommonProtocol.SEP + userEmail));
+            updateFolderButtons(responses.get(1));
         } catch (Exception ignored) {}
     }
 
     /**
-     * Refresh the email list for Inbox or Sent.
+     * Refresh the email list for Inbox or Sent, and the folder counts in the sidebar.
+     * The first page of the folder and its COUNTS are requested together, pipelined on one pooled connection,
+     * so the other folder is never downloaded just to count it. Further pages are fetched with their cursor.
      * @param isSent true for Sent folder, false for Inbox
      */
     private void refreshEmails(boolean isSent) {
@@ -351,50 +389,37 @@ public class DashBoard extends JFrame {
                 userEmail = userEmail + "@voidmail.com";
             }
 
-            ClientConnection connection = new ClientConnection(CommonProtocol.HOSTNAME, CommonProtocol.PORT);
-            connection.send(EmailProtocol.GET_EMAILS + CommonProtocol.SEP + userEmail + CommonProtocol.SEP + (isSent ? "SENT" : "INBOX"));
-            String response = connection.receive();
-            connection.close();
-
-            if (response.startsWith(EmailProtocol.GET_EMAILS + CommonProtocol.SEP + EmailProtocol.SUCCESS)) {
-                String[] parts = response.split(CommonProtocol.SEP);
+            // Only headers and snippets are listed, a body is fetched when its email is opened
+            String request = EmailProtocol.GET_EMAILS + CommonProtocol.SEP + userEmail + CommonProtocol.SEP
+                    + (isSent ? "SENT" : "INBOX") + CommonProtocol.SEP + EmailProtocol.HEADERS;
+            List<String> responses = pool.pipeline(List.of(
+                    request,
+                    EmailProtocol.COUNTS + CommonProtocol.SEP + userEmail));
+            updateFolderButtons(responses.get(1));
+            String response = responses.get(0);
 
-                listModel.clear();
-                emailDetailsMap.clear();
-
-                if (parts.length > 2) {
-                    if (parts.length == 3 && parts[2].equals("NO_EMAILS")) {
-                        messageArea.setText("No emails found.");
-                        return;
-                    }
-
-                    for (int i = 2; i < parts.length; i += 6) {
-                        if (i + 5 < parts.length) {
-                            String id = parts[i];
-                            String sender = parts[i + 1];
-                            String subject = parts[i + 2];
-                            String content = parts[i + 3];
-                            String timestamp = parts[i + 4];
-                            boolean viewed = Boolean.parseBoolean(parts[i + 5]);
-
-                            int index = listModel.getSize();
-                            listModel.addElement(subject + " - From: " + sender);
-                            emailDetailsMap.put(index, new EmailDetails(id, sender, subject, content, timestamp, viewed));
-                        }
-                    }
-
-                    if (listModel.getSize() > 0) {
-                        emailList.setSelectedIndex(0);
-                    } else {
-                        messageArea.setText("No emails found.");
-                    }
-                } else {
-                    messageArea.setText("No emails found.");
+            listModel.clear();
+            emailDetailsMap.clear();
+            while (true) {
+                if (!response.startsWith(EmailProtocol.GET_EMAILS + CommonProtocol.SEP + EmailProtocol.SUCCESS)) {
+                    JOptionPane.showMessageDialog(this, "Failed to retrieve emails: " + response);
+                    messageArea.setText("Failed to retrieve emails: " + response);
+                    return;
                 }
+                String cursor = addEmailPage(response);
+                if (cursor == null) {
+                    break;
+                }
+                response = pool.execute(request + CommonProtocol.SEP + EmailProtocol.CURSOR + EmailProtocol.OPTION_SEP + cursor);
+            }
+
+            if (listModel.getSize() > 0) {
+                emailList.setSelectedIndex(0);
             } else {
-                JOptionPane.showMessageDialog(this, "Failed to retrieve emails: " + response);
-                messageArea.setText("Failed to retrieve emails: " + response);
+                messageArea.setText("No emails found.");
             }
+        } catch (SessionExpiredException ex) {
+            returnToLogin();
         } catch (IOException ex) {
             ex.printStackTrace();
             JOptionPane.showMessageDialog(this, "Error connecting to server: " + ex.getMessage());
@@ -404,6 +429,39 @@ public class DashBoard extends JFrame {
         }
     }
 
+    /**
+     * Add one page of a header-only GETEMAILS response to the email list.
+     * @param response the GETEMAILS response
+     * @return the cursor of the next page, or null if this was the last page
+     */
+    private String addEmailPage(String response) {
+        String[] parts = response.split(CommonProtocol.SEP);
+        if (parts.length == 3 && parts[2].equals(EmailProtocol.NO_EMAILS)) {
+            return null;
+        }
+
+        // ID, sender, subject, timestamp, viewed, size, snippet
+        for (int i = 2; i < parts.length; i += 7) {
+            if (i + 6 < parts.length) {
+                String id = parts[i];
+                String sender = parts[i + 1];
+                String subject = parts[i + 2];
+                String timestamp = parts[i + 3];
+                boolean viewed = Boolean.parseBoolean(parts[i + 4]);
+                String snippet = parts[i + 6];
+
+                int index = listModel.getSize();
+                listModel.addElement(subject + " - From: " + sender + (snippet.isEmpty() ? "" : " - " + snippet));
+                emailDetailsMap.put(index, new EmailDetails(id, sender, subject, null, timestamp, viewed));
+            }
+        }
+
+        // A page that is not the last ends with CURSOR=c
+        String last = parts[parts.length - 1];
+        String cursorPrefix = EmailProtocol.CURSOR + EmailProtocol.OPTION_SEP;
+        return last.startsWith(cursorPrefix) ? last.substring(cursorPrefix.length()) : null;
+    }
+
     /**
      * Show the compose panel for a new message.
      */
@@ -511,14 +569,11 @@ public class DashBoard extends JFrame {
                 sender = sender + "@voidmail.com";
             }
             try {
-                ClientConnection connection = new ClientConnection(CommonProtocol.HOSTNAME, CommonProtocol.PORT);
-                connection.send(EmailProtocol.SEND_EMAIL + CommonProtocol.SEP +
+                String response = pool.execute(EmailProtocol.SEND_EMAIL + CommonProtocol.SEP +
                         sender + CommonProtocol.SEP +
                         to + CommonProtocol.SEP +
                         subject + CommonProtocol.SEP +
                         message);
-                String response = connection.receive();
-                connection.close();
                 if (response.startsWith(EmailProtocol.SEND_EMAIL + CommonProtocol.SEP + EmailProtocol.SUCCESS)) {
                     JOptionPane.showMessageDialog(this, "Email sent successfully!", "Success", JOptionPane.INFORMATION_MESSAGE);
                     hideComposePanel();
@@ -529,6 +584,8 @@ public class DashBoard extends JFrame {
                 } else {
                     JOptionPane.showMessageDialog(this, "Failed to send email: " + response, "Error", JOptionPane.ERROR_MESSAGE);
                 }
+            } catch (SessionExpiredException ex) {
+                returnToLogin();
             } catch (IOException ex) {
                 ex.printStackTrace();
                 JOptionPane.showMessageDialog(this, "Error connecting to server: " + ex.getMessage(), "Connection Error", JOptionPane.ERROR_MESSAGE);
@@ -560,50 +617,23 @@ public class DashBoard extends JFrame {
 
     /**
      * Update the Inbox and Sent counts in the sidebar.
+     * @param countsResponse the COUNTS response, COUNTS##SUCCESS##inboxTotal##inboxUnread##sentTotal
      */
-    private void updateFolderButtons() {
-        // Always count all inbox and sent emails, regardless of current folder
-        int inbox = 0, sent = 0;
+    private void updateFolderButtons(String countsResponse) {
+        String[] parts = countsResponse.split(CommonProtocol.SEP);
+        if (parts.length != 5 || !parts[1].equals(EmailProtocol.SUCCESS)) {
+            return;
+        }
         try {
-            String userEmail = username;
-            if (!userEmail.contains("@voidmail.com")) {
-                userEmail = userEmail + "@voidmail.com";
-            }
-            // Count inbox
-            ClientConnection connectionInbox = new ClientConnection(CommonProtocol.HOSTNAME, CommonProtocol.PORT);
-            connectionInbox.send(EmailProtocol.GET_EMAILS + CommonProtocol.SEP + userEmail + CommonProtocol.SEP + "INBOX");
-            String responseInbox = connectionInbox.receive();
-            connectionInbox.close();
-            if (responseInbox.startsWith(EmailProtocol.GET_EMAILS + CommonProtocol.SEP + EmailProtocol.SUCCESS)) {
-                String[] parts = responseInbox.split(CommonProtocol.SEP);
-                if (parts.length > 2 && !(parts.length == 3 && parts[2].equals("NO_EMAILS"))) {
-                    for (int i = 2; i < parts.length; i += 6) {
-                        if (i + 5 < parts.length) inbox++;
-                    }
-                }
-            }
-            // Count sent
-            ClientConnection connectionSent = new ClientConnection(CommonProtocol.HOSTNAME, CommonProtocol.PORT);
-            connectionSent.send(EmailProtocol.GET_EMAILS + CommonProtocol.SEP + userEmail + CommonProtocol.SEP + "SENT");
-            String responseSent = connectionSent.receive();
-            connectionSent.close();
-            if (responseSent.startsWith(EmailProtocol.GET_EMAILS + CommonProtocol.SEP + EmailProtocol.SUCCESS)) {
-                String[] parts = responseSent.split(CommonProtocol.SEP);
-                if (parts.length > 2 && !(parts.length == 3 && parts[2].equals("NO_EMAILS"))) {
-                    for (int i = 2; i < parts.length; i += 6) {
-                        if (i + 5 < parts.length) sent++;
-                    }
-                }
-            }
-        } catch (Exception e) {
-            // If error, fallback to current folder count
-            inbox = 0; sent = 0;
-            for (EmailDetails details : emailDetailsMap.values()) {
-                if (showingSent) sent++; else inbox++;
-            }
+            inboxCount = Integer.parseInt(parts[2]);
+            int unreadCount = Integer.parseInt(parts[3]);
+            sentCount = Integer.parseInt(parts[4]);
+            String unread = unreadCount > 0 ? ", " + unreadCount + " unread" : "";
+            btnInbox.setText("\uD83D\uDCE5  Inbox (" + inboxCount + unread + ")");
+            btnSent.setText("\uD83D\uDCE4  Sent (" + sentCount + ")");
+        } catch (NumberFormatException ignored) {
+            // Keep the previous counts
         }
-        btnInbox.setText("\uD83D\uDCE5  Inbox (" + inbox + ")");
-        btnSent.setText("\uD83D\uDCE4  Sent (" + sent + ")");
     }
 
     /**
@@ -639,18 +669,14 @@ public class DashBoard extends JFrame {
             if (!userEmail.contains("@voidmail.com")) {
                 userEmail = userEmail + "@voidmail.com";
             }
-            // Search Inbox (received)
+            // Search Inbox (received) and Sent pipelined on one pooled connection
             String commandInbox = EmailProtocol.SEARCH_RECEIVED;
-            ClientConnection connectionInbox = new ClientConnection(CommonProtocol.HOSTNAME, CommonProtocol.PORT);
-            connectionInbox.send(commandInbox + CommonProtocol.SEP + userEmail + CommonProtocol.SEP + query);
-            String responseInbox = connectionInbox.receive();
-            connectionInbox.close();
-            // Search Sent
             String commandSent = EmailProtocol.SEARCH_SENT;
-            ClientConnection connectionSent = new ClientConnection(CommonProtocol.HOSTNAME, CommonProtocol.PORT);
-            connectionSent.send(commandSent + CommonProtocol.SEP + userEmail + CommonProtocol.SEP + query);
-            String responseSent = connectionSent.receive();
-            connectionSent.close();
+            List<String> responses = pool.pipeline(List.of(
+                    commandInbox + CommonProtocol.SEP + userEmail + CommonProtocol.SEP + query,
+                    commandSent + CommonProtocol.SEP + userEmail + CommonProtocol.SEP + query));
+            String responseInbox = responses.get(0);
+            String responseSent = responses.get(1);
 
             // DEBUG: Print the raw responses
             System.out.println("[DEBUG] Search Inbox response: " + responseInbox);
@@ -673,7 +699,7 @@ public class DashBoard extends JFrame {
                             boolean viewed = Boolean.parseBoolean(parts[i + 4]);
                             String label = subject + " - From: " + sender;
                             listModel.addElement(label);
-                            emailDetailsMap.put(index++, new EmailDetails(id, sender, subject, "", timestamp, viewed));
+                            emailDetailsMap.put(index++, new EmailDetails(id, sender, subject, null, timestamp, viewed));
                         }
                     }
                 }
@@ -692,7 +718,7 @@ public class DashBoard extends JFrame {
                             boolean viewed = Boolean.parseBoolean(parts[i + 4]);
                             String label = subject + " - To: " + recipient;
                             listModel.addElement(label);
-                            emailDetailsMap.put(index++, new EmailDetails(id, recipient, subject, "", timestamp, viewed));
+                            emailDetailsMap.put(index++, new EmailDetails(id, recipient, subject, null, timestamp, viewed));
                         }
                     }
                 }
@@ -702,6 +728,8 @@ public class DashBoard extends JFrame {
             } else {
                 messageArea.setText("No emails found.");
             }
+        } catch (SessionExpiredException ex) {
+            returnToLogin();
         } catch (IOException ex) {
             ex.printStackTrace();
             JOptionPane.showMessageDialog(this, "Error connecting to server: " + ex.getMessage());
@@ -710,4 +738,15 @@ public class DashBoard extends JFrame {
             JOptionPane.showMessageDialog(this, "Unable to establish a secure connection to the server.","Security Error", JOptionPane.ERROR_MESSAGE);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Closes the dashboard and shows the login window, when the session ended and a new connection
+     * could not be logged in. The password is not kept, so the user has to enter it again.
+     */
+    private void returnToLogin() {
+        JOptionPane.showMessageDialog(this, "Your session has ended, please log in again.", "Session Ended", JOptionPane.WARNING_MESSAGE);
+        pool.close();
+        dispose();
+        new LoginRegistrationGUI();
+    }
+}
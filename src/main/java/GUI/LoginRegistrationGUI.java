@@ -1,6 +1,7 @@
 package GUI;
 
 import client.ClientConnection;
+import client.ClientPool;
 import exception.SecureConnectionException;
 import model.User;
 import utils.validators.UserValidator;
@@ -231,17 +232,22 @@ public class LoginRegistrationGUI extends JFrame {
             // No need to use UserValidator here, server handles login validation
 
             try {
-                ClientConnection connection = new ClientConnection(CommonProtocol.HOSTNAME, CommonProtocol.PORT); // Use CommonProtocol constants ideally
-                connection.send(UserProtocol.LOGIN + CommonProtocol.SEP + email + CommonProtocol.SEP + password); 
-                String response = connection.receive();
-                connection.close();
-
-                if (response.equals("LOGIN##SUCCESS")) { // Use UserProtocol constants ideally
+                String loginRequest = UserProtocol.LOGIN + CommonProtocol.SEP + email + CommonProtocol.SEP + password;
+                ClientPool pool = new ClientPool(CommonProtocol.HOSTNAME, CommonProtocol.PORT, ClientPool.DEFAULT_MAX_SIZE);
+                String response = pool.execute(loginRequest);
+
+                // LOGIN##SUCCESS##token
+                String[] parts = response.split(CommonProtocol.SEP);
+                if (parts.length == 3 && parts[0].equals(UserProtocol.LOGIN) && parts[1].equals(UserProtocol.SUCCESS)) {
+                    // Every further connection opened by the pool is logged in with the session token.
+                    // Once the session has ended the user logs in again
+                    pool.setInitializer(ClientPool.resumeSession(parts[2]));
                     JOptionPane.showMessageDialog(this, "Login successful!");
                     dispose(); // Close login window
-                    // Pass the validated email (username) to the dashboard
-                    new DashBoard(email,connection); // Open dashboard window
+                    // Pass the validated email (username) and the logged in pool to the dashboard
+                    new DashBoard(email, pool); // Open dashboard window
                 } else {
+                    pool.close();
                     // Provide more specific feedback if possible based on server response
                     JOptionPane.showMessageDialog(this, "Login failed: " + response, "Login Error", JOptionPane.ERROR_MESSAGE);
                 }
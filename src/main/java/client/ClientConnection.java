@@ -1,13 +1,19 @@
 package client;
 
 import exception.SecureConnectionException;
+import utils.SSLUtils;
+import utils.TCPConnection;
+import utils.protocols.CommonProtocol;
+import utils.protocols.EmailProtocol;
+import utils.protocols.Message;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
 import java.io.*;
-import java.security.KeyStore;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * ClientConnection class that provides methods to establish a connection to a server,
@@ -16,9 +22,10 @@ import java.security.KeyStore;
  * It uses a keystore to manage the server's public key.
  */
 public class ClientConnection {
-    private SSLSocket socket;
-    private BufferedReader in;
-    private PrintWriter out;
+    private final Socket socket;
+    private final TCPConnection connection;
+    // Set by ClientPool when the connection is given back
+    private long lastUsed = System.currentTimeMillis();
 
     /**
      * Establishes a secure SSL connection to the server.
@@ -29,35 +36,38 @@ public class ClientConnection {
      */
     public ClientConnection(String host, int port) throws SecureConnectionException{
         try {
-            char[] password = "aloysirin".toCharArray(); // Replace as needed
-            KeyStore trustStore = KeyStore.getInstance("JKS");
-            trustStore.load(new FileInputStream("serverkeystore.jks"), password);
-
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-            tmf.init(trustStore);
-
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(null, tmf.getTrustManagers(), null);
-
+            // The shared context keeps the TLS session, so reconnecting resumes it with an abbreviated handshake
+            SSLContext sslContext = SSLUtils.getClientContext();
             SSLSocketFactory factory = sslContext.getSocketFactory();
             socket = (SSLSocket) factory.createSocket(host, port);
 
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out = new PrintWriter(socket.getOutputStream(), true);
+            connection = new TCPConnection(socket);
 
         } catch (Exception e) {
             throw new SecureConnectionException("Failed to establish secure connection to server", e);
         }
     }
 
+    /**
+     * Uses an already connected socket, e.g. a plain one to a test server.
+     *
+     * @param socket The connected socket
+     * @throws IOException if the socket streams cannot be opened
+     */
+    ClientConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.connection = new TCPConnection(socket);
+    }
+
 
     /**
      * Sends a message to the server.
      *
      * @param message The message to send
+     * @throws IOException If an I/O error occurs when sending the message
      */
-    public void send(String message) {
-        out.println(message);
+    public void send(String message) throws IOException {
+        connection.sendMessage(message);
     }
 
     /**
@@ -67,7 +77,121 @@ public class ClientConnection {
      * @throws IOException If an I/O error occurs when reading the message
      */
     public String receive() throws IOException {
-        return in.readLine();
+        return connection.readMessage();
+    }
+
+    /**
+     * Sends several requests in one go and reads their responses in order.
+     * All requests are written before a single flush, so they share network round trips and TLS records.
+     * A LOGOUT request ends the connection, so it should only appear last.
+     *
+     * @param requests The requests to send
+     * @return The responses, in the same order as the requests
+     * @throws IOException If an I/O error occurs or the server closes the connection early
+     */
+    public List<String> pipeline(List<String> requests) throws IOException {
+        for (String request : requests) {
+            connection.writeMessage(request);
+        }
+        connection.flush();
+
+        List<String> responses = new ArrayList<>(requests.size());
+        for (int i = 0; i < requests.size(); i++) {
+            String response = connection.readMessage();
+            if (response == null) {
+                throw new EOFException("Server closed the connection after " + i + " of " + requests.size() + " responses");
+            }
+            responses.add(response);
+        }
+        return responses;
+    }
+
+    /**
+     * Sends several requests as one BATCH request and splits the combined response.
+     * In the text protocol the requests are escaped and the responses unescaped, so they may contain CommonProtocol.BATCH_SEP.
+     *
+     * @param requests The requests to run, at most CommonProtocol.MAX_BATCH_SIZE
+     * @return The response of every request in order, or the BATCH response itself if the batch was rejected
+     * @throws IOException If an I/O error occurs when sending the batch
+     */
+    public List<String> batch(List<String> requests) throws IOException {
+        List<String> escaped = new ArrayList<>(requests.size());
+        for (String request : requests) {
+            escaped.add(Message.escapeBatchPart(request));
+        }
+        send(EmailProtocol.BATCH + CommonProtocol.SEP + String.join(CommonProtocol.BATCH_SEP, escaped));
+        String response = receive();
+        if (response == null) {
+            throw new EOFException("Server closed the connection");
+        }
+
+        String successPrefix = EmailProtocol.BATCH + CommonProtocol.SEP + EmailProtocol.SUCCESS + CommonProtocol.SEP;
+        if (!response.startsWith(successPrefix)) {
+            return List.of(response);
+        }
+        return Message.splitBatch(response.substring(successPrefix.length()));
+    }
+
+    /**
+     * Switches this connection to the v2 binary framing protocol.
+     * After this call, requests must be sent with sendMessage and read with receiveMessage.
+     *
+     * @throws IOException If the server does not accept the binary protocol
+     */
+    public void useBinaryProtocol() throws IOException {
+        connection.requestBinaryProtocol();
+    }
+
+    /**
+     * Sends a request to the server as a v2 binary frame.
+     *
+     * @param message The request to send
+     * @throws IOException If an I/O error occurs when sending the request
+     */
+    public void sendMessage(Message message) throws IOException {
+        connection.writeFrame(message);
+        connection.flush();
+    }
+
+    /**
+     * Receives a v2 binary frame from the server.
+     *
+     * @return The received response, or null if the server closed the connection
+     * @throws IOException If an I/O error occurs or the frame is malformed
+     */
+    public Message receiveMessage() throws IOException {
+        return connection.readFrame();
+    }
+
+    /**
+     * Checks that the server still answers on this connection.
+     *
+     * @return true if the server answered PING with PONG
+     */
+    public boolean ping() {
+        try {
+            send(CommonProtocol.PING);
+            return CommonProtocol.PONG.equals(receive());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the socket is still open on this side.
+     *
+     * @return true if the connection has not been closed
+     */
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void setLastUsed(long lastUsed) {
+        this.lastUsed = lastUsed;
     }
 
     /**
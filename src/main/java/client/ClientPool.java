@@ -0,0 +1,289 @@
+package client;
+
+import exception.SecureConnectionException;
+import exception.SessionExpiredException;
+import utils.protocols.CommonProtocol;
+import utils.protocols.UserProtocol;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ClientPool keeps a small set of open ClientConnections to one server and hands them out to callers,
+ * so a request costs one round trip instead of a TCP connect and a TLS handshake.
+ * It is thread-safe. Connections that were idle for a while are checked with PING before being reused,
+ * and connections idle for too long are closed.
+ * An optional initializer runs on every new connection, e.g. to log it in.
+ */
+public class ClientPool implements Closeable {
+    public static final int DEFAULT_MAX_SIZE = 4;
+
+    // A connection idle longer than this is checked with PING before it is handed out
+    private static final long VALIDATE_AFTER_MILLIS = 10_000;
+    // A connection idle longer than this is closed instead of being reused
+    private static final long MAX_IDLE_MILLIS = 5 * 60_000;
+    // How long borrow waits for a connection when all of them are in use
+    private static final long BORROW_TIMEOUT_MILLIS = 30_000;
+
+    /**
+     * Runs on every new connection before it is handed out for the first time.
+     */
+    public interface ConnectionInitializer {
+        void initialize(ClientConnection connection) throws IOException;
+    }
+
+    /**
+     * Opens a new connection to the server.
+     */
+    interface ConnectionFactory {
+        ClientConnection open() throws IOException, SecureConnectionException;
+    }
+
+    /**
+     * A unit of work run on a borrowed connection.
+     *
+     * @param <T> The result type
+     */
+    public interface ConnectionCall<T> {
+        T call(ClientConnection connection) throws IOException;
+    }
+
+    private final ConnectionFactory factory;
+    private final Clock clock;
+    private final Semaphore permits;
+
+    // Guarded by this, most recently used connection first
+    private final Deque<ClientConnection> idle = new ArrayDeque<>();
+    private boolean closed = false;
+
+    private volatile ConnectionInitializer initializer;
+
+    /**
+     * Creates an empty pool. Connections are opened when they are first needed.
+     *
+     * @param host    The server host
+     * @param port    The server port
+     * @param maxSize The largest number of connections open at the same time
+     */
+    public ClientPool(String host, int port, int maxSize) {
+        this(() -> new ClientConnection(host, port), maxSize, Clock.systemUTC());
+    }
+
+    /**
+     * Creates an empty pool that opens its connections with a factory and reads idle times from a clock.
+     *
+     * @param factory The factory opening new connections
+     * @param maxSize The largest number of connections open at the same time
+     * @param clock   The clock idle times are measured with
+     */
+    ClientPool(ConnectionFactory factory, int maxSize, Clock clock) {
+        this.factory = factory;
+        this.clock = clock;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Creates an initializer that logs every new connection in with the token of a session, using RESUME,
+     * so the password is neither kept nor hashed again for each connection.
+     *
+     * @param sessionToken The token returned by LOGIN
+     * @return The initializer
+     */
+    public static ConnectionInitializer resumeSession(String sessionToken) {
+        String resumeRequest = UserProtocol.RESUME + CommonProtocol.SEP + sessionToken;
+        return connection -> {
+            connection.send(resumeRequest);
+            String resumed = connection.receive();
+            if (resumed == null) {
+                throw new IOException("Server closed the connection");
+            }
+            if (!resumed.startsWith(UserProtocol.RESUME + CommonProtocol.SEP + UserProtocol.SUCCESS)) {
+                throw new SessionExpiredException("Could not resume the session: " + resumed);
+            }
+        };
+    }
+
+    /**
+     * Sets the initializer run on every connection opened from now on.
+     *
+     * @param initializer The initializer, or null for none
+     */
+    public void setInitializer(ConnectionInitializer initializer) {
+        this.initializer = initializer;
+    }
+
+    /**
+     * Borrows a connection, reusing an idle one if possible.
+     * The connection must be given back with release, or with invalidate if it can no longer be used.
+     *
+     * @return An open connection
+     * @throws IOException               If no connection became available in time or the initializer failed
+     * @throws SecureConnectionException If a new connection could not be established
+     */
+    public ClientConnection borrow() throws IOException, SecureConnectionException {
+        try {
+            if (!permits.tryAcquire(BORROW_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("No connection available after " + BORROW_TIMEOUT_MILLIS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+
+        try {
+            ClientConnection connection;
+            while ((connection = pollIdle()) != null) {
+                if (isHealthy(connection)) {
+                    return connection;
+                }
+                closeQuietly(connection);
+            }
+            return open();
+        } catch (IOException | SecureConnectionException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Gives a borrowed connection back to the pool.
+     *
+     * @param connection The connection to give back
+     */
+    public void release(ClientConnection connection) {
+        connection.setLastUsed(clock.millis());
+        boolean keep;
+        synchronized (this) {
+            keep = !closed && connection.isOpen();
+            if (keep) {
+                idle.addFirst(connection);
+            }
+        }
+        if (!keep) {
+            closeQuietly(connection);
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes a borrowed connection that can no longer be used, e.g. after an I/O error or a LOGOUT.
+     *
+     * @param connection The connection to discard
+     */
+    public void invalidate(ClientConnection connection) {
+        closeQuietly(connection);
+        permits.release();
+    }
+
+    /**
+     * Runs a call on a borrowed connection and gives the connection back afterwards.
+     * If the call fails with an I/O error the connection is discarded.
+     *
+     * @param call The work to run
+     * @param <T>  The result type
+     * @return The result of the call
+     * @throws IOException               If the call fails
+     * @throws SecureConnectionException If a new connection could not be established
+     */
+    public <T> T execute(ConnectionCall<T> call) throws IOException, SecureConnectionException {
+        ClientConnection connection = borrow();
+        try {
+            T result = call.call(connection);
+            release(connection);
+            return result;
+        } catch (IOException | RuntimeException e) {
+            invalidate(connection);
+            throw e;
+        }
+    }
+
+    /**
+     * Sends one request and returns its response.
+     *
+     * @param request The request to send
+     * @return The response from the server
+     * @throws IOException               If an I/O error occurs or the server closed the connection
+     * @throws SecureConnectionException If a new connection could not be established
+     */
+    public String execute(String request) throws IOException, SecureConnectionException {
+        return execute(connection -> {
+            connection.send(request);
+            String response = connection.receive();
+            if (response == null) {
+                throw new IOException("Server closed the connection");
+            }
+            return response;
+        });
+    }
+
+    /**
+     * Sends several requests pipelined on one connection and returns their responses in order.
+     *
+     * @param requests The requests to send
+     * @return The responses, in the same order as the requests
+     * @throws IOException               If an I/O error occurs
+     * @throws SecureConnectionException If a new connection could not be established
+     */
+    public List<String> pipeline(List<String> requests) throws IOException, SecureConnectionException {
+        return execute(connection -> connection.pipeline(requests));
+    }
+
+    /**
+     * Closes the pool and every idle connection.
+     * Borrowed connections are closed when they are released.
+     */
+    @Override
+    public void close() {
+        List<ClientConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = List.copyOf(idle);
+            idle.clear();
+        }
+        toClose.forEach(ClientPool::closeQuietly);
+    }
+
+    private synchronized ClientConnection pollIdle() throws IOException {
+        if (closed) {
+            throw new IOException("Client pool is closed");
+        }
+        return idle.pollFirst();
+    }
+
+    private ClientConnection open() throws IOException, SecureConnectionException {
+        ClientConnection connection = factory.open();
+        ConnectionInitializer init = initializer;
+        if (init != null) {
+            try {
+                init.initialize(connection);
+            } catch (IOException | RuntimeException e) {
+                closeQuietly(connection);
+                throw e;
+            }
+        }
+        return connection;
+    }
+
+    private boolean isHealthy(ClientConnection connection) {
+        long idleMillis = clock.millis() - connection.getLastUsed();
+        if (!connection.isOpen() || idleMillis > MAX_IDLE_MILLIS) {
+            return false;
+        }
+        return idleMillis < VALIDATE_AFTER_MILLIS || connection.ping();
+    }
+
+    private static void closeQuietly(ClientConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+            // Nothing else to do with a connection that is being thrown away
+        }
+    }
+}
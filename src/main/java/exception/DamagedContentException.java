@@ -0,0 +1,11 @@
+package exception;
+
+/**
+ * Thrown when the saved content of an email does not match the checksum it was saved with,
+ * e.g. because the server stopped before the content reached the disk.
+ */
+public class DamagedContentException extends RuntimeException {
+    public DamagedContentException(String message) {
+        super(message);
+    }
+}
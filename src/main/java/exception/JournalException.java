@@ -0,0 +1,10 @@
+package exception;
+
+/**
+ * Thrown when a change could not be written to the journal, so it would not survive a crash.
+ */
+public class JournalException extends RuntimeException {
+    public JournalException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,11 @@
+package exception;
+
+/**
+ * Thrown when a request is refused straight away because the server is already doing as much of that work as it can,
+ * so the client can try again later instead of waiting.
+ */
+public class ServerBusyException extends RuntimeException {
+    public ServerBusyException(String message) {
+        super(message);
+    }
+}
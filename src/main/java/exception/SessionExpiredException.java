@@ -0,0 +1,12 @@
+package exception;
+
+import java.io.IOException;
+
+/**
+ * Thrown by the client when the server no longer knows its session, so the user has to log in again.
+ */
+public class SessionExpiredException extends IOException {
+    public SessionExpiredException(String message) {
+        super(message);
+    }
+}
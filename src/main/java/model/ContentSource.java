@@ -0,0 +1,22 @@
+package model;
+
+/**
+ * ContentSource reads the content of an email that is not kept on the heap, e.g. from a memory-mapped file.
+ * It must be thread-safe, since any client thread can read an email.
+ */
+public interface ContentSource {
+
+    /**
+     * Reads the content.
+     *
+     * @return The content of the email
+     */
+    String load();
+
+    /**
+     * Gets the size of the content without reading it.
+     *
+     * @return The content size in UTF-8 bytes
+     */
+    int size();
+}
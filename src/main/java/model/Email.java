@@ -2,6 +2,8 @@ package model;
 
 import lombok.*;
 import jakarta.validation.constraints.*;
+
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 
 @Getter
@@ -11,6 +13,8 @@ import java.time.LocalDateTime;
 @Builder
 @ToString
 public class Email {
+    // Length of the content preview sent in header-only listings
+    public static final int SNIPPET_LENGTH = 100;
 
     @NotBlank(message = "Email ID cannot be blank")
     @Pattern(regexp = "^[a-fA-F0-9]{64}$", message = "Email ID must be a valid SHA-256 hash")
@@ -26,11 +30,121 @@ public class Email {
     @Size(max = 255, message = "Subject must be less than 255 characters")
     private String subject;
 
+    // Null once the content has been moved to the content source, see moveContentTo
     @NotBlank(message = "Content cannot be blank")
-    private String content;
+    private volatile String content;
 
     @NotNull(message = "Timestamp cannot be null")
     private LocalDateTime timestamp;
 
     private boolean viewed;
+
+    // Derived from content on first use and kept until the content changes, never saved to file
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient String snippet;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient Integer size;
+
+    // Where the content is read from when it is not kept on the heap, never saved to file
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient volatile ContentSource contentSource;
+
+    /**
+     * Gets the content, reading it from the content source if it is not kept on the heap.
+     *
+     * @return The content
+     */
+    public String getContent() {
+        // Read before the source: moveContentTo sets the source before it drops the content
+        String cached = content;
+        if (cached != null) {
+            return cached;
+        }
+        ContentSource source = contentSource;
+        return source == null ? null : source.load();
+    }
+
+    /**
+     * Sets the content and drops the snippet and size derived from the old content.
+     *
+     * @param content The new content
+     */
+    public void setContent(String content) {
+        this.content = content;
+        this.contentSource = null;
+        this.snippet = null;
+        this.size = null;
+    }
+
+    /**
+     * Drops the content from the heap. From now on it is read from the source whenever it is needed.
+     *
+     * @param source Reads the same content as the email has now
+     */
+    public void moveContentTo(ContentSource source) {
+        this.contentSource = source;
+        this.content = null;
+    }
+
+    /**
+     * Records where the content is saved, but keeps it on the heap until moveContentTo is called,
+     * e.g. for a recent email that is likely to be read again soon.
+     *
+     * @param source Reads the same content as the email has now
+     */
+    public void keepContentWith(ContentSource source) {
+        this.contentSource = source;
+    }
+
+    /**
+     * Gets the source the content is read from.
+     *
+     * @return The content source, or null if the content is only kept on the heap
+     */
+    public ContentSource getContentSource() {
+        return contentSource;
+    }
+
+    /**
+     * Gets a one line preview of the content: whitespace collapsed and cut to SNIPPET_LENGTH characters.
+     *
+     * @return The snippet, or an empty string if there is no content
+     */
+    public String getSnippet() {
+        String cached = snippet;
+        if (cached == null) {
+            String text = getContent();
+            text = text == null ? "" : text.strip().replaceAll("\\s+", " ");
+            cached = text.length() > SNIPPET_LENGTH ? text.substring(0, SNIPPET_LENGTH) + "..." : text;
+            snippet = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * Gets the size of the content in UTF-8 bytes.
+     *
+     * @return The content size
+     */
+    public int getSize() {
+        Integer cached = size;
+        if (cached == null) {
+            String text = content;
+            ContentSource source = contentSource;
+            if (text != null) {
+                cached = text.getBytes(StandardCharsets.UTF_8).length;
+            } else {
+                cached = source == null ? 0 : source.size();
+            }
+            size = cached;
+        }
+        return cached;
+    }
 }
\ No newline at end of file
@@ -3,29 +3,58 @@ package model;
 import exception.EmailNotFoundException;
 import exception.UserNotFoundException;
 import lombok.extern.slf4j.Slf4j;
+import utils.storage.ChangeTracker;
+import utils.storage.Journal;
+import utils.storage.JournalRecord;
+import utils.storage.MailboxPager;
 import utils.validators.EmailValidator;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * EmailManager class to manage email operations.
  * It uses a ConcurrentHashMap to store email data for thread safety.
+ * Every user also has an inbox and a sent folder index, so listing a folder only touches that user's emails.
+ * If the server starts without loading all emails, a user's mailbox is loaded the first time they log in or get mail.
  */
 @Slf4j
 public class EmailManager implements EmailManagerInterface {
 
-    // ConcurrentHashMap to store email data for thread safety
-    private static final Map<String, Email> emails = new ConcurrentHashMap<>();
+    // ConcurrentHashMap to store email data for thread safety, replaced as a whole when data is loaded
+    private static volatile Map<String, Email> emails = new ConcurrentHashMap<>();
     private static final Map<String, User> users = new ConcurrentHashMap<>();
 
+    // Per-user indexes over the emails map, keyed by recipient and by sender
+    private static final Map<String, Mailbox> inboxes = new ConcurrentHashMap<>();
+    private static final Map<String, Mailbox> sentFolders = new ConcurrentHashMap<>();
+
+    // Per-user full text indexes over sent and received emails, built on first search or loaded from file
+    private static final Map<String, SearchIndex> searchIndexes = new ConcurrentHashMap<>();
+
+    // Sending and reading take the read lock, replacing all emails takes the write lock,
+    // so nobody sees the indexes half rebuilt
+    private static final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    // Every change is appended here before it is applied, null while the server is not running
+    private static volatile Journal journal;
+    // IDs of the emails sent or viewed since they were last saved
+    private static final ChangeTracker changes = new ChangeTracker();
+    // Loads the mailboxes left out at startup, null if all emails were loaded
+    private static volatile MailboxPager pager;
+
     /**
      * Sends an email from one user to another.
      * 
@@ -35,6 +64,7 @@ public class EmailManager implements EmailManagerInterface {
      * @param content The content of the email
      * @return The ID of the sent email
      * @throws UserNotFoundException if the sender or recipient does not exist
+     * @throws exception.JournalException if the email could not be journaled
      */
     public String sendEmail(String sender, String recipient, String subject, String content)
             throws UserNotFoundException {
@@ -51,6 +81,9 @@ public class EmailManager implements EmailManagerInterface {
             }
         }
         
+        loadMailbox(sender);
+        loadMailbox(recipient);
+
         String emailId = generateEmailId(sender, recipient, subject, content);
         Email email = Email.builder()
                 .id(emailId)
@@ -64,41 +97,160 @@ public class EmailManager implements EmailManagerInterface {
 
         EmailValidator.validate(email);
 
-        emails.put(emailId, email);
+        journalThenApply(JournalRecord.emailSent(email), () -> {
+            indexLock.readLock().lock();
+            try {
+                emails.put(emailId, email);
+                addToIndexes(email);
+            } finally {
+                indexLock.readLock().unlock();
+            }
+            changes.markChanged(emailId);
+        });
         log.info("Email sent successfully from {} to {}: {}", sender, recipient, subject);
         return emailId;
     }
     
     /**
-     * Retrieves all emails received by a user.
+     * Retrieves all emails received by a user, newest first.
      * 
      * @param userEmail The email address of the user
      * @return A list of emails received by the user
      */
     public List<Email> getReceivedEmails(String userEmail) {
-        List<Email> receivedEmails = emails.values().stream()
-                .filter(email -> email.getRecipient().equals(userEmail))
-                .collect(Collectors.toList());
+        List<Email> receivedEmails = listMailbox(inboxes, userEmail);
 
         log.info("Retrieved {} received emails for user: {}", receivedEmails.size(), userEmail);
         return receivedEmails;
     }
     
     /**
-     * Retrieves all emails sent by a user.
+     * Retrieves all emails sent by a user, newest first.
      * 
      * @param userEmail The email address of the user
      * @return A list of emails sent by the user
      */
     public List<Email> getSentEmails(String userEmail) {
-        List<Email> sentEmails = emails.values().stream()
-                .filter(email -> email.getSender().equals(userEmail))
-                .collect(Collectors.toList());
+        List<Email> sentEmails = listMailbox(sentFolders, userEmail);
 
         log.info("Retrieved {} sent emails for user: {}", sentEmails.size(), userEmail);
         return sentEmails;
     }
+
+    /**
+     * Gets the inbox and sent folder counts of a user from the mailbox counters, without listing any email.
+     *
+     * @param userEmail The email address of the user
+     * @return The folder counts, all zero if the user has no emails
+     */
+    public FolderCounts getFolderCounts(String userEmail) {
+        indexLock.readLock().lock();
+        try {
+            Mailbox inbox = inboxes.get(userEmail);
+            Mailbox sent = sentFolders.get(userEmail);
+            return new FolderCounts(
+                    inbox == null ? 0 : inbox.size(),
+                    inbox == null ? 0 : inbox.unreadCount(),
+                    sent == null ? 0 : sent.size());
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Retrieves one page of the emails received by a user in a time range, newest first.
+     *
+     * @param userEmail The email address of the user
+     * @param from The start of the range, inclusive, or null for no lower bound
+     * @param to The end of the range, exclusive, or null for no upper bound
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param limit The largest number of emails on the page
+     * @return The page of emails received by the user
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public EmailPage getReceivedEmails(String userEmail, LocalDateTime from, LocalDateTime to, String cursor, int limit) {
+        EmailPage page = pageMailbox(inboxes, userEmail, from, to, cursor, limit);
+
+        log.info("Retrieved {} received emails between {} and {} for user: {}", page.emails().size(), from, to, userEmail);
+        return page;
+    }
+
+    /**
+     * Retrieves one page of the emails sent by a user in a time range, newest first.
+     *
+     * @param userEmail The email address of the user
+     * @param from The start of the range, inclusive, or null for no lower bound
+     * @param to The end of the range, exclusive, or null for no upper bound
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param limit The largest number of emails on the page
+     * @return The page of emails sent by the user
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public EmailPage getSentEmails(String userEmail, LocalDateTime from, LocalDateTime to, String cursor, int limit) {
+        EmailPage page = pageMailbox(sentFolders, userEmail, from, to, cursor, limit);
+
+        log.info("Retrieved {} sent emails between {} and {} for user: {}", page.emails().size(), from, to, userEmail);
+        return page;
+    }
     
+    /**
+     * Searches the emails received by a user.
+     * An email matches if its subject, sender, recipient, content or date ("yyyy-MM-dd HH:mm")
+     * contains the query, ignoring case.
+     *
+     * @param userEmail The email address of the user
+     * @param query The text to search for
+     * @return The matching emails, newest first
+     */
+    public List<Email> searchReceivedEmails(String userEmail, String query) {
+        return searchReceivedEmails(userEmail, query, null, Integer.MAX_VALUE).emails();
+    }
+
+    /**
+     * Searches one page of the emails received by a user, newest first.
+     *
+     * @param userEmail The email address of the user
+     * @param query The text to search for
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param limit The largest number of emails on the page
+     * @return The page of matching emails
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public EmailPage searchReceivedEmails(String userEmail, String query, String cursor, int limit) {
+        EmailPage page = searchMailbox(inboxes, userEmail, query, cursor, limit);
+        log.info("Found {} received emails matching the query for user: {}", page.emails().size(), userEmail);
+        return page;
+    }
+
+    /**
+     * Searches the emails sent by a user.
+     * An email matches if its subject, sender, recipient, content or date ("yyyy-MM-dd HH:mm")
+     * contains the query, ignoring case.
+     *
+     * @param userEmail The email address of the user
+     * @param query The text to search for
+     * @return The matching emails, newest first
+     */
+    public List<Email> searchSentEmails(String userEmail, String query) {
+        return searchSentEmails(userEmail, query, null, Integer.MAX_VALUE).emails();
+    }
+
+    /**
+     * Searches one page of the emails sent by a user, newest first.
+     *
+     * @param userEmail The email address of the user
+     * @param query The text to search for
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param limit The largest number of emails on the page
+     * @return The page of matching emails
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public EmailPage searchSentEmails(String userEmail, String query, String cursor, int limit) {
+        EmailPage page = searchMailbox(sentFolders, userEmail, query, cursor, limit);
+        log.info("Found {} sent emails matching the query for user: {}", page.emails().size(), userEmail);
+        return page;
+    }
+
     /**
      * Retrieves all emails (both sent and received) for a user.
      * 
@@ -114,11 +266,28 @@ public class EmailManager implements EmailManagerInterface {
         return allEmails;
     }
     
+    /**
+     * Gets an email by its ID.
+     * 
+     * @param emailId The ID of the email
+     * @return The email
+     * @throws EmailNotFoundException if the email is not found
+     */
+    public Email getEmail(String emailId) throws EmailNotFoundException {
+        Email email = emails.get(emailId);
+        if (email == null) {
+            log.error("Email not found: {}", emailId);
+            throw new EmailNotFoundException(emailId);
+        }
+        return email;
+    }
+
     /**
      * Marks an email as viewed.
      * 
      * @param emailId The ID of the email
      * @throws EmailNotFoundException if the email is not found
+     * @throws exception.JournalException if the first view could not be journaled
      */
     public void markEmailAsViewed(String emailId) throws EmailNotFoundException {
         Email email = emails.get(emailId);
@@ -127,29 +296,110 @@ public class EmailManager implements EmailManagerInterface {
             throw new EmailNotFoundException(emailId);
         }
         
-        email.setViewed(true);
-        emails.put(emailId, email);
+        // Only the first view changes the unread counters and is journaled, and several clients may view at once
+        synchronized (email) {
+            if (!email.isViewed()) {
+                journalThenApply(JournalRecord.emailViewed(emailId), () -> {
+                    email.setViewed(true);
+                    indexLock.readLock().lock();
+                    try {
+                        Mailbox inbox = inboxes.get(email.getRecipient());
+                        if (inbox != null) {
+                            inbox.emailViewed();
+                        }
+                        Mailbox sent = sentFolders.get(email.getSender());
+                        if (sent != null) {
+                            sent.emailViewed();
+                        }
+                    } finally {
+                        indexLock.readLock().unlock();
+                    }
+                    changes.markChanged(emailId);
+                });
+            }
+        }
         log.info("Email marked as viewed: {}", emailId);
     }
 
     /**
      * Sets the email map
      * This method is used to load email data into memory
-     * It clears the existing email map and loads the new data.
+     * It replaces the existing email map with the given one and rebuilds the per-user indexes.
+     * The map is used as it is, not copied, so the caller must not change it afterwards.
      *
      * @param emailMap The email map to set
      */
     @Override
     public void setEmailMap(ConcurrentHashMap<String, Email> emailMap) {
         if (emailMap != null) {
-            emails.clear();
-            emails.putAll(emailMap);
+            indexLock.writeLock().lock();
+            try {
+                inboxes.clear();
+                sentFolders.clear();
+                searchIndexes.clear();
+                emails = emailMap;
+                changes.clear();
+                emails.values().forEach(EmailManager::addToIndexes);
+            } finally {
+                indexLock.writeLock().unlock();
+            }
             log.info("Email data loaded into memory. Total emails: {}", emails.size());
         } else {
             log.warn("Attempted to load null email data. Skipping.");
         }
     }
 
+    /**
+     * Sets the search indexes, e.g. after loading them from file.
+     * An index is only used if it covers exactly the emails of its user, otherwise it is
+     * dropped and rebuilt on the next search. Must be called after setEmailMap.
+     *
+     * @param indexes The search indexes by user email
+     */
+    @Override
+    public void setSearchIndexes(Map<String, SearchIndex> indexes) {
+        if (indexes == null) {
+            log.warn("Attempted to load null search indexes. Skipping.");
+            return;
+        }
+        indexLock.writeLock().lock();
+        try {
+            searchIndexes.clear();
+            int stale = 0;
+            for (Map.Entry<String, SearchIndex> entry : indexes.entrySet()) {
+                if (entry.getValue().getIds().equals(emailIdsOf(entry.getKey()))) {
+                    searchIndexes.put(entry.getKey(), entry.getValue());
+                } else {
+                    stale++;
+                }
+            }
+            log.info("Search indexes loaded: {} in use, {} stale", searchIndexes.size(), stale);
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the search indexes that have been built so far.
+     *
+     * @return The search indexes by user email
+     */
+    @Override
+    public Map<String, SearchIndex> getSearchIndexes() {
+        return searchIndexes;
+    }
+
+    private static Set<String> emailIdsOf(String userEmail) {
+        Set<String> ids = new HashSet<>();
+        for (Map<String, Mailbox> folders : List.of(inboxes, sentFolders)) {
+            Mailbox mailbox = folders.get(userEmail);
+            if (mailbox != null) {
+                mailbox.getEmails().forEach(email -> ids.add(email.getId()));
+            }
+        }
+        return ids;
+    }
+
     /**
      * Gets the email map. from the concurrent hash map
      *
@@ -176,6 +426,237 @@ public class EmailManager implements EmailManagerInterface {
         }
     }
 
+    /**
+     * Sets the journal that sent emails and first views are appended to.
+     *
+     * @param journal The open journal, or null to stop journaling
+     */
+    @Override
+    public void setJournal(Journal journal) {
+        EmailManager.journal = journal;
+    }
+
+    /**
+     * Gets the tracker of the emails sent or viewed since they were last saved, by email ID.
+     *
+     * @return The change tracker
+     */
+    @Override
+    public ChangeTracker getChangeTracker() {
+        return changes;
+    }
+
+    /**
+     * Sets the pager that loads mailboxes the first time they are needed.
+     * Must be called after setEmailMap, with the pager the email map was loaded from.
+     *
+     * @param pager The pager, or null if all emails are loaded
+     */
+    @Override
+    public void setMailboxPager(MailboxPager pager) {
+        EmailManager.pager = pager;
+    }
+
+    /**
+     * Loads the mailbox of a user if it has not been loaded yet.
+     * If it cannot be read, the error is logged and the user gets the emails loaded so far;
+     * the next call tries again.
+     *
+     * @param userEmail The email address of the user
+     */
+    @Override
+    public void loadMailbox(String userEmail) {
+        MailboxPager current = pager;
+        if (current == null || current.isLoaded(userEmail)) {
+            return;
+        }
+        try {
+            current.load(userEmail, EmailManager::addLoadedEmails);
+        } catch (IOException | RuntimeException e) {
+            log.error("Failed to load the mailbox of {}", userEmail, e);
+        }
+    }
+
+    /**
+     * Loads every mailbox not loaded yet, so the email map holds all emails.
+     *
+     * @throws IOException if the emails cannot be read
+     */
+    @Override
+    public void loadAllMailboxes() throws IOException {
+        MailboxPager current = pager;
+        if (current != null) {
+            current.loadAll(EmailManager::addLoadedEmails);
+        }
+    }
+
+    /**
+     * Adds emails loaded by the pager. An email already in memory is kept, since it was sent or viewed
+     * after the emails were saved.
+     *
+     * @param loaded The loaded emails by ID
+     */
+    private static void addLoadedEmails(Map<String, Email> loaded) {
+        indexLock.readLock().lock();
+        try {
+            Map<String, Email> current = emails;
+            for (Email email : loaded.values()) {
+                if (current.putIfAbsent(email.getId(), email) == null) {
+                    addToIndexes(email);
+                }
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Journals a change, then applies it. A change that cannot be journaled is not applied.
+     *
+     * @param record The change to journal
+     * @param change Applies the change in memory
+     */
+    private static void journalThenApply(JournalRecord record, Runnable change) {
+        Journal current = journal;
+        if (current != null) {
+            current.append(record, change);
+        } else {
+            change.run();
+        }
+    }
+
+    /**
+     * Adds an email to the inbox of its recipient and the sent folder of its sender.
+     *
+     * @param email The email to index
+     */
+    private static void addToIndexes(Email email) {
+        inboxes.computeIfAbsent(email.getRecipient(), key -> new Mailbox()).add(email);
+        sentFolders.computeIfAbsent(email.getSender(), key -> new Mailbox()).add(email);
+
+        // Only indexes that already exist are updated, a missing one is built with this email on first search.
+        // computeIfPresent waits for an index that is being built, so the email cannot be missed.
+        for (String user : List.of(email.getRecipient(), email.getSender())) {
+            searchIndexes.computeIfPresent(user, (key, index) -> {
+                index.add(email);
+                return index;
+            });
+        }
+    }
+
+    /**
+     * Builds the search index of a user from their inbox and sent folder.
+     *
+     * @param userEmail The email address of the user
+     * @return The new search index
+     */
+    private static SearchIndex buildSearchIndex(String userEmail) {
+        SearchIndex index = new SearchIndex();
+        for (Map<String, Mailbox> folders : List.of(inboxes, sentFolders)) {
+            Mailbox mailbox = folders.get(userEmail);
+            if (mailbox != null) {
+                mailbox.getEmails().forEach(index::add);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Searches one user's folder for a page of emails containing the query.
+     * Queries of at least SearchIndex.GRAM_LENGTH characters use the user's search index,
+     * shorter queries scan the folder from the cursor until the page is full.
+     *
+     * @param folders   The inbox or sent folder index
+     * @param userEmail The email address of the user
+     * @param query     The text to search for, ignoring case
+     * @param cursor    The cursor of the previous page, or null for the first page
+     * @param limit     The largest number of emails on the page
+     * @return The page of matching emails, newest first
+     */
+    private static EmailPage searchMailbox(Map<String, Mailbox> folders, String userEmail, String query,
+                                           String cursor, int limit) {
+        String lowerQuery = query.toLowerCase();
+        Mailbox.Key after = cursor == null ? null : Mailbox.Key.fromCursor(cursor);
+        indexLock.readLock().lock();
+        try {
+            Mailbox mailbox = folders.get(userEmail);
+            if (mailbox == null) {
+                return new EmailPage(new ArrayList<>(), null);
+            }
+
+            Set<String> candidates = null;
+            if (lowerQuery.length() >= SearchIndex.GRAM_LENGTH) {
+                candidates = searchIndexes.computeIfAbsent(userEmail, EmailManager::buildSearchIndex).candidates(lowerQuery);
+            }
+            if (candidates == null) {
+                return mailbox.getPage(null, null, cursor, limit, email -> SearchIndex.matches(email, lowerQuery));
+            }
+
+            List<Email> results = new ArrayList<>();
+            for (String id : candidates) {
+                Email email = mailbox.get(id);
+                if (email != null && (after == null || Mailbox.Key.of(email).compareTo(after) < 0)
+                        && SearchIndex.matches(email, lowerQuery)) {
+                    results.add(email);
+                }
+            }
+            results.sort(Comparator.comparing(Mailbox.Key::of).reversed());
+            if (results.size() <= limit) {
+                return new EmailPage(results, null);
+            }
+            List<Email> page = new ArrayList<>(results.subList(0, limit));
+            return new EmailPage(page, Mailbox.Key.of(page.get(limit - 1)).toCursor());
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lists the emails of one user's folder, newest first.
+     *
+     * @param folders   The inbox or sent folder index
+     * @param userEmail The email address of the user
+     * @return The emails in the folder, or an empty list if the user has none
+     */
+    private static List<Email> listMailbox(Map<String, Mailbox> folders, String userEmail) {
+        indexLock.readLock().lock();
+        try {
+            Mailbox mailbox = folders.get(userEmail);
+            return mailbox == null ? new ArrayList<>() : mailbox.getEmails();
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lists one page of the emails of one user's folder in a time range, newest first.
+     *
+     * @param folders   The inbox or sent folder index
+     * @param userEmail The email address of the user
+     * @param from      The start of the range, inclusive, or null for no lower bound
+     * @param to        The end of the range, exclusive, or null for no upper bound
+     * @param cursor    The cursor of the previous page, or null for the first page
+     * @param limit     The largest number of emails on the page
+     * @return The page, empty if the user has no emails
+     */
+    private static EmailPage pageMailbox(Map<String, Mailbox> folders, String userEmail,
+                                         LocalDateTime from, LocalDateTime to, String cursor, int limit) {
+        indexLock.readLock().lock();
+        try {
+            Mailbox mailbox = folders.get(userEmail);
+            if (mailbox == null) {
+                // Still reject a malformed cursor
+                if (cursor != null) {
+                    Mailbox.Key.fromCursor(cursor);
+                }
+                return new EmailPage(new ArrayList<>(), null);
+            }
+            return mailbox.getPage(from, to, cursor, limit, email -> true);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
     /**
      * Generates a SHA-256 hash ID for the email.
      * 
@@ -212,5 +693,8 @@ public class EmailManager implements EmailManagerInterface {
      */
     public static void clearEmailsForTest() {
         emails.clear();
+        inboxes.clear();
+        sentFolders.clear();
+        searchIndexes.clear();
     }
 }
\ No newline at end of file
@@ -2,7 +2,12 @@ package model;
 
 import exception.EmailNotFoundException;
 import exception.UserNotFoundException;
+import utils.storage.ChangeTracker;
+import utils.storage.Journal;
+import utils.storage.MailboxPager;
 
+import java.io.IOException;
+import java.time.LocalDateTime;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -37,6 +42,91 @@ public interface EmailManagerInterface {
      */
     List<Email> getSentEmails(String userEmail);
 
+    /**
+     * Gets the number of emails in a user's inbox, how many of them are unread, and the number of sent emails.
+     *
+     * @param userEmail The email address of the user
+     * @return The folder counts
+     */
+    FolderCounts getFolderCounts(String userEmail);
+
+    /**
+     * Retrieves one page of the emails received by a user in a time range, newest first.
+     *
+     * @param userEmail The email address of the user
+     * @param from The start of the range, inclusive, or null for no lower bound
+     * @param to The end of the range, exclusive, or null for no upper bound
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param limit The largest number of emails on the page
+     * @return The page of emails received by the user
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    EmailPage getReceivedEmails(String userEmail, LocalDateTime from, LocalDateTime to, String cursor, int limit);
+
+    /**
+     * Retrieves one page of the emails sent by a user in a time range, newest first.
+     *
+     * @param userEmail The email address of the user
+     * @param from The start of the range, inclusive, or null for no lower bound
+     * @param to The end of the range, exclusive, or null for no upper bound
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param limit The largest number of emails on the page
+     * @return The page of emails sent by the user
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    EmailPage getSentEmails(String userEmail, LocalDateTime from, LocalDateTime to, String cursor, int limit);
+
+    /**
+     * Searches the emails received by a user for a text, ignoring case.
+     *
+     * @param userEmail The email address of the user
+     * @param query The text to search for in subject, sender, recipient, content and date
+     * @return The matching emails
+     */
+    List<Email> searchReceivedEmails(String userEmail, String query);
+
+    /**
+     * Searches the emails sent by a user for a text, ignoring case.
+     *
+     * @param userEmail The email address of the user
+     * @param query The text to search for in subject, sender, recipient, content and date
+     * @return The matching emails
+     */
+    List<Email> searchSentEmails(String userEmail, String query);
+
+    /**
+     * Searches one page of the emails received by a user, newest first.
+     *
+     * @param userEmail The email address of the user
+     * @param query The text to search for in subject, sender, recipient, content and date
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param limit The largest number of emails on the page
+     * @return The page of matching emails
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    EmailPage searchReceivedEmails(String userEmail, String query, String cursor, int limit);
+
+    /**
+     * Searches one page of the emails sent by a user, newest first.
+     *
+     * @param userEmail The email address of the user
+     * @param query The text to search for in subject, sender, recipient, content and date
+     * @param cursor The cursor of the previous page, or null for the first page
+     * @param limit The largest number of emails on the page
+     * @return The page of matching emails
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    EmailPage searchSentEmails(String userEmail, String query, String cursor, int limit);
+
+    /**
+     * Gets an email by its ID.
+     *
+     * @param emailId The ID of the email
+     * @return The email
+     * @throws EmailNotFoundException if the email is not found
+     */
+    Email getEmail(String emailId) throws EmailNotFoundException;
+
     /**
      * Marks an email as viewed.
      *
@@ -58,4 +148,53 @@ public interface EmailManagerInterface {
      * @return The email map.
      */
     Map<String, Email> getEmailMap();
-}
\ No newline at end of file
+
+    /**
+     * Sets the search indexes, e.g. after loading them from file.
+     *
+     * @param indexes The search indexes by user email
+     */
+    void setSearchIndexes(Map<String, SearchIndex> indexes);
+
+    /**
+     * Gets the search indexes.
+     *
+     * @return The search indexes by user email
+     */
+    Map<String, SearchIndex> getSearchIndexes();
+
+    /**
+     * Sets the journal that changes are appended to.
+     *
+     * @param journal The open journal, or null to stop journaling
+     */
+    void setJournal(Journal journal);
+
+    /**
+     * Gets the tracker of the emails changed since they were last saved.
+     *
+     * @return the change tracker
+     */
+    ChangeTracker getChangeTracker();
+
+    /**
+     * Sets the pager that loads mailboxes the first time they are needed.
+     *
+     * @param pager The pager, or null if all emails are loaded
+     */
+    void setMailboxPager(MailboxPager pager);
+
+    /**
+     * Loads the mailbox of a user if it has not been loaded yet.
+     *
+     * @param userEmail The email address of the user
+     */
+    void loadMailbox(String userEmail);
+
+    /**
+     * Loads every mailbox not loaded yet, so the email map holds all emails, e.g. before a full save.
+     *
+     * @throws IOException if the emails cannot be read
+     */
+    void loadAllMailboxes() throws IOException;
+}
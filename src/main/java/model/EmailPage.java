@@ -0,0 +1,12 @@
+package model;
+
+import java.util.List;
+
+/**
+ * EmailPage is one page of a listing or a search, newest first.
+ *
+ * @param emails     The emails on the page
+ * @param nextCursor The cursor to pass to get the next page, or null if this is the last page
+ */
+public record EmailPage(List<Email> emails, String nextCursor) {
+}
@@ -0,0 +1,11 @@
+package model;
+
+/**
+ * FolderCounts holds the sizes of one user's folders, as shown on the folder buttons of the dashboard.
+ *
+ * @param inboxTotal  The number of received emails
+ * @param inboxUnread The number of received emails not viewed yet
+ * @param sentTotal   The number of sent emails
+ */
+public record FolderCounts(int inboxTotal, int inboxUnread, int sentTotal) {
+}
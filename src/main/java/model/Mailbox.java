@@ -0,0 +1,203 @@
+package model;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Mailbox is the index of one user's inbox or sent folder.
+ * Emails are kept ordered by timestamp in a skip list, so listing a folder only touches
+ * the emails of that folder instead of every email on the server, and a date range or a page is read
+ * straight from the skip list, newest first, without sorting.
+ * The total and unread counts are kept in counters updated on every change, so reading them is O(1).
+ * It is thread-safe.
+ */
+public class Mailbox {
+
+    /**
+     * Orders emails by timestamp, then by ID so that emails sent at the same time are kept apart.
+     * An email without a timestamp sorts before all others.
+     */
+    record Key(LocalDateTime timestamp, String id) implements Comparable<Key> {
+        private static final Comparator<Key> ORDER = Comparator
+                .comparing(Key::timestamp, Comparator.nullsFirst(Comparator.<LocalDateTime>naturalOrder()))
+                .thenComparing(Key::id, Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+
+        static Key of(Email email) {
+            return new Key(email.getTimestamp(), email.getId());
+        }
+
+        /**
+         * Encodes the key as a page cursor: the ISO timestamp, a slash and the ID.
+         */
+        String toCursor() {
+            return (timestamp == null ? "" : timestamp.toString()) + "/" + id;
+        }
+
+        /**
+         * Decodes a page cursor made by toCursor.
+         *
+         * @throws IllegalArgumentException if the cursor is malformed
+         */
+        static Key fromCursor(String cursor) {
+            int separator = cursor.indexOf('/');
+            if (separator < 0) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            try {
+                LocalDateTime timestamp = separator == 0 ? null : LocalDateTime.parse(cursor.substring(0, separator));
+                return new Key(timestamp, cursor.substring(separator + 1));
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+            }
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            return ORDER.compare(this, other);
+        }
+    }
+
+    private final ConcurrentSkipListMap<Key, Email> emails = new ConcurrentSkipListMap<>();
+    private final Map<String, Email> emailsById = new ConcurrentHashMap<>();
+    private final AtomicInteger total = new AtomicInteger();
+    // Emails not yet viewed by their recipient
+    private final AtomicInteger unread = new AtomicInteger();
+
+    /**
+     * Adds an email to the mailbox, replacing an email with the same ID and timestamp.
+     *
+     * @param email The email to add
+     */
+    public void add(Email email) {
+        Email previous = emails.put(Key.of(email), email);
+        emailsById.put(email.getId(), email);
+        if (previous == null) {
+            total.incrementAndGet();
+        } else if (!previous.isViewed()) {
+            unread.decrementAndGet();
+        }
+        if (!email.isViewed()) {
+            unread.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes an email from the mailbox.
+     *
+     * @param email The email to remove
+     */
+    public void remove(Email email) {
+        Email removed = emails.remove(Key.of(email));
+        emailsById.remove(email.getId(), email);
+        if (removed != null) {
+            total.decrementAndGet();
+            if (!removed.isViewed()) {
+                unread.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Records that an email of this mailbox has just been viewed for the first time.
+     * The caller must call this exactly once per email, after setting its viewed flag.
+     */
+    public void emailViewed() {
+        unread.decrementAndGet();
+    }
+
+    /**
+     * Gets an email of this mailbox by its ID.
+     *
+     * @param id The email ID
+     * @return The email, or null if it is not in this mailbox
+     */
+    public Email get(String id) {
+        return emailsById.get(id);
+    }
+
+    /**
+     * Gets the emails in the mailbox, newest first.
+     *
+     * @return A new list of the emails
+     */
+    public List<Email> getEmails() {
+        return new ArrayList<>(emails.descendingMap().values());
+    }
+
+    /**
+     * Gets one page of the emails sent in a time range, newest first.
+     * The page starts right after the cursor, so pages stay stable while emails are added or removed.
+     *
+     * @param from   The start of the range, inclusive, or null for no lower bound
+     * @param to     The end of the range, exclusive, or null for no upper bound
+     * @param cursor The cursor returned with the previous page, or null for the first page
+     * @param limit  The largest number of emails on the page
+     * @param filter Only emails accepted by the filter are put on the page
+     * @return The page, with a cursor to the next page if more emails may follow
+     * @throws IllegalArgumentException if the cursor is malformed
+     */
+    public EmailPage getPage(LocalDateTime from, LocalDateTime to, String cursor, int limit, Predicate<Email> filter) {
+        Key lower = from == null ? null : new Key(from, null);
+        Key upper = to == null ? null : new Key(to, null);
+        if (cursor != null) {
+            Key after = Key.fromCursor(cursor);
+            if (upper == null || after.compareTo(upper) < 0) {
+                upper = after;
+            }
+        }
+
+        // A null ID sorts before every ID, so the bound keys sit right before the first email at that time
+        NavigableMap<Key, Email> range;
+        if (lower != null && upper != null) {
+            range = lower.compareTo(upper) < 0 ? emails.subMap(lower, true, upper, false) : Collections.emptyNavigableMap();
+        } else if (lower != null) {
+            range = emails.tailMap(lower, true);
+        } else if (upper != null) {
+            range = emails.headMap(upper, false);
+        } else {
+            range = emails;
+        }
+
+        List<Email> page = new ArrayList<>(Math.min(limit, 64));
+        Key last = null;
+        for (Map.Entry<Key, Email> entry : range.descendingMap().entrySet()) {
+            if (!filter.test(entry.getValue())) {
+                continue;
+            }
+            if (page.size() == limit) {
+                return new EmailPage(page, last.toCursor());
+            }
+            page.add(entry.getValue());
+            last = entry.getKey();
+        }
+        return new EmailPage(page, null);
+    }
+
+    /**
+     * Gets the number of emails in the mailbox.
+     *
+     * @return The email count
+     */
+    public int size() {
+        return total.get();
+    }
+
+    /**
+     * Gets the number of emails in the mailbox that their recipient has not viewed yet.
+     *
+     * @return The unread email count
+     */
+    public int unreadCount() {
+        return unread.get();
+    }
+}
@@ -0,0 +1,222 @@
+package model;
+
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * SearchIndex is an inverted index over the emails of one user, sent and received.
+ * Every searchable field (subject, sender, recipient, content and date) is split into lowercase
+ * trigrams, and each trigram points to the emails containing it.
+ * A query of at least three characters is answered by intersecting the posting lists of its trigrams,
+ * which gives the candidate emails that may contain the query as a substring.
+ * Emails are numbered in the order they are added, so posting lists are sorted int arrays
+ * instead of sets of 64 character IDs. It is thread-safe.
+ */
+public class SearchIndex {
+    public static final int GRAM_LENGTH = 3;
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    // Document number -> email ID, null once the email has been removed
+    private final List<String> ids = new ArrayList<>();
+    private final Map<String, Integer> documentNumbers = new HashMap<>();
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    /**
+     * The saved form of an index: the email ID of every document number and the posting list of every trigram.
+     */
+    public record Snapshot(List<String> ids, Map<String, int[]> postings) {
+    }
+
+    /**
+     * A growable, sorted list of document numbers.
+     */
+    private static final class Postings {
+        private int[] documents = new int[4];
+        private int size = 0;
+
+        void add(int document) {
+            if (size > 0 && documents[size - 1] == document) {
+                return;
+            }
+            if (size == documents.length) {
+                documents = Arrays.copyOf(documents, size * 2);
+            }
+            documents[size++] = document;
+        }
+
+        boolean contains(int document) {
+            return Arrays.binarySearch(documents, 0, size, document) >= 0;
+        }
+    }
+
+    /**
+     * Adds an email to the index. Adding an email that is already indexed does nothing.
+     *
+     * @param email The email to add
+     */
+    public synchronized void add(Email email) {
+        if (documentNumbers.containsKey(email.getId())) {
+            return;
+        }
+        int document = ids.size();
+        ids.add(email.getId());
+        documentNumbers.put(email.getId(), document);
+        for (String gram : gramsOf(email)) {
+            postings.computeIfAbsent(gram, key -> new Postings()).add(document);
+        }
+    }
+
+    /**
+     * Removes an email from the index. Its document number is left in the posting lists
+     * but no longer resolves to an email.
+     *
+     * @param email The email to remove
+     */
+    public synchronized void remove(Email email) {
+        Integer document = documentNumbers.remove(email.getId());
+        if (document != null) {
+            ids.set(document, null);
+        }
+    }
+
+    /**
+     * Finds the emails that may contain the query.
+     * Every email containing the query is in the result, but the result may hold emails
+     * that only contain all trigrams of the query, so each candidate still has to be checked with matches.
+     *
+     * @param query The lowercase query
+     * @return The candidate email IDs, or null if the query is too short to use the index
+     */
+    public synchronized Set<String> candidates(String query) {
+        if (query.length() < GRAM_LENGTH) {
+            return null;
+        }
+
+        List<Postings> lists = new ArrayList<>();
+        for (String gram : gramsOf(query)) {
+            Postings list = postings.get(gram);
+            if (list == null) {
+                return new HashSet<>();
+            }
+            lists.add(list);
+        }
+
+        // Walk the shortest posting list and look each document up in the others
+        lists.sort(Comparator.comparingInt(list -> list.size));
+        Postings shortest = lists.get(0);
+        Set<String> result = new HashSet<>();
+        for (int i = 0; i < shortest.size; i++) {
+            int document = shortest.documents[i];
+            boolean inAll = true;
+            for (int j = 1; j < lists.size() && inAll; j++) {
+                inAll = lists.get(j).contains(document);
+            }
+            String id = ids.get(document);
+            if (inAll && id != null) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the IDs of all indexed emails.
+     *
+     * @return A copy of the indexed email IDs
+     */
+    public synchronized Set<String> getIds() {
+        return new HashSet<>(documentNumbers.keySet());
+    }
+
+    /**
+     * Copies the index into its saved form.
+     *
+     * @return The snapshot of the index
+     */
+    public synchronized Snapshot toSnapshot() {
+        Map<String, int[]> lists = new HashMap<>(postings.size() * 2);
+        postings.forEach((gram, list) -> lists.put(gram, Arrays.copyOf(list.documents, list.size)));
+        return new Snapshot(new ArrayList<>(ids), lists);
+    }
+
+    /**
+     * Rebuilds an index from its saved form.
+     *
+     * @param snapshot The snapshot, e.g. read back from a file
+     * @return The index
+     */
+    public static SearchIndex fromSnapshot(Snapshot snapshot) {
+        SearchIndex index = new SearchIndex();
+        index.ids.addAll(snapshot.ids());
+        for (int document = 0; document < index.ids.size(); document++) {
+            String id = index.ids.get(document);
+            if (id != null) {
+                index.documentNumbers.put(id, document);
+            }
+        }
+        snapshot.postings().forEach((gram, documents) -> {
+            Postings list = new Postings();
+            list.documents = documents.length == 0 ? new int[4] : documents;
+            list.size = documents.length;
+            index.postings.put(gram, list);
+        });
+        return index;
+    }
+
+    /**
+     * Checks if an email contains the query in its subject, sender, recipient, content or date.
+     *
+     * @param email The email to check
+     * @param query The lowercase query
+     * @return true if one of the fields contains the query
+     */
+    public static boolean matches(Email email, String query) {
+        return contains(email.getSubject(), query)
+                || contains(email.getSender(), query)
+                || contains(email.getRecipient(), query)
+                || contains(email.getContent(), query)
+                || formatDate(email).contains(query);
+    }
+
+    private static boolean contains(String field, String query) {
+        return field != null && field.toLowerCase().contains(query);
+    }
+
+    private static String formatDate(Email email) {
+        return email.getTimestamp() == null ? "" : email.getTimestamp().format(DATE_FORMAT);
+    }
+
+    private static Set<String> gramsOf(Email email) {
+        Set<String> grams = new HashSet<>();
+        addGrams(grams, email.getSubject());
+        addGrams(grams, email.getSender());
+        addGrams(grams, email.getRecipient());
+        addGrams(grams, email.getContent());
+        addGrams(grams, formatDate(email));
+        return grams;
+    }
+
+    private static Set<String> gramsOf(String query) {
+        Set<String> grams = new HashSet<>();
+        addGrams(grams, query);
+        return grams;
+    }
+
+    private static void addGrams(Set<String> grams, String field) {
+        if (field == null) {
+            return;
+        }
+        // Fields are indexed one by one, so no trigram spans two fields
+        String text = field.toLowerCase();
+        for (int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+            grams.add(text.substring(i, i + GRAM_LENGTH));
+        }
+    }
+}
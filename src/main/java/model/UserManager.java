@@ -2,13 +2,18 @@ package model;
 
 import exception.*;
 import lombok.extern.slf4j.Slf4j;
+import utils.PasswordHasher;
 import utils.SecurityUtils;
+import utils.storage.ChangeTracker;
+import utils.storage.Journal;
+import utils.storage.JournalRecord;
 import utils.validators.UserValidator;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
@@ -19,8 +24,17 @@ import java.util.stream.Collectors;
 @Slf4j
 public class UserManager implements UserManagerInterface {
 
-    // HashMap to store user data uses ConcurrentHashMap for thread safety
-    private static final Map<String, User> users = new ConcurrentHashMap<>();;
+    // HashMap to store user data uses ConcurrentHashMap for thread safety, replaced as a whole when data is loaded
+    private static volatile Map<String, User> users = new ConcurrentHashMap<>();
+
+    // Every registration is appended here before it is applied, null while the server is not running
+    private static volatile Journal journal;
+    // Emails being registered right now, so two registrations of one email cannot both be journaled
+    private static final Set<String> registering = ConcurrentHashMap.newKeySet();
+    // Emails of the users registered since the users were last saved
+    private static final ChangeTracker changes = new ChangeTracker();
+    // Hashes passwords off the connection threads while the server is running, null hashes them on the caller's thread
+    private static volatile PasswordHasher passwordHasher;
 
     /**
      * Registers a new user.
@@ -34,15 +48,20 @@ public class UserManager implements UserManagerInterface {
      * @param password  Password of the user
      * @throws UserAlreadyExistsException if the user already exists
      * @throws InvalidUserDetailsException if the user details are invalid
+     * @throws JournalException if the registration could not be journaled
+     * @throws ServerBusyException if too many passwords are being hashed already
      */
     public void registerUser(String firstName, String lastName, String email, String password)
             throws UserAlreadyExistsException, InvalidUserDetailsException, PasswordEncryptionException {
 
-        if (users.containsKey(email)) {
+        if (!registering.add(email)) {
             throw new UserAlreadyExistsException(email);
         }
-
         try {
+            if (users.containsKey(email)) {
+                throw new UserAlreadyExistsException(email);
+            }
+
             // Create user with raw password for validation
             User user = new User(firstName, lastName, email, password);
 
@@ -51,7 +70,7 @@ public class UserManager implements UserManagerInterface {
 
             // Hash the password after validation
             String salt = SecurityUtils.generateSalt();
-            String hashedPassword = SecurityUtils.hashPassword(password, salt);
+            String hashedPassword = hashPassword(password, salt);
 
             // Store secure credentials
             user.setSalt(salt);
@@ -60,12 +79,24 @@ public class UserManager implements UserManagerInterface {
             // Clear the raw password
             user.setPassword(null);
 
-            users.put(email, user);
+            // Journaled first, so a registration that fails to journal is not made at all
+            Runnable register = () -> {
+                users.put(email, user);
+                changes.markChanged(email);
+            };
+            Journal current = journal;
+            if (current != null) {
+                current.append(JournalRecord.userRegistered(user), register);
+            } else {
+                register.run();
+            }
             log.info("User registered: {}", email);
 
         } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
             log.error("Error hashing password for {}: {}", email, e.getMessage());
             throw new PasswordEncryptionException("Error while hashing password during registration", e);
+        } finally {
+            registering.remove(email);
         }
     }
 
@@ -77,6 +108,7 @@ public class UserManager implements UserManagerInterface {
      * @param password Password of the user
      * @throws InvalidUserCredentialsException if the password is invalid
      * @throws UserNotFoundException if the user is not found
+     * @throws ServerBusyException if too many passwords are being hashed already
      */
     public void loginUser(String email, String password) throws InvalidUserCredentialsException, UserNotFoundException, PasswordEncryptionException {
         User user = users.get(email);
@@ -86,7 +118,7 @@ public class UserManager implements UserManagerInterface {
         }
 
         try {
-            boolean isMatch = SecurityUtils.verifyPassword(password, user.getSalt(), user.getHashedPassword());
+            boolean isMatch = verifyPassword(password, user.getSalt(), user.getHashedPassword());
             if (!isMatch) {
                 log.warn("Invalid password for user: {}", email);
                 throw new InvalidUserCredentialsException(email);
@@ -98,6 +130,20 @@ public class UserManager implements UserManagerInterface {
         }
     }
 
+    private static String hashPassword(String password, String salt)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PasswordHasher hasher = passwordHasher;
+        return hasher != null ? hasher.hashPassword(password, salt) : SecurityUtils.hashPassword(password, salt);
+    }
+
+    private static boolean verifyPassword(String password, String salt, String expectedHash)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        PasswordHasher hasher = passwordHasher;
+        return hasher != null
+                ? hasher.verifyPassword(password, salt, expectedHash)
+                : SecurityUtils.verifyPassword(password, salt, expectedHash);
+    }
+
     /**
      * Gets all logged-in users from concurrent hash map.
      */
@@ -113,15 +159,16 @@ public class UserManager implements UserManagerInterface {
     /**
      * Sets the user map
      * This method is used to load user data into memory
-     * It clears the existing user map and loads the new data
+     * It replaces the existing user map with the given one
+     * The map is used as it is, not copied, so the caller must not change it afterwards.
      *
      * @param userMap The user map to set
      */
     @Override
     public void setUserMap(ConcurrentHashMap<String, User> userMap) {
         if (userMap != null) {
-            users.clear();
-            users.putAll(userMap);
+            users = userMap;
+            changes.clear();
             log.info("User data loaded into memory. Total users: {}", users.size());
         } else {
             log.warn("Attempted to load null user data. Skipping.");
@@ -154,4 +201,34 @@ public class UserManager implements UserManagerInterface {
             log.warn("User not found for setting logged-in status: {}", email);
         }
     }
+
+    /**
+     * Sets the journal that registrations are appended to.
+     *
+     * @param journal The open journal, or null to stop journaling
+     */
+    @Override
+    public void setJournal(Journal journal) {
+        UserManager.journal = journal;
+    }
+
+    /**
+     * Sets the hasher that registrations and logins hash passwords on.
+     *
+     * @param passwordHasher The hasher, or null to hash on the caller's thread
+     */
+    @Override
+    public void setPasswordHasher(PasswordHasher passwordHasher) {
+        UserManager.passwordHasher = passwordHasher;
+    }
+
+    /**
+     * Gets the tracker of the users registered since the users were last saved, by email.
+     *
+     * @return The change tracker
+     */
+    @Override
+    public ChangeTracker getChangeTracker() {
+        return changes;
+    }
 }
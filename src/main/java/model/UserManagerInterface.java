@@ -3,6 +3,10 @@ package model;
 import exception.InvalidUserCredentialsException;
 import exception.*;
 
+import utils.PasswordHasher;
+import utils.storage.ChangeTracker;
+import utils.storage.Journal;
+
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -18,6 +22,7 @@ public interface UserManagerInterface {
      * @param password the password of the user
      * @throws UserAlreadyExistsException if a user with the same email already exists
      * @throws InvalidUserDetailsException if any of the user details are invalid
+     * @throws ServerBusyException if too many passwords are being hashed already
      */
     void registerUser(String firstName, String lastName, String email, String password)
             throws UserAlreadyExistsException, InvalidUserDetailsException;
@@ -29,6 +34,7 @@ public interface UserManagerInterface {
      * @param password the password of the user
      * @throws InvalidUserCredentialsException if the credentials are invalid
      * @throws UserNotFoundException if the user is not found
+     * @throws ServerBusyException if too many passwords are being hashed already
      */
     void loginUser(String email, String password)
             throws InvalidUserCredentialsException, UserNotFoundException;
@@ -63,4 +69,25 @@ public interface UserManagerInterface {
      * @param status the logged-in status to set
      */
     void setLoggedIn(String email, boolean status);
+
+    /**
+     * Sets the journal that changes are appended to.
+     *
+     * @param journal the open journal, or null to stop journaling
+     */
+    void setJournal(Journal journal);
+
+    /**
+     * Sets the hasher that passwords are hashed on.
+     *
+     * @param passwordHasher the hasher, or null to hash on the caller's thread
+     */
+    void setPasswordHasher(PasswordHasher passwordHasher);
+
+    /**
+     * Gets the tracker of the users changed since they were last saved.
+     *
+     * @return the change tracker
+     */
+    ChangeTracker getChangeTracker();
 }
@@ -0,0 +1,61 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * BufferPool lends the network and application buffers of the NIO server to connections while they
+ * have data in flight, and takes them back once it is handled, so an idle connection holds no buffer.
+ * It is only used by the selector thread, so it is not thread-safe.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Deque<ByteBuffer> free = new ArrayDeque<>();
+
+    /**
+     * Creates an empty pool.
+     *
+     * @param bufferSize The smallest capacity of a buffer, large enough for a TLS record
+     * @param maxPooled  The most buffers kept for reuse, any more returned are left to the garbage collector
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Lends an empty buffer.
+     *
+     * @param capacity The capacity needed
+     * @return A cleared buffer of at least that capacity
+     */
+    public ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null || buffer.capacity() < capacity) {
+            return ByteBuffer.allocate(Math.max(capacity, bufferSize));
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Takes back a buffer. It must not be used by the caller afterwards.
+     *
+     * @param buffer The buffer, or null for none
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && free.size() < maxPooled) {
+            free.push(buffer);
+        }
+    }
+
+    /**
+     * Gets the number of buffers waiting to be lent.
+     *
+     * @return the pooled buffer count
+     */
+    public int size() {
+        return free.size();
+    }
+}
@@ -4,16 +4,23 @@ import exception.*;
 import lombok.AllArgsConstructor;
 import model.Email;
 import model.EmailManagerInterface;
+import model.EmailPage;
+import model.FolderCounts;
 import model.UserManagerInterface;
+import utils.TCPConnection;
 import utils.TCPUtils;
+import utils.protocols.Message;
 
+import java.io.IOException;
 import java.net.Socket;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.List;
-import java.time.format.DateTimeFormatter;
 
 import utils.protocols.UserProtocol;
-import utils.protocols.EmailProtocol;
 import utils.protocols.CommonProtocol;
+import utils.protocols.EmailProtocol;
 
 /**
  * ClientHandler is responsible for handling client requests in a separate thread.
@@ -21,10 +28,16 @@ import utils.protocols.CommonProtocol;
  */
 
 public class ClientHandler implements Runnable {
+    // Largest number of pipelined responses kept in the output buffer before flushing
+    private static final int MAX_UNFLUSHED_RESPONSES = 64;
+
     private final Socket socket;
     private final UserManagerInterface userManager;
     private final EmailManagerInterface emailManager;
+    private final SessionStore sessions;
     private String loggedInUserEmail = null;
+    // The session the connection is logged in with, ended by LOGOUT
+    private String sessionToken = null;
     private boolean shouldTerminate = false;
 
     /**
@@ -33,32 +46,64 @@ public class ClientHandler implements Runnable {
      * @param socket       The socket connected to the client.
      * @param userManager  The UserManager instance for user operations.
      * @param emailManager The EmailManager instance for email operations.
+     * @param sessions     The sessions shared by all connections, for LOGIN and RESUME.
      */
-    public ClientHandler(Socket socket, UserManagerInterface userManager, EmailManagerInterface emailManager) {
+    public ClientHandler(Socket socket, UserManagerInterface userManager, EmailManagerInterface emailManager,
+                         SessionStore sessions) {
         this.socket = socket;
         this.userManager = userManager;
         this.emailManager = emailManager;
+        this.sessions = sessions;
+    }
+
+    /**
+     * Constructor for a ClientHandler that does not own a socket.
+     * It is used by the NIO server, which does the network I/O itself and only
+     * uses the handler as the command layer through handleRequest.
+     *
+     * @param userManager  The UserManager instance for user operations.
+     * @param emailManager The EmailManager instance for email operations.
+     * @param sessions     The sessions shared by all connections, for LOGIN and RESUME.
+     */
+    public ClientHandler(UserManagerInterface userManager, EmailManagerInterface emailManager, SessionStore sessions) {
+        this(null, userManager, emailManager, sessions);
     }
 
     /**
      * The run method is executed when the thread is started.
      * It continuously listens for incoming messages from the client,
      * processes them, and sends back responses.
+     * One TCPConnection is used for the life of the socket so its buffers are reused between requests.
+     * A client that opens with the v2 preamble is served with binary frames, any other client with v1 text.
+     * Clients may pipeline requests: responses are written in order and flushed together once no more
+     * requests are waiting, or every MAX_UNFLUSHED_RESPONSES responses.
      */
     @Override
     public void run() {
-        try {
+        try (TCPConnection connection = new TCPConnection(socket)) {
+            boolean binary = connection.acceptBinaryProtocol();
+            int unflushed = 0;
             while (true) {
-                // Receive message from client
-                String request = TCPUtils.receiveMessage(socket);
-                if (request == null) break;
-
-                // If the request is empty, break the loop
-                String response = handleRequest(request.trim());
-                TCPUtils.sendMessage(socket, response);
+                // Receive message from client, null means the client closed the connection
+                if (binary) {
+                    Message request = connection.readFrame();
+                    if (request == null) break;
+                    connection.writeFrame(handleRequest(request));
+                } else {
+                    String request = connection.readMessage();
+                    if (request == null) break;
+                    connection.writeMessage(handleRequest(request.trim()));
+                }
+                unflushed++;
 
+                if (shouldTerminate || unflushed >= MAX_UNFLUSHED_RESPONSES || !connection.hasPendingInput()) {
+                    connection.flush();
+                    unflushed = 0;
+                }
                 if (shouldTerminate) break;
             }
+        } catch (IOException e) {
+            System.err.println("Client connection error: " + e.getMessage());
         } catch (Exception e) {
             System.err.println("Client error: " + e.getMessage());
         } finally {
@@ -66,22 +111,35 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Handles an incoming v1 text request from a client.
+     *
+     * @param request The request string from the client.
+     * @return The response string to be sent back to the client.
+     */
+    String handleRequest(String request) {
+        return handleRequest(Message.fromText(request)).toText();
+    }
+
     /**
      * Handles incoming requests from clients.
      * It processes commands like REGISTER and LOGIN.
      * If the command is not recognized, it returns "UNKNOWN_COMMAND".
+     * The request may have come from a v1 text line or a v2 binary frame.
      *
-     * @param request The request string from the client.
-     * @return The response string to be sent back to the client.
+     * @param request The request message from the client.
+     * @return The response message to be sent back to the client.
      */
-    private String handleRequest(String request) {
-        final String SEP = CommonProtocol.SEP;
-        String[] parts = request.split(SEP);
-        if (parts.length == 0) return EmailProtocol.UNKNOWN_COMMAND;
+    Message handleRequest(Message request) {
+        if (EmailProtocol.BATCH.equalsIgnoreCase(request.getCommand())) return handleBatch(request);
+
+        String[] parts = request.toParts();
+        if (parts.length == 0) return Message.of(EmailProtocol.UNKNOWN_COMMAND);
 
         return switch (parts[0].toUpperCase()) {
             case UserProtocol.REGISTER -> handleRegister(parts);
             case UserProtocol.LOGIN -> handleLogin(parts);
+            case UserProtocol.RESUME -> handleResume(parts);
             case EmailProtocol.SEND_EMAIL -> handleSendEmail(parts);
             case EmailProtocol.GET_EMAILS -> handleGetEmailsFlexible(parts);
             case EmailProtocol.LIST_INBOX -> handleListEmails(parts, false);
@@ -89,8 +147,12 @@ public class ClientHandler implements Runnable {
             case EmailProtocol.MARK_AS_VIEWED -> handleMarkAsViewed(parts);
             case EmailProtocol.SEARCH_RECEIVED -> handleSearchEmails(parts, false);
             case EmailProtocol.SEARCH_SENT -> handleSearchEmails(parts, true);
+            case EmailProtocol.LIST_SINCE, EmailProtocol.LIST_BEFORE, EmailProtocol.LIST_BETWEEN -> handleListRange(parts);
+            case EmailProtocol.COUNTS -> handleCounts(parts);
+            case EmailProtocol.GET_EMAIL -> handleGetEmail(parts);
             case UserProtocol.LOGOUT -> handleLogout();
-            default -> EmailProtocol.UNKNOWN_COMMAND;
+            case CommonProtocol.PING -> Message.of(CommonProtocol.PONG);
+            default -> Message.of(EmailProtocol.UNKNOWN_COMMAND);
         };
     }
 
@@ -100,19 +162,23 @@ public class ClientHandler implements Runnable {
      * If the user already exists, it returns an appropriate message.
      *
      * @param parts The parts of the request string.
-     * @return The response string indicating the result of the registration.
+     * @return The response message indicating the result of the registration.
      */
-    private String handleRegister(String[] parts) {
-        if (parts.length != 5) return UserProtocol.REGISTER + CommonProtocol.SEP + UserProtocol.INVALID_FORMAT;
+    private Message handleRegister(String[] parts) {
+        if (parts.length != 5) return Message.of(UserProtocol.REGISTER, UserProtocol.INVALID_FORMAT);
 
         // Check if the user already exists
         try {
             userManager.registerUser(parts[1], parts[2], parts[3], parts[4]);
-            return UserProtocol.REGISTER + CommonProtocol.SEP + UserProtocol.SUCCESS;
+            return Message.of(UserProtocol.REGISTER, UserProtocol.SUCCESS);
         } catch (UserAlreadyExistsException e) {
-            return UserProtocol.REGISTER + CommonProtocol.SEP + UserProtocol.USER_ALREADY_EXISTS;
+            return Message.of(UserProtocol.REGISTER, UserProtocol.USER_ALREADY_EXISTS);
         } catch (InvalidUserDetailsException e) {
-            return UserProtocol.REGISTER + CommonProtocol.SEP + UserProtocol.INVALID_DETAILS + CommonProtocol.SEP + e.getMessage();
+            return Message.of(UserProtocol.REGISTER, UserProtocol.INVALID_DETAILS, e.getMessage());
+        } catch (ServerBusyException e) {
+            return Message.of(UserProtocol.REGISTER, UserProtocol.SERVER_BUSY, e.getMessage());
+        } catch (JournalException e) {
+            return Message.of(UserProtocol.REGISTER, UserProtocol.FAILURE);
         }
     }
 
@@ -120,25 +186,66 @@ public class ClientHandler implements Runnable {
      * Handles the LOGIN command.
      * It logs in a user with the provided username and password
      * If the user is not found or the credentials are invalid, it returns an appropriate message.
+     * On success it returns the token of a new session, which other connections can log in with using RESUME.
+     * A session the connection was logged in with before ends.
      *
      * @param parts The parts of the request string.
-     * @return The response string indicating the result of the login attempt.
+     * @return The response message indicating the result of the login attempt.
      */
-    private String handleLogin(String[] parts) {
-        if (parts.length != 3) return UserProtocol.LOGIN + CommonProtocol.SEP + UserProtocol.INVALID_FORMAT;
+    private Message handleLogin(String[] parts) {
+        if (parts.length != 3) return Message.of(UserProtocol.LOGIN, UserProtocol.INVALID_FORMAT);
 
         try {
             String email = parts[1];
             String password = parts[2];
             userManager.loginUser(email, password);
             userManager.setLoggedIn(email, true);
-            loggedInUserEmail = email;
-            return UserProtocol.LOGIN + CommonProtocol.SEP + UserProtocol.SUCCESS;
+            emailManager.loadMailbox(email);
+            bindSession(email, sessions.create(email));
+            return Message.of(UserProtocol.LOGIN, UserProtocol.SUCCESS, sessionToken);
         } catch (UserNotFoundException e) {
-            return UserProtocol.LOGIN + CommonProtocol.SEP + UserProtocol.NO_USER;
+            return Message.of(UserProtocol.LOGIN, UserProtocol.NO_USER);
         } catch (InvalidUserCredentialsException e) {
-            return UserProtocol.LOGIN + CommonProtocol.SEP + UserProtocol.INVALID_CREDENTIALS;
+            return Message.of(UserProtocol.LOGIN, UserProtocol.INVALID_CREDENTIALS);
+        } catch (ServerBusyException e) {
+            return Message.of(UserProtocol.LOGIN, UserProtocol.SERVER_BUSY, e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the RESUME command.
+     * It logs the connection in as the user of a session started by LOGIN, without checking the password again.
+     * A different session the connection was logged in with before ends.
+     *
+     * @param parts The parts of the request string.
+     * @return The response message with the email of the user, or INVALID_SESSION if the token is unknown or expired.
+     */
+    private Message handleResume(String[] parts) {
+        if (parts.length != 2) return Message.of(UserProtocol.RESUME, UserProtocol.INVALID_FORMAT);
+
+        String email = sessions.resume(parts[1]);
+        if (email == null) {
+            return Message.of(UserProtocol.RESUME, UserProtocol.INVALID_SESSION);
         }
+        userManager.setLoggedIn(email, true);
+        emailManager.loadMailbox(email);
+        bindSession(email, parts[1]);
+        return Message.of(UserProtocol.RESUME, UserProtocol.SUCCESS, email);
+    }
+
+    /**
+     * Logs the connection in with a session, ending the one it was logged in with before,
+     * so a session is never left behind that nobody holds.
+     *
+     * @param email The email of the user
+     * @param token The token of the session
+     */
+    private void bindSession(String email, String token) {
+        if (sessionToken != null && !sessionToken.equals(token)) {
+            sessions.remove(sessionToken);
+        }
+        loggedInUserEmail = email;
+        sessionToken = token;
     }
 
     /**
@@ -146,11 +253,11 @@ public class ClientHandler implements Runnable {
      * It sends an email from one user to another.
      *
      * @param parts The parts of the request string.
-     * @return The response string indicating the result of the email sending.
+     * @return The response message indicating the result of the email sending.
      */
-    private String handleSendEmail(String[] parts) {
+    private Message handleSendEmail(String[] parts) {
         // Format should be: SENDEMAIL##sender##recipient##subject##content
-        if (parts.length != 5) return EmailProtocol.SEND_EMAIL + CommonProtocol.SEP + EmailProtocol.INVALID_FORMAT;
+        if (parts.length != 5) return Message.of(EmailProtocol.SEND_EMAIL, EmailProtocol.INVALID_FORMAT);
 
         String sender = parts[1];
         String recipient = parts[2];
@@ -159,13 +266,13 @@ public class ClientHandler implements Runnable {
 
         try {
             String emailId = emailManager.sendEmail(sender, recipient, subject, content);
-            return EmailProtocol.SEND_EMAIL + CommonProtocol.SEP + EmailProtocol.SUCCESS + CommonProtocol.SEP + emailId;
+            return Message.of(EmailProtocol.SEND_EMAIL, EmailProtocol.SUCCESS, emailId);
         } catch (UserNotFoundException e) {
-            return EmailProtocol.SEND_EMAIL + CommonProtocol.SEP + EmailProtocol.RECIPIENT_NOT_FOUND;
+            return Message.of(EmailProtocol.SEND_EMAIL, EmailProtocol.RECIPIENT_NOT_FOUND);
         } catch (InvalidEmailDetailsException e) {
-            return EmailProtocol.SEND_EMAIL + CommonProtocol.SEP + EmailProtocol.INVALID_DETAILS + CommonProtocol.SEP + e.getMessage();
+            return Message.of(EmailProtocol.SEND_EMAIL, EmailProtocol.INVALID_DETAILS, e.getMessage());
         } catch (Exception e) {
-            return EmailProtocol.SEND_EMAIL + CommonProtocol.SEP + EmailProtocol.FAILURE + CommonProtocol.SEP + e.getMessage();
+            return Message.of(EmailProtocol.SEND_EMAIL, EmailProtocol.FAILURE, e.getMessage());
         }
     }
 
@@ -175,45 +282,248 @@ public class ClientHandler implements Runnable {
      *
      * @param parts The parts of the request string.
      * @param isSent Indicates whether to retrieve sent emails (true) or received emails (false).
-     * @return The response string indicating the result of the email retrieval.
+     * @return The response message indicating the result of the email retrieval.
+     */
+    private Message handleListEmails(String[] parts, boolean isSent) {
+        // Format: LIST_INBOX##userEmail or LIST_SENT##userEmail, optionally followed by list options
+        if (parts.length < 2) return Message.of(EmailProtocol.GET_EMAILS, EmailProtocol.INVALID_FORMAT);
+        ListOptions options = ListOptions.parse(parts, 2);
+        if (options == null) return Message.of(EmailProtocol.GET_EMAILS, EmailProtocol.INVALID_FORMAT);
+        return listEmails(parts[1], isSent, options);
+    }
+
+    /**
+     * Lists a user's inbox or sent items as a GETEMAILS response.
+     *
+     * @param userEmail The email address of the user.
+     * @param isSent Indicates whether to retrieve sent emails (true) or received emails (false).
+     * @param options The list options of the request.
+     * @return The response message indicating the result of the email retrieval.
+     */
+    private Message listEmails(String userEmail, boolean isSent, ListOptions options) {
+        try {
+            EmailPage page = isSent ?
+                    emailManager.getSentEmails(userEmail, null, null, options.cursor(), options.limit()) :
+                    emailManager.getReceivedEmails(userEmail, null, null, options.cursor(), options.limit());
+
+            return listResponse(EmailProtocol.GET_EMAILS, page, options);
+        } catch (UserNotFoundException e) {
+            return Message.of(EmailProtocol.GET_EMAILS, UserProtocol.NO_USER);
+        } catch (IllegalArgumentException e) {
+            return Message.of(EmailProtocol.GET_EMAILS, EmailProtocol.INVALID_FORMAT);
+        } catch (Exception e) {
+            return Message.of(EmailProtocol.GET_EMAILS, EmailProtocol.FAILURE, e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the LIST_SINCE, LIST_BEFORE and LIST_BETWEEN commands.
+     * It retrieves the emails of a user's inbox or sent items in a time range, newest first.
+     * Times are ISO dates ("2025-01-31") or date-times ("2025-01-31T18:30"); a date means the start of that day.
+     * The start of a range is inclusive and the end is exclusive.
+     *
+     * @param parts The parts of the request string.
+     * @return The response message with the emails in the range, in the same format as GETEMAILS.
      */
-    private String handleListEmails(String[] parts, boolean isSent) {
-        if (parts.length != 2) return EmailProtocol.GET_EMAILS + CommonProtocol.SEP + EmailProtocol.INVALID_FORMAT;
+    private Message handleListRange(String[] parts) {
+        // Format: LIST_SINCE##userEmail##INBOX|SENT##from, LIST_BEFORE##userEmail##INBOX|SENT##to
+        // or LIST_BETWEEN##userEmail##INBOX|SENT##from##to
+        // Each may be followed by list options
+        String command = parts[0].toUpperCase();
+        int expected = command.equals(EmailProtocol.LIST_BETWEEN) ? 5 : 4;
+        if (parts.length < expected) return Message.of(command, EmailProtocol.INVALID_FORMAT);
+        ListOptions options = ListOptions.parse(parts, expected);
+        if (options == null) return Message.of(command, EmailProtocol.INVALID_FORMAT);
 
         String userEmail = parts[1];
+        String box = parts[2].toUpperCase();
+        if (!box.equals(EmailProtocol.INBOX) && !box.equals(EmailProtocol.SENT)) {
+            return Message.of(command, EmailProtocol.INVALID_FORMAT);
+        }
 
+        LocalDateTime from = null;
+        LocalDateTime to = null;
         try {
-            List<Email> emails = isSent ?
-                    emailManager.getSentEmails(userEmail) :
-                    emailManager.getReceivedEmails(userEmail);
+            switch (command) {
+                case EmailProtocol.LIST_SINCE -> from = parseTime(parts[3]);
+                case EmailProtocol.LIST_BEFORE -> to = parseTime(parts[3]);
+                default -> {
+                    from = parseTime(parts[3]);
+                    to = parseTime(parts[4]);
+                }
+            }
+        } catch (DateTimeParseException e) {
+            return Message.of(command, EmailProtocol.INVALID_FORMAT);
+        }
 
-            StringBuilder response = new StringBuilder(EmailProtocol.GET_EMAILS + CommonProtocol.SEP + EmailProtocol.SUCCESS);
+        try {
+            EmailPage page = box.equals(EmailProtocol.SENT)
+                    ? emailManager.getSentEmails(userEmail, from, to, options.cursor(), options.limit())
+                    : emailManager.getReceivedEmails(userEmail, from, to, options.cursor(), options.limit());
+            return listResponse(command, page, options);
+        } catch (IllegalArgumentException e) {
+            return Message.of(command, EmailProtocol.INVALID_FORMAT);
+        } catch (Exception e) {
+            return Message.of(command, EmailProtocol.FAILURE, e.getMessage());
+        }
+    }
 
-            if (emails.isEmpty()) {
-                response.append(CommonProtocol.SEP).append(EmailProtocol.NO_EMAILS);
-            } else {
-                for (Email email : emails) {
-                    response.append(CommonProtocol.SEP)
-                            .append(email.getId())
-                            .append(CommonProtocol.SEP)
-                            .append(email.getSender())
-                            .append(CommonProtocol.SEP)
-                            .append(email.getSubject())
-                            .append(CommonProtocol.SEP)
-                            .append(email.getContent())
-                            .append(CommonProtocol.SEP)
-                            .append(email.getTimestamp())
-                            .append(CommonProtocol.SEP)
-                            .append(email.isViewed());
+    /**
+     * Handles the COUNTS command.
+     * It returns the folder sizes of a user without sending any email, so folder badges stay cheap to refresh.
+     *
+     * @param parts The parts of the request string.
+     * @return The response message with the inbox total, inbox unread and sent total counts.
+     */
+    private Message handleCounts(String[] parts) {
+        // Format: COUNTS##userEmail
+        if (parts.length != 2) return Message.of(EmailProtocol.COUNTS, EmailProtocol.INVALID_FORMAT);
+        try {
+            FolderCounts counts = emailManager.getFolderCounts(parts[1]);
+            return Message.of(EmailProtocol.COUNTS, EmailProtocol.SUCCESS,
+                    counts.inboxTotal(), counts.inboxUnread(), counts.sentTotal());
+        } catch (Exception e) {
+            return Message.of(EmailProtocol.COUNTS, EmailProtocol.FAILURE, e.getMessage());
+        }
+    }
+
+    /**
+     * Handles the GET_EMAIL command.
+     * It returns one full email, so clients can list headers only and fetch a body when it is opened.
+     *
+     * @param parts The parts of the request string.
+     * @return The response message with the ID, sender, recipient, subject, content, timestamp and viewed flag.
+     */
+    private Message handleGetEmail(String[] parts) {
+        // Format: GET_EMAIL##emailId
+        if (parts.length != 2) return Message.of(EmailProtocol.GET_EMAIL, EmailProtocol.INVALID_FORMAT);
+        try {
+            Email email = emailManager.getEmail(parts[1]);
+            return Message.of(EmailProtocol.GET_EMAIL, EmailProtocol.SUCCESS,
+                    email.getId(),
+                    email.getSender(),
+                    email.getRecipient(),
+                    email.getSubject(),
+                    email.getContent(),
+                    email.getTimestamp(),
+                    email.isViewed());
+        } catch (EmailNotFoundException e) {
+            return Message.of(EmailProtocol.GET_EMAIL, EmailProtocol.EMAIL_NOT_FOUND);
+        } catch (Exception e) {
+            return Message.of(EmailProtocol.GET_EMAIL, EmailProtocol.FAILURE, e.getMessage());
+        }
+    }
+
+    /**
+     * Options that may follow the fixed fields of a listing or search request.
+     *
+     * @param headersOnly Send the ID, sender, subject, timestamp, viewed flag, size and snippet instead of the full content
+     * @param limit       The largest number of emails in the response
+     * @param cursor      The cursor ending the previous page, or null for the first page
+     */
+    private record ListOptions(boolean headersOnly, int limit, String cursor) {
+        static final ListOptions DEFAULT = new ListOptions(false, EmailProtocol.MAX_PAGE_SIZE, null);
+
+        /**
+         * Parses the options starting at the given part: HEADERS, LIMIT=n and CURSOR=c.
+         * A LIMIT above MAX_PAGE_SIZE is lowered to it.
+         *
+         * @return The options, or null if an option is not recognised or invalid
+         */
+        static ListOptions parse(String[] parts, int start) {
+            boolean headersOnly = false;
+            int limit = EmailProtocol.MAX_PAGE_SIZE;
+            String cursor = null;
+            for (int i = start; i < parts.length; i++) {
+                String option = parts[i];
+                int separator = option.indexOf(EmailProtocol.OPTION_SEP);
+                String name = (separator < 0 ? option : option.substring(0, separator)).toUpperCase();
+                String value = separator < 0 ? null : option.substring(separator + 1);
+                switch (name) {
+                    case EmailProtocol.HEADERS -> {
+                        if (value != null) return null;
+                        headersOnly = true;
+                    }
+                    case EmailProtocol.LIMIT -> {
+                        try {
+                            limit = Math.min(Integer.parseInt(value), EmailProtocol.MAX_PAGE_SIZE);
+                        } catch (NumberFormatException e) {
+                            return null;
+                        }
+                        if (limit <= 0) return null;
+                    }
+                    case EmailProtocol.CURSOR -> {
+                        if (value == null || value.isEmpty()) return null;
+                        cursor = value;
+                    }
+                    default -> {
+                        return null;
+                    }
                 }
             }
+            return new ListOptions(headersOnly, limit, cursor);
+        }
+    }
 
-            return response.toString();
-        } catch (UserNotFoundException e) {
-            return EmailProtocol.GET_EMAILS + CommonProtocol.SEP + UserProtocol.NO_USER;
-        } catch (Exception e) {
-            return EmailProtocol.GET_EMAILS + CommonProtocol.SEP + EmailProtocol.FAILURE + CommonProtocol.SEP + e.getMessage();
+    /**
+     * Builds a listing response.
+     * Every email is sent as its ID, sender, subject, content, timestamp and viewed flag,
+     * or with the HEADERS option as its ID, sender, subject, timestamp, viewed flag, size and snippet.
+     * If more emails follow, the response ends with CURSOR=c, to be passed back to get the next page.
+     *
+     * @param command The command to answer
+     * @param page    The page of emails to list
+     * @param options The list options of the request
+     * @return The response message
+     */
+    private static Message listResponse(String command, EmailPage page, ListOptions options) {
+        Message response = Message.of(command, EmailProtocol.SUCCESS);
+
+        if (page.emails().isEmpty()) {
+            response.add(EmailProtocol.NO_EMAILS);
+        } else if (options.headersOnly()) {
+            for (Email email : page.emails()) {
+                response.add(email.getId())
+                        .add(email.getSender())
+                        .add(email.getSubject())
+                        .add(email.getTimestamp())
+                        .add(email.isViewed())
+                        .add(email.getSize())
+                        .add(email.getSnippet());
+            }
+        } else {
+            for (Email email : page.emails()) {
+                response.add(email.getId())
+                        .add(email.getSender())
+                        .add(email.getSubject())
+                        .add(email.getContent())
+                        .add(email.getTimestamp())
+                        .add(email.isViewed());
+            }
+        }
+        addCursor(response, page);
+
+        return response;
+    }
+
+    /**
+     * Ends a response with the cursor of the next page, if there is one.
+     */
+    private static void addCursor(Message response, EmailPage page) {
+        if (page.nextCursor() != null) {
+            response.add(EmailProtocol.CURSOR + EmailProtocol.OPTION_SEP + page.nextCursor());
+        }
+    }
+
+    /**
+     * Parses an ISO date or date-time, a date meaning the start of that day.
+     */
+    private static LocalDateTime parseTime(String text) {
+        String trimmed = text.trim();
+        if (trimmed.indexOf('T') < 0) {
+            return LocalDate.parse(trimmed).atStartOfDay();
         }
+        return LocalDateTime.parse(trimmed);
     }
 
     /**
@@ -221,25 +531,29 @@ public class ClientHandler implements Runnable {
      * It retrieves emails for a user, either from the inbox or sent items.
      *
      * @param parts The parts of the request string.
-     * @return The response string indicating the result of the email retrieval.
+     * @return The response message indicating the result of the email retrieval.
      */
     // New flexible GETEMAILS handler
-    private String handleGetEmailsFlexible(String[] parts) {
-        // Supports: GETEMAILS##user, GETEMAILS##user##INBOX, GETEMAILS##user##SENT
+    private Message handleGetEmailsFlexible(String[] parts) {
+        // Supports: GETEMAILS##user, GETEMAILS##user##INBOX, GETEMAILS##user##SENT,
+        // the last two optionally followed by list options such as HEADERS
         if (parts.length == 2) {
             // Default to inbox
-            return handleListEmails(new String[]{EmailProtocol.GET_EMAILS, parts[1]}, false);
-        } else if (parts.length == 3) {
+            return listEmails(parts[1], false, ListOptions.DEFAULT);
+        } else if (parts.length >= 3) {
             String box = parts[2].toUpperCase();
-            if (box.equals(EmailProtocol.INBOX)) {
-                return handleListEmails(new String[]{EmailProtocol.GET_EMAILS, parts[1]}, false);
+            ListOptions options = ListOptions.parse(parts, 3);
+            if (options == null) {
+                return Message.of(EmailProtocol.GET_EMAILS, EmailProtocol.INVALID_FORMAT);
+            } else if (box.equals(EmailProtocol.INBOX)) {
+                return listEmails(parts[1], false, options);
             } else if (box.equals(EmailProtocol.SENT)) {
-                return handleListEmails(new String[]{EmailProtocol.GET_EMAILS, parts[1]}, true);
+                return listEmails(parts[1], true, options);
             } else {
-                return EmailProtocol.GET_EMAILS + CommonProtocol.SEP + EmailProtocol.INVALID_FORMAT;
+                return Message.of(EmailProtocol.GET_EMAILS, EmailProtocol.INVALID_FORMAT);
             }
         } else {
-            return EmailProtocol.GET_EMAILS + CommonProtocol.SEP + EmailProtocol.INVALID_FORMAT;
+            return Message.of(EmailProtocol.GET_EMAILS, EmailProtocol.INVALID_FORMAT);
         }
     }
 
@@ -248,105 +562,133 @@ public class ClientHandler implements Runnable {
      * It marks an email as viewed.
      *
      * @param parts The parts of the request string.
-     * @return The response string indicating the result of the email marking.
+     * @return The response message indicating the result of the email marking.
      */
-    private String handleMarkAsViewed(String[] parts) {
+    private Message handleMarkAsViewed(String[] parts) {
         // Format: MARKASVIEWED##emailId
-        if (parts.length != 2) return EmailProtocol.MARK_AS_VIEWED + CommonProtocol.SEP + EmailProtocol.INVALID_FORMAT;
+        if (parts.length != 2) return Message.of(EmailProtocol.MARK_AS_VIEWED, EmailProtocol.INVALID_FORMAT);
         String emailId = parts[1];
         try {
             emailManager.markEmailAsViewed(emailId);
-            return EmailProtocol.MARK_AS_VIEWED + CommonProtocol.SEP + EmailProtocol.SUCCESS;
+            return Message.of(EmailProtocol.MARK_AS_VIEWED, EmailProtocol.SUCCESS);
         } catch (Exception e) {
-            return EmailProtocol.MARK_AS_VIEWED + CommonProtocol.SEP + EmailProtocol.FAILURE + CommonProtocol.SEP + e.getMessage();
+            return Message.of(EmailProtocol.MARK_AS_VIEWED, EmailProtocol.FAILURE, e.getMessage());
         }
     }
 
     /**
      * Handles the SEARCH_RECEIVED and SEARCH_SENT commands.
-     * It searches for emails based on a query string.
+     * It searches for emails based on a query string, using the user's search index.
      *
      * @param parts The parts of the request string.
      * @param isSent Indicates whether to search in sent emails (true) or received emails (false).
-     * @return The response string indicating the result of the email search.
+     * @return The response message indicating the result of the email search.
      */
-    private String handleSearchEmails(String[] parts, boolean isSent) {
-        // Format: SEARCH_RECEIVED##userEmail##query or SEARCH_SENT##userEmail##query
-        if (parts.length != 3) return (isSent ? EmailProtocol.SEARCH_SENT : EmailProtocol.SEARCH_RECEIVED) + CommonProtocol.SEP + EmailProtocol.INVALID_FORMAT;
+    private Message handleSearchEmails(String[] parts, boolean isSent) {
+        // Format: SEARCH_RECEIVED##userEmail##query or SEARCH_SENT##userEmail##query,
+        // optionally followed by LIMIT and CURSOR options. Results are always headers only.
+        String command = isSent ? EmailProtocol.SEARCH_SENT : EmailProtocol.SEARCH_RECEIVED;
+        if (parts.length < 3) return Message.of(command, EmailProtocol.INVALID_FORMAT);
+        ListOptions options = ListOptions.parse(parts, 3);
+        if (options == null) return Message.of(command, EmailProtocol.INVALID_FORMAT);
         String userEmail = parts[1];
-        String query = parts[2].toLowerCase();
+        String query = parts[2];
         try {
-            List<Email> emails = isSent ? emailManager.getSentEmails(userEmail) : emailManager.getReceivedEmails(userEmail);
-            StringBuilder response = new StringBuilder((isSent ? EmailProtocol.SEARCH_SENT : EmailProtocol.SEARCH_RECEIVED) + CommonProtocol.SEP + EmailProtocol.SUCCESS);
-            boolean found = false;
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+            EmailPage page = isSent
+                    ? emailManager.searchSentEmails(userEmail, query, options.cursor(), options.limit())
+                    : emailManager.searchReceivedEmails(userEmail, query, options.cursor(), options.limit());
+            List<Email> emails = page.emails();
+            Message response = Message.of(command, EmailProtocol.SUCCESS);
             for (Email email : emails) {
-                String formattedDate = "";
-                try {
-                    formattedDate = email.getTimestamp().format(formatter);
-                } catch (Exception ignored) {}
-                boolean match = email.getSubject().toLowerCase().contains(query)
-                        || email.getSender().toLowerCase().contains(query)
-                        || email.getRecipient().toLowerCase().contains(query)
-                        || formattedDate.contains(query);
-                if (match) {
-                    found = true;
-                    if (isSent) {
-                        // ID, recipient, subject, timestamp, viewed
-                        response.append(CommonProtocol.SEP)
-                                .append(email.getId())
-                                .append(CommonProtocol.SEP)
-                                .append(email.getRecipient())
-                                .append(CommonProtocol.SEP)
-                                .append(email.getSubject())
-                                .append(CommonProtocol.SEP)
-                                .append(email.getTimestamp())
-                                .append(CommonProtocol.SEP)
-                                .append(email.isViewed());
-                    } else {
-                        // ID, sender, subject, timestamp, viewed
-                        response.append(CommonProtocol.SEP)
-                                .append(email.getId())
-                                .append(CommonProtocol.SEP)
-                                .append(email.getSender())
-                                .append(CommonProtocol.SEP)
-                                .append(email.getSubject())
-                                .append(CommonProtocol.SEP)
-                                .append(email.getTimestamp())
-                                .append(CommonProtocol.SEP)
-                                .append(email.isViewed());
-                    }
+                if (isSent) {
+                    // ID, recipient, subject, timestamp, viewed
+                    response.add(email.getId())
+                            .add(email.getRecipient())
+                            .add(email.getSubject())
+                            .add(email.getTimestamp())
+                            .add(email.isViewed());
+                } else {
+                    // ID, sender, subject, timestamp, viewed
+                    response.add(email.getId())
+                            .add(email.getSender())
+                            .add(email.getSubject())
+                            .add(email.getTimestamp())
+                            .add(email.isViewed());
                 }
             }
-            if (!found) {
-                response.append(CommonProtocol.SEP).append(EmailProtocol.NO_EMAILS);
+            if (emails.isEmpty()) {
+                response.add(EmailProtocol.NO_EMAILS);
             }
-            return response.toString();
+            addCursor(response, page);
+            return response;
+        } catch (IllegalArgumentException e) {
+            return Message.of(command, EmailProtocol.INVALID_FORMAT);
         } catch (Exception e) {
-            return (isSent ? EmailProtocol.SEARCH_SENT : EmailProtocol.SEARCH_RECEIVED) + CommonProtocol.SEP + EmailProtocol.FAILURE + CommonProtocol.SEP + e.getMessage();
+            return Message.of(command, EmailProtocol.FAILURE, e.getMessage());
         }
     }
 
+    /**
+     * Handles the BATCH command.
+     * Every sub-command is run in order as if it had been sent on its own, and its response,
+     * with its own status code, is added to one combined response.
+     * LOGOUT, EXIT and nested BATCH commands are not allowed inside a batch.
+     *
+     * @param request The BATCH request, with one nested message per sub-command.
+     * @return The response message holding one nested response per sub-command.
+     */
+    private Message handleBatch(Message request) {
+        List<Object> subCommands = request.getFields();
+        if (subCommands.isEmpty()) return Message.of(EmailProtocol.BATCH, EmailProtocol.INVALID_FORMAT);
+        if (subCommands.size() > CommonProtocol.MAX_BATCH_SIZE) {
+            return Message.of(EmailProtocol.BATCH, EmailProtocol.BATCH_TOO_LARGE, CommonProtocol.MAX_BATCH_SIZE);
+        }
+
+        Message response = Message.of(EmailProtocol.BATCH, EmailProtocol.SUCCESS);
+        for (Object field : subCommands) {
+            if (!(field instanceof Message subCommand)) {
+                return Message.of(EmailProtocol.BATCH, EmailProtocol.INVALID_FORMAT);
+            }
+            String command = subCommand.getCommand().toUpperCase();
+            if (command.equals(EmailProtocol.BATCH) || command.equals(UserProtocol.LOGOUT) || command.equals(CommonProtocol.EXIT)) {
+                response.add(Message.of(command, EmailProtocol.INVALID_FORMAT));
+            } else {
+                response.add(handleRequest(subCommand));
+            }
+        }
+        return response;
+    }
+
     /**
      * Handles the LOGOUT command.
      * It logs out the currently logged-in user.
      *
-     * @return The response string indicating the result of the logout attempt.
+     * @return The response message indicating the result of the logout attempt.
      */
-    private String handleLogout() {
+    private Message handleLogout() {
         if (loggedInUserEmail != null) {
             userManager.setLoggedIn(loggedInUserEmail, false);
             String oldUser = loggedInUserEmail;
             loggedInUserEmail = null;
+            sessions.remove(sessionToken);
+            sessionToken = null;
 
             // Mark socket to close
             shouldTerminate = true;
 
-            return UserProtocol.LOGOUT + CommonProtocol.SEP + UserProtocol.SUCCESS + CommonProtocol.SEP + oldUser;
+            return Message.of(UserProtocol.LOGOUT, UserProtocol.SUCCESS, oldUser);
         } else {
-            return UserProtocol.LOGOUT + CommonProtocol.SEP + UserProtocol.FAILURE + CommonProtocol.SEP + "Not logged in.";
+            return Message.of(UserProtocol.LOGOUT, UserProtocol.FAILURE, "Not logged in.");
         }
     }
 
-
+    /**
+     * Checks whether the connection should be closed after the last response,
+     * for example after a successful LOGOUT.
+     *
+     * @return true if the connection should be closed
+     */
+    boolean shouldTerminate() {
+        return shouldTerminate;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,45 @@
+package server;
+
+/**
+ * ExecutionMode describes how the server runs the ClientHandler for each accepted connection.
+ * The mode is chosen once at startup using the "server.executor" system property.
+ */
+public enum ExecutionMode {
+    THREAD_PER_CONNECTION("thread"),
+    VIRTUAL_THREADS("virtual"),
+    BOUNDED_POOL("pool"),
+    NIO("nio");
+
+    private final String propertyValue;
+
+    ExecutionMode(String propertyValue) {
+        this.propertyValue = propertyValue;
+    }
+
+    /**
+     * Gets the value used to select this mode on the command line.
+     *
+     * @return the property value of the mode
+     */
+    public String getPropertyValue() {
+        return propertyValue;
+    }
+
+    /**
+     * Resolves a mode from its property value.
+     * If the value is missing or not recognised, the original thread per connection mode is used.
+     *
+     * @param value the property value, e.g. "virtual"
+     * @return the matching execution mode
+     */
+    public static ExecutionMode fromPropertyValue(String value) {
+        if (value != null) {
+            for (ExecutionMode mode : values()) {
+                if (mode.propertyValue.equalsIgnoreCase(value.trim())) {
+                    return mode;
+                }
+            }
+        }
+        return THREAD_PER_CONNECTION;
+    }
+}
@@ -0,0 +1,585 @@
+package server;
+
+import lombok.extern.slf4j.Slf4j;
+import utils.protocols.BinaryProtocol;
+import utils.protocols.CommonProtocol;
+import utils.protocols.EmailProtocol;
+import utils.protocols.FrameCodec;
+import utils.protocols.Message;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * NioConnection holds the state of one client connection on the NIO server.
+ * All network reads, writes and TLS work through the SSLEngine happen on the selector thread,
+ * while requests are handed to a worker which runs them through the ClientHandler command layer.
+ * The network and application buffers are borrowed from the BufferPool of the selector thread while bytes
+ * are in flight and given back once they are handled, so an idle connection holds only its SSLEngine
+ * and its ClientHandler.
+ */
+@Slf4j
+public class NioConnection {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ClientHandler handler;
+    private final SelectionKey key;
+    private final ServerStats stats;
+    private final BufferPool buffers;
+    private final long acceptedAt = System.currentTimeMillis();
+
+    // Encrypted bytes read from the socket and encrypted bytes to write, null while there are none
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    // Capacity of the buffer records are decrypted into, only raised if the session allows larger records
+    private int appBufferSize;
+
+    // Decrypted bytes that do not yet form a complete request line or frame, null while there are none
+    private byte[] inbound;
+    private int inboundLength = 0;
+    private int scanFrom = 0;
+
+    // Null until the first bytes show whether the client speaks v1 text or v2 binary frames
+    private Boolean binary = null;
+
+    // Guarded by this: requests waiting for a worker and responses waiting to be encrypted
+    private final Deque<Message> pendingRequests = new ArrayDeque<>();
+    private final Deque<ByteBuffer> pendingResponses = new ArrayDeque<>();
+    private boolean processing = false;
+    private boolean closeAfterFlush = false;
+
+    private boolean closed = false;
+    // Set while the delegated tasks of the SSLEngine run on a worker, cleared by that worker
+    private volatile boolean runningTasks = false;
+
+    /**
+     * Creates the connection state for an accepted channel.
+     *
+     * @param channel The accepted socket channel
+     * @param engine  The SSLEngine in server mode for this connection
+     * @param handler The ClientHandler used as the command layer
+     * @param key     The selection key of the channel
+     * @param stats   The server statistics, told about the TLS handshake and the close of this connection
+     * @param buffers The buffers of the selector thread, lent to the connection while bytes are in flight
+     */
+    public NioConnection(SocketChannel channel, SSLEngine engine, ClientHandler handler,
+                         SelectionKey key, ServerStats stats, BufferPool buffers) {
+        this.channel = channel;
+        this.engine = engine;
+        this.handler = handler;
+        this.key = key;
+        this.stats = stats;
+        this.buffers = buffers;
+        this.appBufferSize = engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * Called by the selector thread when the channel is readable.
+     * Reads encrypted bytes, decrypts as much as possible and collects complete request lines.
+     *
+     * @return true if new requests are waiting to be processed
+     * @throws IOException if the channel fails
+     */
+    boolean onReadable() throws IOException {
+        if (netIn == null) {
+            netIn = buffers.acquire(engine.getSession().getPacketBufferSize());
+        }
+        int read = channel.read(netIn);
+        if (read < 0) {
+            try {
+                engine.closeInbound();
+            } catch (SSLException ignored) {
+                // The client closed without a close_notify, nothing else to do
+            }
+            close();
+            return false;
+        }
+        pump();
+        return hasPendingRequests();
+    }
+
+    /**
+     * Called by the selector thread when the channel is writable or new responses were queued.
+     *
+     * @throws IOException if the channel fails
+     */
+    void onWritable() throws IOException {
+        pump();
+    }
+
+    /**
+     * Drives the SSLEngine until no more progress can be made with the data available.
+     * Handshake messages, incoming records and queued responses are all handled here. When the engine
+     * needs its delegated tasks run, e.g. to sign the handshake, it stops until takeDelegatedTasks has
+     * handed them to a worker and they are done, so the selector thread never runs them itself.
+     *
+     * @throws IOException if the channel fails
+     */
+    private void pump() throws IOException {
+        boolean progress = true;
+        while (progress && !closed) {
+            progress = false;
+
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                break;
+            }
+
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP || hasPendingResponses()) {
+                progress = wrap();
+            }
+
+            if (netIn != null && netIn.position() > 0 && unwrap()) {
+                progress = true;
+            }
+        }
+        if (!closed) {
+            flush();
+            closeIfDone();
+        }
+        releaseIdleBuffers();
+    }
+
+    /**
+     * Encrypts handshake data or the queued responses into the outgoing buffer.
+     * Pipelined responses are wrapped together, so small responses share one TLS record.
+     *
+     * @return true if any bytes were produced
+     * @throws IOException if the channel fails
+     */
+    private boolean wrap() throws IOException {
+        ByteBuffer[] sources;
+        synchronized (this) {
+            boolean handshaking = engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                    && engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED;
+            sources = handshaking || pendingResponses.isEmpty()
+                    ? new ByteBuffer[]{EMPTY}
+                    : pendingResponses.toArray(new ByteBuffer[0]);
+        }
+
+        if (netOut == null) {
+            netOut = buffers.acquire(engine.getSession().getPacketBufferSize());
+        }
+        SSLEngineResult result = engine.wrap(sources, netOut);
+        recordHandshake(result);
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                // Make room by writing what we have, the selector will call back when writable
+                flush();
+                if (netOut.position() > 0) {
+                    return false;
+                }
+                int packetSize = engine.getSession().getPacketBufferSize();
+                if (netOut.capacity() < packetSize) {
+                    buffers.release(netOut);
+                    netOut = buffers.acquire(packetSize);
+                }
+                return true;
+            case CLOSED:
+                close();
+                return false;
+            default:
+                break;
+        }
+
+        synchronized (this) {
+            while (!pendingResponses.isEmpty() && !pendingResponses.peek().hasRemaining()) {
+                pendingResponses.poll();
+            }
+        }
+        return result.bytesProduced() > 0 || result.bytesConsumed() > 0;
+    }
+
+    /**
+     * Decrypts buffered network bytes into application bytes and splits them into requests.
+     * The application bytes are always moved out of the borrowed buffer before it is given back.
+     *
+     * @return true if any bytes were consumed or produced
+     * @throws IOException if the channel fails
+     */
+    private boolean unwrap() throws IOException {
+        ByteBuffer appIn = buffers.acquire(appBufferSize);
+        try {
+            netIn.flip();
+            SSLEngineResult result = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            recordHandshake(result);
+
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    // Wait for more bytes, making sure a whole record fits in the buffer
+                    int packetSize = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < packetSize) {
+                        ByteBuffer bigger = buffers.acquire(packetSize);
+                        netIn.flip();
+                        bigger.put(netIn);
+                        buffers.release(netIn);
+                        netIn = bigger;
+                    }
+                    return false;
+                case BUFFER_OVERFLOW:
+                    // Nothing was decrypted, the next unwrap borrows a buffer the record fits in
+                    appBufferSize = Math.max(engine.getSession().getApplicationBufferSize(), appIn.capacity() * 2);
+                    return true;
+                case CLOSED:
+                    close();
+                    return false;
+                default:
+                    break;
+            }
+
+            if (appIn.position() > 0) {
+                collectRequests(appIn);
+            }
+            return result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+        } finally {
+            buffers.release(appIn);
+        }
+    }
+
+    /**
+     * Moves decrypted bytes into the inbound buffer and queues every complete request.
+     * The first bytes decide the protocol: the v2 preamble switches the connection to binary frames,
+     * anything else is read as newline terminated v1 text.
+     * Bytes that do not form a complete request yet are kept until more arrive.
+     *
+     * @param appIn The decrypted bytes
+     * @throws IOException if a request is larger than allowed or the preamble is invalid
+     */
+    private void collectRequests(ByteBuffer appIn) throws IOException {
+        appIn.flip();
+        int count = appIn.remaining();
+        if (inbound == null) {
+            inbound = new byte[Math.max(1024, count)];
+        } else if (inboundLength + count > inbound.length) {
+            inbound = Arrays.copyOf(inbound, Math.max(inbound.length * 2, inboundLength + count));
+        }
+        appIn.get(inbound, inboundLength, count);
+        inboundLength += count;
+
+        int consumed = 0;
+        if (binary == null) {
+            if (inbound[0] != BinaryProtocol.PREAMBLE[0]) {
+                binary = false;
+            } else if (inboundLength >= BinaryProtocol.PREAMBLE.length) {
+                if (!Arrays.equals(inbound, 0, BinaryProtocol.PREAMBLE.length,
+                        BinaryProtocol.PREAMBLE, 0, BinaryProtocol.PREAMBLE.length)) {
+                    throw new ProtocolException("Unsupported protocol preamble");
+                }
+                binary = true;
+                consumed = BinaryProtocol.PREAMBLE.length;
+                synchronized (this) {
+                    pendingResponses.add(ByteBuffer.wrap(BinaryProtocol.PREAMBLE));
+                }
+            } else {
+                return;
+            }
+        }
+
+        consumed = binary ? collectFrames(consumed) : collectLines(consumed);
+        System.arraycopy(inbound, consumed, inbound, 0, inboundLength - consumed);
+        inboundLength -= consumed;
+        scanFrom = Math.max(scanFrom - consumed, 0);
+        if (inboundLength == 0) {
+            inbound = null;
+        }
+
+        if (inboundLength > CommonProtocol.MAX_MESSAGE_BYTES + 4) {
+            throw new IOException("Request exceeds " + CommonProtocol.MAX_MESSAGE_BYTES + " bytes");
+        }
+    }
+
+    /**
+     * Queues every complete text line in the inbound buffer.
+     *
+     * @param start The offset of the first unconsumed byte
+     * @return The offset after the last complete line
+     */
+    private int collectLines(int start) {
+        for (int i = Math.max(start, scanFrom); i < inboundLength; i++) {
+            if (inbound[i] == '\n') {
+                int end = i > start && inbound[i - 1] == '\r' ? i - 1 : i;
+                String line = new String(inbound, start, end - start, StandardCharsets.UTF_8);
+                queueRequest(Message.fromText(line.trim()));
+                start = i + 1;
+            }
+        }
+        scanFrom = inboundLength;
+        return start;
+    }
+
+    /**
+     * Queues every complete binary frame in the inbound buffer.
+     *
+     * @param start The offset of the first unconsumed byte
+     * @return The offset after the last complete frame
+     * @throws IOException if a frame is malformed
+     */
+    private int collectFrames(int start) throws IOException {
+        while (inboundLength - start >= 4) {
+            int length = ByteBuffer.wrap(inbound, start, 4).getInt();
+            if (length <= 0 || length > BinaryProtocol.MAX_FRAME_BYTES) {
+                throw new ProtocolException("Invalid frame length " + length);
+            }
+            if (inboundLength - start - 4 < length) {
+                break;
+            }
+            queueRequest(FrameCodec.decode(ByteBuffer.wrap(inbound, start + 4, length)));
+            start += 4 + length;
+        }
+        return start;
+    }
+
+    /**
+     * Queues a request for a worker, unless the connection is closing, e.g. after a LOGOUT.
+     * Otherwise requests sent after the terminating one would keep the connection from closing.
+     */
+    private synchronized void queueRequest(Message request) {
+        if (!closeAfterFlush) {
+            pendingRequests.add(request);
+        }
+    }
+
+    /**
+     * Writes as much of the outgoing buffer as the socket accepts and updates the interest set,
+     * so the selector only waits for OP_WRITE while there is data left to send.
+     *
+     * @throws IOException if the channel fails
+     */
+    private void flush() throws IOException {
+        if (netOut != null) {
+            netOut.flip();
+            while (netOut.hasRemaining()) {
+                if (channel.write(netOut) == 0) {
+                    break;
+                }
+            }
+            netOut.compact();
+        }
+
+        if (key.isValid()) {
+            boolean waiting = hasUnsentBytes() || (hasPendingResponses() && isHandshakeDone());
+            if (runningTasks) {
+                // Nothing can be read or written until the tasks are done, the server pumps the connection then
+                key.interestOps(0);
+            } else {
+                key.interestOps(waiting ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Closes the connection once a terminating response (e.g. LOGOUT) has been fully written.
+     *
+     * @throws IOException if the channel fails
+     */
+    private void closeIfDone() throws IOException {
+        boolean done;
+        synchronized (this) {
+            done = closeAfterFlush && !processing && pendingRequests.isEmpty() && pendingResponses.isEmpty();
+        }
+        if (done && !hasUnsentBytes()) {
+            if (netOut == null) {
+                netOut = buffers.acquire(engine.getSession().getPacketBufferSize());
+            }
+            engine.closeOutbound();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            channel.write(netOut);
+            close();
+        }
+    }
+
+    /**
+     * Takes the delegated tasks the SSLEngine is waiting for, to be run on a worker.
+     * Until they are done the connection neither reads nor writes, the server pumps it again afterwards.
+     *
+     * @return The tasks to run, or null if the engine is not waiting for any or they are already running
+     */
+    Runnable takeDelegatedTasks() {
+        if (closed || runningTasks || engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            return null;
+        }
+        List<Runnable> tasks = new ArrayList<>();
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            tasks.add(task);
+        }
+        if (tasks.isEmpty()) {
+            return null;
+        }
+        runningTasks = true;
+        if (key.isValid()) {
+            key.interestOps(0);
+        }
+        return () -> {
+            try {
+                tasks.forEach(Runnable::run);
+            } finally {
+                runningTasks = false;
+            }
+        };
+    }
+
+    /**
+     * Drops the requests not handled yet and closes the connection once the queued responses are sent.
+     * The selector thread does the close the next time it pumps the connection.
+     */
+    synchronized void closeAfterResponses() {
+        closeAfterFlush = true;
+        pendingRequests.clear();
+    }
+
+    /**
+     * Marks the connection as being processed by a worker.
+     *
+     * @return true if the caller should submit a worker task, false if one is already running
+     */
+    synchronized boolean startProcessing() {
+        if (processing || pendingRequests.isEmpty()) {
+            return false;
+        }
+        processing = true;
+        return true;
+    }
+
+    /**
+     * Runs on a worker thread. Handles the queued requests in order and queues their responses.
+     * Requests of one connection are never processed by two workers at the same time.
+     * If a request fails with an unexpected error, it is answered with a FAILURE and the connection
+     * is closed once that is sent, since the state of its handler is unknown.
+     *
+     * @return true if responses were queued and the selector should be woken up to send them
+     */
+    boolean processRequests() {
+        boolean produced = false;
+        try {
+            while (true) {
+                Message request;
+                synchronized (this) {
+                    request = closeAfterFlush ? null : pendingRequests.poll();
+                    if (request == null) {
+                        processing = false;
+                        return produced;
+                    }
+                }
+
+                byte[] bytes;
+                boolean failed = false;
+                try {
+                    bytes = encode(handler.handleRequest(request));
+                } catch (RuntimeException | Error e) {
+                    log.error("Request {} failed unexpectedly, closing the connection", request.getCommand(), e);
+                    bytes = encode(Message.of(request.getCommand(), EmailProtocol.FAILURE, "Internal server error"));
+                    failed = true;
+                }
+                synchronized (this) {
+                    pendingResponses.add(ByteBuffer.wrap(bytes));
+                    if (failed || handler.shouldTerminate()) {
+                        closeAfterFlush = true;
+                        pendingRequests.clear();
+                    }
+                }
+                produced = true;
+            }
+        } catch (RuntimeException | Error e) {
+            // Not even the failure could be answered; the connection must not stay marked as processing for ever
+            synchronized (this) {
+                processing = false;
+            }
+            throw e;
+        }
+    }
+
+    private byte[] encode(Message response) {
+        return binary
+                ? FrameCodec.encode(response)
+                : (response.toText() + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Closes the channel and cancels its selection key, giving its buffers back.
+     * Only called on the selector thread.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        buffers.release(netIn);
+        buffers.release(netOut);
+        netIn = null;
+        netOut = null;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Error closing channel: {}", e.getMessage(), e);
+        }
+        stats.connectionClosed();
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    SSLEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Gives back the buffers that hold no bytes, so a connection waiting for its client holds none.
+     */
+    private void releaseIdleBuffers() {
+        if (netIn != null && netIn.position() == 0) {
+            buffers.release(netIn);
+            netIn = null;
+        }
+        if (netOut != null && netOut.position() == 0) {
+            buffers.release(netOut);
+            netOut = null;
+        }
+    }
+
+    private boolean hasUnsentBytes() {
+        return netOut != null && netOut.position() > 0;
+    }
+
+    private synchronized boolean hasPendingRequests() {
+        return !pendingRequests.isEmpty();
+    }
+
+    private synchronized boolean hasPendingResponses() {
+        return !pendingResponses.isEmpty();
+    }
+
+    /**
+     * Records a finished handshake. A session created before this connection was accepted
+     * was resumed from the session cache or a session ticket.
+     */
+    private void recordHandshake(SSLEngineResult result) {
+        if (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            stats.handshakeCompleted(engine.getSession().getCreationTime() < acceptedAt);
+        }
+    }
+
+    private boolean isHandshakeDone() {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+}
@@ -0,0 +1,246 @@
+package server;
+
+import lombok.extern.slf4j.Slf4j;
+import model.EmailManagerInterface;
+import model.UserManagerInterface;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * NioServer is a non-blocking server core built on a single selector thread.
+ * TLS is driven through an SSLEngine per connection, and requests are dispatched to a worker pool
+ * that runs them through ClientHandler.handleRequest. An idle connection costs neither a blocked thread
+ * nor a buffer: connections borrow their buffers from a pool of the selector thread while bytes are in flight.
+ * At most -Dserver.nio.buffers buffers (default 256) are kept in the pool for reuse.
+ */
+@Slf4j
+public class NioServer {
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final int MAX_POOLED_BUFFERS = Integer.getInteger("server.nio.buffers", 256);
+
+    private final int port;
+    private final SSLContext sslContext;
+    private final ExecutorService workers;
+    private final ServerStats stats;
+    private final UserManagerInterface userManager;
+    private final EmailManagerInterface emailManager;
+    private final SessionStore sessions;
+    // Only used by the selector thread
+    private final BufferPool buffers;
+
+    // Connections with responses ready to send, handed back to the selector thread by the workers
+    private final Queue<NioConnection> writeReady = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+    private volatile int localPort;
+
+    /**
+     * Creates a NIO server.
+     *
+     * @param port         The port to listen on
+     * @param sslContext   The SSL context used to create an SSLEngine per connection
+     * @param workers      The worker pool running the command layer
+     * @param stats        The statistics to update
+     * @param userManager  The UserManager instance for user operations
+     * @param emailManager The EmailManager instance for email operations
+     * @param sessions     The sessions shared by all connections
+     */
+    public NioServer(int port, SSLContext sslContext, ExecutorService workers, ServerStats stats,
+                     UserManagerInterface userManager, EmailManagerInterface emailManager, SessionStore sessions) {
+        this.port = port;
+        this.sslContext = sslContext;
+        this.workers = workers;
+        this.stats = stats;
+        this.userManager = userManager;
+        this.emailManager = emailManager;
+        this.sessions = sessions;
+
+        // One buffer size fits both the encrypted and the decrypted form of a TLS record
+        SSLEngine probe = sslContext.createSSLEngine();
+        int bufferSize = Math.max(probe.getSession().getPacketBufferSize(), probe.getSession().getApplicationBufferSize());
+        this.buffers = new BufferPool(bufferSize, MAX_POOLED_BUFFERS);
+    }
+
+    /**
+     * Runs the selector loop until the running check returns false.
+     *
+     * @param running Checked after each select to see if the server should keep running
+     * @throws IOException if the server channel cannot be opened
+     */
+    public void run(BooleanSupplier running) throws IOException {
+        try (Selector sel = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            selector = sel;
+            serverChannel.bind(new InetSocketAddress(port));
+            localPort = ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            log.info("NIO server listening on port {}", port);
+
+            while (running.getAsBoolean()) {
+                selector.select(SELECT_TIMEOUT_MS);
+                flushWriteReady();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept(serverChannel);
+                    } else {
+                        handleReady(key);
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof NioConnection connection) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the port the server listens on, which is chosen by the system if the server was created with port 0.
+     *
+     * @return the local port, or 0 until the server listens
+     */
+    public int getLocalPort() {
+        return localPort;
+    }
+
+    /**
+     * Accepts all pending connections and registers them for reading.
+     *
+     * @param serverChannel The listening channel
+     */
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            stats.connectionAccepted();
+            channel.configureBlocking(false);
+
+            SSLEngine engine = sslContext.createSSLEngine();
+            engine.setUseClientMode(false);
+            engine.beginHandshake();
+
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioConnection connection = new NioConnection(channel, engine,
+                    new ClientHandler(userManager, emailManager, sessions), key, stats, buffers);
+            key.attach(connection);
+            stats.connectionOpened();
+            log.info("Secure client connected from {}", channel.getRemoteAddress());
+        }
+    }
+
+    /**
+     * Handles a readable or writable connection on the selector thread.
+     *
+     * @param key The selected key
+     */
+    private void handleReady(SelectionKey key) {
+        NioConnection connection = (NioConnection) key.attachment();
+        try {
+            if (key.isWritable()) {
+                connection.onWritable();
+            }
+            if (!connection.isClosed() && key.isReadable() && connection.onReadable()) {
+                submit(connection);
+            }
+            runDelegatedTasks(connection);
+        } catch (IOException e) {
+            log.warn("Closing client connection: {}", e.getMessage());
+            connection.close();
+        }
+    }
+
+    /**
+     * Hands the queued requests of a connection to a worker, unless one is already on it.
+     *
+     * @param connection The connection with pending requests
+     */
+    private void submit(NioConnection connection) {
+        if (!connection.startProcessing()) return;
+        try {
+            workers.execute(() -> {
+                boolean produced;
+                try {
+                    produced = connection.processRequests();
+                } catch (RuntimeException | Error e) {
+                    log.error("Worker failed, closing client connection", e);
+                    connection.closeAfterResponses();
+                    produced = true;
+                }
+                if (produced) {
+                    writeReady.add(connection);
+                    selector.wakeup();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            stats.connectionRejected();
+            log.warn("Worker pool is full, closing client connection");
+            connection.close();
+        }
+    }
+
+    /**
+     * Runs the delegated tasks the SSLEngine of a connection waits for on a worker, such as signing the
+     * handshake, so a burst of handshakes does not hold up the other connections on the selector thread.
+     * The connection is pumped again once they are done.
+     *
+     * @param connection The connection that was just pumped
+     */
+    private void runDelegatedTasks(NioConnection connection) {
+        Runnable tasks = connection.takeDelegatedTasks();
+        if (tasks == null) return;
+        try {
+            workers.execute(() -> {
+                try {
+                    tasks.run();
+                } finally {
+                    writeReady.add(connection);
+                    selector.wakeup();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The pool is full, so the handshake goes ahead here rather than not at all
+            tasks.run();
+            writeReady.add(connection);
+        }
+    }
+
+    /**
+     * Sends the responses produced by workers since the last select, and pumps the connections whose
+     * delegated tasks are done.
+     * A connection may have received more requests while its worker was running, so those are submitted again.
+     */
+    private void flushWriteReady() {
+        NioConnection connection;
+        while ((connection = writeReady.poll()) != null) {
+            if (connection.isClosed()) continue;
+            try {
+                connection.onWritable();
+                submit(connection);
+                runDelegatedTasks(connection);
+            } catch (IOException e) {
+                log.warn("Closing client connection: {}", e.getMessage());
+                connection.close();
+            }
+        }
+    }
+}
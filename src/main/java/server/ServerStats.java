@@ -0,0 +1,220 @@
+package server;
+
+import utils.PasswordHasher;
+import utils.storage.BodyCache;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ServerStats keeps track of thread, connection, queue and TLS handshake counts for the running server.
+ * It is used to compare the execution modes under the same load.
+ * If emails are read through a body cache, its hit ratio and evictions are reported too,
+ * and so are the latencies and refusals of the password hasher.
+ */
+public class ServerStats {
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final AtomicInteger peakConnections = new AtomicInteger();
+    private final AtomicLong tlsHandshakes = new AtomicLong();
+    private final AtomicLong tlsResumptions = new AtomicLong();
+    private volatile ExecutorService executor;
+    private volatile ExecutionMode mode;
+    private volatile BodyCache bodyCache;
+    private volatile PasswordHasher passwordHasher;
+
+    /**
+     * Sets the executor the server is currently dispatching connections to.
+     *
+     * @param mode     the execution mode in use
+     * @param executor the executor running the client handlers
+     */
+    public void setExecutor(ExecutionMode mode, ExecutorService executor) {
+        this.mode = mode;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets the cache email contents are read through.
+     *
+     * @param bodyCache the body cache, or null if there is none
+     */
+    public void setBodyCache(BodyCache bodyCache) {
+        this.bodyCache = bodyCache;
+    }
+
+    /**
+     * Sets the hasher passwords are hashed on.
+     *
+     * @param passwordHasher the password hasher, or null if there is none
+     */
+    public void setPasswordHasher(PasswordHasher passwordHasher) {
+        this.passwordHasher = passwordHasher;
+    }
+
+    /**
+     * Records a connection that was accepted by the server socket.
+     */
+    public void connectionAccepted() {
+        acceptedConnections.incrementAndGet();
+    }
+
+    /**
+     * Records a connection that was refused because the executor was full.
+     */
+    public void connectionRejected() {
+        rejectedConnections.incrementAndGet();
+    }
+
+    /**
+     * Records a connection that started being served.
+     */
+    public void connectionOpened() {
+        int active = activeConnections.incrementAndGet();
+        peakConnections.accumulateAndGet(active, Math::max);
+    }
+
+    /**
+     * Records a connection that was closed.
+     */
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    /**
+     * Records a completed TLS handshake.
+     *
+     * @param resumed true if the session was resumed with an abbreviated handshake
+     */
+    public void handshakeCompleted(boolean resumed) {
+        tlsHandshakes.incrementAndGet();
+        if (resumed) {
+            tlsResumptions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Wraps a client handler so the active connection count is kept up to date
+     * while the handler is running.
+     *
+     * @param handler the handler to wrap
+     * @return the wrapped handler
+     */
+    public Runnable track(Runnable handler) {
+        return () -> {
+            connectionOpened();
+            try {
+                handler.run();
+            } finally {
+                connectionClosed();
+            }
+        };
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.get();
+    }
+
+    public long getRejectedConnections() {
+        return rejectedConnections.get();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public int getPeakConnections() {
+        return peakConnections.get();
+    }
+
+    public long getTlsHandshakes() {
+        return tlsHandshakes.get();
+    }
+
+    public long getTlsResumptions() {
+        return tlsResumptions.get();
+    }
+
+    /**
+     * Gets the share of TLS handshakes that resumed an earlier session.
+     *
+     * @return the resumption ratio between 0 and 1, or 0 if there were no handshakes
+     */
+    public double getTlsResumptionRatio() {
+        long handshakes = getTlsHandshakes();
+        return handshakes == 0 ? 0 : (double) getTlsResumptions() / handshakes;
+    }
+
+    /**
+     * Gets the number of live platform threads in the JVM.
+     * Virtual threads are not included in this count.
+     *
+     * @return the live platform thread count
+     */
+    public int getPlatformThreadCount() {
+        return ManagementFactory.getThreadMXBean().getThreadCount();
+    }
+
+    /**
+     * Gets the number of connections waiting in the pool queue.
+     * Only the bounded pool and NIO modes have a queue, the other modes always return 0.
+     *
+     * @return the queued connection count
+     */
+    public int getQueuedConnections() {
+        if (executor instanceof ThreadPoolExecutor pool) {
+            return pool.getQueue().size();
+        }
+        return 0;
+    }
+
+    /**
+     * Builds a printable summary of the current statistics.
+     *
+     * @return the statistics summary
+     */
+    public String summary() {
+        return "Execution mode: " + (mode == null ? "not started" : mode.getPropertyValue()) + "\n" +
+                "Accepted connections: " + getAcceptedConnections() + "\n" +
+                "Rejected connections: " + getRejectedConnections() + "\n" +
+                "Active connections: " + getActiveConnections() + "\n" +
+                "Peak connections: " + getPeakConnections() + "\n" +
+                "Queued connections: " + getQueuedConnections() + "\n" +
+                "Platform threads: " + getPlatformThreadCount() + "\n" +
+                "TLS handshakes: " + getTlsHandshakes() + "\n" +
+                "TLS resumed sessions: " + getTlsResumptions() +
+                String.format(" (%.1f%%)", getTlsResumptionRatio() * 100) +
+                passwordHasherSummary() +
+                bodyCacheSummary();
+    }
+
+    private String passwordHasherSummary() {
+        PasswordHasher hasher = passwordHasher;
+        if (hasher == null) {
+            return "";
+        }
+        return "\n" +
+                "Password hashes: " + hasher.getHashLatency().getCount() + " on " + hasher.getThreads() + " threads\n" +
+                "Password hashes queued: " + hasher.getQueuedHashes() + " of " + hasher.getQueueCapacity() + "\n" +
+                "Password hashes refused: " + hasher.getRejectedHashes() + "\n" +
+                "Password hash time: " + hasher.getHashLatency().summary() + "\n" +
+                "Password hash wait: " + hasher.getWaitLatency().summary();
+    }
+
+    private String bodyCacheSummary() {
+        BodyCache cache = bodyCache;
+        if (cache == null) {
+            return "";
+        }
+        return "\n" +
+                String.format("Body cache: %d contents, %.1f of %.1f MB", cache.getEntryCount(),
+                        cache.getBytes() / 1048576.0, cache.getMaxBytes() / 1048576.0) + "\n" +
+                "Body cache hits: " + cache.getHits() + String.format(" (%.1f%%)", cache.getHitRatio() * 100) + "\n" +
+                "Body cache misses: " + cache.getMisses() + "\n" +
+                "Body cache evictions: " + cache.getEvictions();
+    }
+}
@@ -0,0 +1,164 @@
+package server;
+
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * SessionStore keeps the sessions handed out by LOGIN, so a client that opens another connection
+ * can log it in with RESUME and its token instead of sending the password again, which costs a full password hash.
+ * <p>
+ * A token is 32 random bytes and expires once it has not been used for the time to live. Using it with RESUME
+ * starts that time again. Sessions are kept in memory only, so they end when the program exits.
+ * The sessions are split over shards, each with its own lock, so logins on many connections do not wait for each other.
+ * Expired sessions are removed from a shard every so often when a session is added to it. It is thread-safe.
+ */
+public class SessionStore {
+    private static final int SHARDS = 16;
+    private static final int TOKEN_BYTES = 32;
+    // Expired sessions are swept from a shard once every this many sessions added to it
+    private static final int SWEEP_INTERVAL = 64;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Duration timeToLive;
+    private final Clock clock;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    /**
+     * A session of a user, replaced whenever it is used so its expiry never changes in place.
+     */
+    private record Session(String email, long expiresAt) {
+    }
+
+    private static class Shard {
+        // Guarded by this
+        private final Map<String, Session> sessions = new HashMap<>();
+        private int addedSinceSweep;
+    }
+
+    /**
+     * Creates a store.
+     *
+     * @param timeToLive How long a session lasts when it is not used
+     * @throws IllegalArgumentException if the time to live is not positive
+     */
+    public SessionStore(Duration timeToLive) {
+        this(timeToLive, Clock.systemUTC());
+    }
+
+    /**
+     * Creates a store that reads the time from a clock.
+     *
+     * @param timeToLive How long a session lasts when it is not used
+     * @param clock      The clock expiry is checked against
+     * @throws IllegalArgumentException if the time to live is not positive
+     */
+    public SessionStore(Duration timeToLive, Clock clock) {
+        if (timeToLive.isNegative() || timeToLive.isZero()) {
+            throw new IllegalArgumentException("Session time to live must be positive: " + timeToLive);
+        }
+        this.timeToLive = timeToLive;
+        this.clock = clock;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Starts a session for a user who just logged in.
+     *
+     * @param email The email of the user
+     * @return The token of the session
+     */
+    public String create(String email) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        // URL-safe without padding, so the token never contains the protocol separator
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+
+        Shard shard = shardOf(token);
+        long now = clock.millis();
+        synchronized (shard) {
+            shard.sessions.put(token, new Session(email, now + timeToLive.toMillis()));
+            if (++shard.addedSinceSweep >= SWEEP_INTERVAL) {
+                shard.addedSinceSweep = 0;
+                sweep(shard, now);
+            }
+        }
+        return token;
+    }
+
+    /**
+     * Resumes a session and starts its time to live again.
+     *
+     * @param token The token of the session
+     * @return The email of the user, or null if there is no such session or it has expired
+     */
+    public String resume(String token) {
+        if (token == null) {
+            return null;
+        }
+        Shard shard = shardOf(token);
+        long now = clock.millis();
+        synchronized (shard) {
+            Session session = shard.sessions.get(token);
+            if (session == null) {
+                return null;
+            }
+            if (session.expiresAt() <= now) {
+                shard.sessions.remove(token);
+                return null;
+            }
+            shard.sessions.put(token, new Session(session.email(), now + timeToLive.toMillis()));
+            return session.email();
+        }
+    }
+
+    /**
+     * Ends a session, e.g. when the user logs out.
+     *
+     * @param token The token of the session, ignored if null
+     */
+    public void remove(String token) {
+        if (token == null) {
+            return;
+        }
+        Shard shard = shardOf(token);
+        synchronized (shard) {
+            shard.sessions.remove(token);
+        }
+    }
+
+    /**
+     * Gets the number of sessions held, including expired ones not swept yet.
+     *
+     * @return the session count
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.sessions.size();
+            }
+        }
+        return size;
+    }
+
+    private Shard shardOf(String token) {
+        return shards[Math.floorMod(token.hashCode(), SHARDS)];
+    }
+
+    private static void sweep(Shard shard, long now) {
+        Iterator<Session> sessions = shard.sessions.values().iterator();
+        while (sessions.hasNext()) {
+            if (sessions.next().expiresAt() <= now) {
+                sessions.remove();
+            }
+        }
+    }
+}
@@ -4,18 +4,35 @@ import exception.FailedToLoadException;
 import exception.FailedToSaveException;
 import lombok.extern.slf4j.Slf4j;
 import model.*;
+import utils.PasswordHasher;
+import utils.SSLUtils;
 import utils.StorageManager;
+import utils.TCPUtils;
+import utils.storage.Journal;
+import utils.storage.JournalRecord;
+import utils.storage.MailboxPager;
+import utils.storage.Snapshotter;
+import utils.storage.StorageFormat;
 
 import javax.net.ssl.*;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.net.Socket;
-import java.security.KeyStore;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * TCPServer class that implements a simple TCP server.
@@ -24,14 +41,36 @@ import java.util.concurrent.ConcurrentHashMap;
 @Slf4j
 public class TCPServer {
     private static final int port = 12345;
-    private static boolean serverRunning = true;
+    private static volatile boolean serverRunning = true;
     private static boolean programRunning = true;
     private static Thread serverThread;
 
+    // Execution mode settings, chosen once at startup with -Dserver.executor=thread|virtual|pool
+    private static final ExecutionMode executionMode =
+            ExecutionMode.fromPropertyValue(System.getProperty("server.executor"));
+    private static final int poolSize =
+            Integer.getInteger("server.pool.size", Runtime.getRuntime().availableProcessors() * 4);
+    private static final int poolQueueCapacity = Integer.getInteger("server.pool.queue", 1000);
+    private static final ServerStats serverStats = new ServerStats();
+    // Password hashing gets its own threads, half the cores by default, so logins cannot take the CPU from other commands
+    private static final PasswordHasher passwordHasher = new PasswordHasher(
+            Integer.getInteger("server.hash.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+            Integer.getInteger("server.hash.queue", 64));
+    // With -Dserver.load.lazy=true only the users are loaded at startup, and each mailbox when it is first needed
+    private static final boolean lazyLoading = Boolean.getBoolean("server.load.lazy");
+
+    // Sessions started by LOGIN, which other connections resume without the password, idle ones end after 30 minutes
+    private static final int DEFAULT_SESSION_MINUTES = 30;
+    private static final SessionStore sessions = new SessionStore(Duration.ofMinutes(sessionMinutes()));
 
     private static final UserManagerInterface userManager= new UserManager();
     private static final EmailManagerInterface emailManager= new EmailManager();
 
+    // Open while the server is running, every change is appended to it before the client gets its response
+    private static Journal journal;
+    // Saves the data in the background while the journal is open
+    private static Snapshotter snapshotter;
+
     /**
      * Main method to start the TCP server.
      * It provides a menu system to start, stop, and exit the server.
@@ -41,12 +80,15 @@ public class TCPServer {
     public static void main(String[] args) {
         Scanner sc = new Scanner(System.in);
         createStartupDirectories();
+        serverStats.setBodyCache(StorageManager.getBodyCache());
+        userManager.setPasswordHasher(passwordHasher);
+        serverStats.setPasswordHasher(passwordHasher);
         handleMainMenuChoice(sc);
     }
 
     /**
      * This method starts the TCP server and listens for incoming connections.
-     * It creates a new thread to handle each client connection.
+     * Each client connection is handed to an executor chosen by the execution mode.
      * It is created in thread so that the menu system can run in parallel
      * this allows the server to be started and stopped without blocking the main thread.
      */
@@ -59,30 +101,31 @@ public class TCPServer {
         serverRunning = true;
         serverThread = new Thread(() -> {
             try {
-                // Load keystore
-                char[] password = "aloysirin".toCharArray(); // replace with your password
-                KeyStore keyStore = KeyStore.getInstance("JKS");
-                keyStore.load(new FileInputStream("serverkeystore.jks"), password);
-
-                // Setup key manager
-                KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
-                kmf.init(keyStore, password);
+                // The SSL context is built once and shared, so its session cache survives restarts of the server
+                SSLContext sslContext = SSLUtils.getServerContext();
+                SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
 
-                // Setup SSL context
-                SSLContext sslContext = SSLContext.getInstance("TLS");
-                sslContext.init(kmf.getKeyManagers(), null, null);
+                ExecutorService executor = createExecutor(executionMode);
+                serverStats.setExecutor(executionMode, executor);
 
-                SSLServerSocketFactory ssf = sslContext.getServerSocketFactory();
+                if (executionMode == ExecutionMode.NIO) {
+                    runNioServer(sslContext, executor);
+                    return;
+                }
 
                 try (SSLServerSocket serverSocket = (SSLServerSocket) ssf.createServerSocket(port)) {
                     System.out.println("Secure TCP Server Started Listening on port " + port);
-                    log.info("Secure server started on port {}", port);
+                    log.info("Secure server started on port {} using {} execution mode", port, executionMode.getPropertyValue());
 
                     while (serverRunning) {
                         Socket clientSocket = serverSocket.accept();
+                        serverStats.connectionAccepted();
+                        trackHandshake((SSLSocket) clientSocket);
                         log.info("Secure client connected from {}", clientSocket.getInetAddress());
-                        new Thread(new ClientHandler(clientSocket, userManager, emailManager)).start();
+                        dispatch(executor, clientSocket);
                     }
+                } finally {
+                    executor.shutdown();
                 }
             } catch (Exception e) {
                 System.out.println("Secure server error: " + e.getMessage());
@@ -94,7 +137,93 @@ public class TCPServer {
         System.out.println("Server is running securely over SSL...");
     }
 
+    /**
+     * Reads how long an unused session lasts from -Dserver.session.minutes.
+     * A value that is not positive would end every session as it starts, so the default is used instead.
+     *
+     * @return The session time to live in minutes
+     */
+    private static int sessionMinutes() {
+        int minutes = Integer.getInteger("server.session.minutes", DEFAULT_SESSION_MINUTES);
+        if (minutes <= 0) {
+            System.out.println("Ignoring server.session.minutes=" + minutes + ", it must be positive. Using "
+                    + DEFAULT_SESSION_MINUTES + " minutes.");
+            log.warn("Ignoring server.session.minutes={}, it must be positive, using {} minutes",
+                    minutes, DEFAULT_SESSION_MINUTES);
+            return DEFAULT_SESSION_MINUTES;
+        }
+        return minutes;
+    }
+
+    /**
+     * Creates the executor that runs the client handlers for the given execution mode.
+     * The bounded pool uses a fixed number of platform threads and a bounded queue,
+     * which the NIO mode also uses as its worker pool. The other modes start a new (platform or virtual) thread per connection.
+     *
+     * @param mode The execution mode to create the executor for
+     * @return The executor for client handlers
+     */
+    private static ExecutorService createExecutor(ExecutionMode mode) {
+        return switch (mode) {
+            case VIRTUAL_THREADS -> Executors.newThreadPerTaskExecutor(
+                    Thread.ofVirtual().name("client-virtual-", 0).factory());
+            case BOUNDED_POOL, NIO -> new ThreadPoolExecutor(poolSize, poolSize,
+                    0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(poolQueueCapacity),
+                    Thread.ofPlatform().name("client-pool-", 0).factory(),
+                    new ThreadPoolExecutor.AbortPolicy());
+            case THREAD_PER_CONNECTION -> Executors.newThreadPerTaskExecutor(
+                    Thread.ofPlatform().name("client-", 0).factory());
+        };
+    }
+
+    /**
+     * Runs the non-blocking NIO server until the server is stopped.
+     * A single selector thread does all network and TLS work, and requests run on the worker pool.
+     *
+     * @param sslContext The SSL context used to create an SSLEngine per connection
+     * @param workers    The worker pool running the command layer
+     * @throws IOException if the server channel cannot be opened
+     */
+    private static void runNioServer(SSLContext sslContext, ExecutorService workers) throws IOException {
+        NioServer nioServer = new NioServer(port, sslContext, workers, serverStats, userManager, emailManager, sessions);
+        System.out.println("Secure NIO Server Started Listening on port " + port);
+        log.info("Secure server started on port {} using nio execution mode", port);
+        try {
+            nioServer.run(() -> serverRunning);
+        } finally {
+            workers.shutdown();
+        }
+    }
 
+    /**
+     * Records the TLS handshake of an accepted socket once it completes.
+     * A session created before the socket was accepted was resumed from the session cache or a session ticket.
+     *
+     * @param clientSocket The accepted client socket
+     */
+    private static void trackHandshake(SSLSocket clientSocket) {
+        long acceptedAt = System.currentTimeMillis();
+        clientSocket.addHandshakeCompletedListener(event ->
+                serverStats.handshakeCompleted(event.getSession().getCreationTime() < acceptedAt));
+    }
+
+    /**
+     * Hands an accepted client socket to the executor.
+     * If the executor is full, the connection is closed straight away instead of blocking the accept loop.
+     *
+     * @param executor     The executor running client handlers
+     * @param clientSocket The accepted client socket
+     */
+    private static void dispatch(ExecutorService executor, Socket clientSocket) {
+        try {
+            executor.execute(serverStats.track(new ClientHandler(clientSocket, userManager, emailManager, sessions)));
+        } catch (RejectedExecutionException e) {
+            serverStats.connectionRejected();
+            log.warn("Rejected client from {}: server is at capacity", clientSocket.getInetAddress());
+            TCPUtils.closeSocket(clientSocket);
+        }
+    }
 
     /**
      * This method handles the main menu options for the user
@@ -113,18 +242,24 @@ public class TCPServer {
                 case "1":
                     //load before starting the server
                     loadAllUsersAndEmails();
+                    openJournal();
                     startServer();
 
                     break;
                 case "2":
                     serverRunning = false;
                     // Stop the server and save data
+                    userManager.setJournal(null);
+                    emailManager.setJournal(null);
                     saveAllUsersAndEmails();
+                    stopSnapshotter();
+                    closeJournal();
                     System.out.println("Server Stopped");
                     log.info("Server Stopped");
                     break;
                 case "3":
                     programRunning = false;
+                    passwordHasher.close();
                     System.out.println("Exiting program...");
                     break;
                 case "4":
@@ -133,6 +268,9 @@ public class TCPServer {
                 case "5":
                     listLoggedInUsers();
                     break;
+                case "6":
+                    System.out.println(serverStats.summary());
+                    break;
                 default:
                     System.out.println("Invalid choice. Please try again.");
             }
@@ -159,6 +297,7 @@ public class TCPServer {
                 case "1":
                     try {
                         StorageManager.clearUsers();
+                        clearJournal();
                         System.out.println("User data cleared.");
                     } catch (FailedToSaveException e) {
                         System.out.println("Failed to clear user data: " + e.getMessage());
@@ -172,6 +311,7 @@ public class TCPServer {
                 case "2":
                     try {
                         StorageManager.clearEmails();
+                        clearJournal();
                         System.out.println("Email data cleared.");
                     } catch (FailedToSaveException e) {
                         System.out.println("Failed to clear email data: " + e.getMessage());
@@ -185,6 +325,7 @@ public class TCPServer {
                 case "3":
                     try {
                         StorageManager.clearFiles();
+                        clearJournal();
                         System.out.println("All data files cleared.");
                     } catch (FailedToSaveException e) {
                         System.out.println("Failed to clear data files: " + e.getMessage());
@@ -218,7 +359,9 @@ public class TCPServer {
 
                 case "7":
                     try {
+                        emailManager.loadAllMailboxes();
                         StorageManager.saveEmails(emailManager.getEmailMap());
+                        StorageManager.saveSearchIndexes(emailManager.getSearchIndexes());
                         System.out.println("Emails saved to file.");
                     } catch (FailedToSaveException e) {
                         System.out.println("Failed to save emails: " + e.getMessage());
@@ -230,6 +373,14 @@ public class TCPServer {
                     break;
 
                 case "8":
+                    convertDataFiles(StorageFormat.BINARY);
+                    break;
+
+                case "9":
+                    convertDataFiles(StorageFormat.JSON);
+                    break;
+
+                case "10":
                     inFileMenu = false;
                     break;
 
@@ -243,13 +394,33 @@ public class TCPServer {
 
     /**
      * This method loads all users and emails from the data files into memory.
-     * It uses the StorageManager to load the data and sets it in the UserManager and EmailManager.
+     * It uses the StorageManager to load the data, replays the journal over it and sets it in the UserManager and EmailManager.
+     * With lazy loading, only the users and the emails changed since the last full save are loaded here,
+     * so the time to start does not grow with the number of emails. The other emails are loaded by mailbox later on.
      * It's an extract method to keep the code clean and organized.
      */
     private static void loadAllUsersAndEmails() {
         try {
-            userManager.setUserMap(new ConcurrentHashMap<>(StorageManager.loadUsers()));
-            emailManager.setEmailMap(new ConcurrentHashMap<>(StorageManager.loadEmails()));
+            // Loaded straight into the maps the managers keep, so the data is only held once
+            ConcurrentHashMap<String, User> users = StorageManager.loadUsers();
+            MailboxPager pager = lazyLoading ? StorageManager.openMailboxPager() : null;
+            ConcurrentHashMap<String, Email> emails = pager != null ? pager.loadDeltas() : StorageManager.loadEmails();
+            Set<String> replayedUsers = new HashSet<>();
+            Set<String> replayedEmails = new HashSet<>();
+            replayJournal(users, emails, replayedUsers, replayedEmails);
+            if (pager != null) {
+                applyReplayedViews(pager, emails, replayedEmails);
+            }
+            userManager.setUserMap(users);
+            emailManager.setEmailMap(emails);
+            emailManager.setMailboxPager(pager);
+            // Replayed changes are only in the journal, so the next snapshot must save them before truncating it
+            userManager.getChangeTracker().markAllChanged(replayedUsers);
+            emailManager.getChangeTracker().markAllChanged(replayedEmails);
+            // The saved indexes only match complete mailboxes, so with lazy loading they are rebuilt on search
+            if (pager == null || pager.isComplete()) {
+                loadSearchIndexes();
+            }
             System.out.println("Data loaded into memory.");
         } catch (FailedToLoadException e) {
             System.out.println("Failed to load data: " + e.getMessage());
@@ -260,14 +431,138 @@ public class TCPServer {
         }
     }
 
+    /**
+     * This method applies the changes journaled since the last save to the loaded data,
+     * so nothing a client was told about is lost when the server was not stopped cleanly.
+     *
+     * @param users          The users loaded from file
+     * @param emails         The emails loaded from file
+     * @param replayedUsers  Receives the keys of the users changed by the journal
+     * @param replayedEmails Receives the IDs of the emails changed by the journal
+     * @throws IOException if the journal cannot be read
+     */
+    private static void replayJournal(Map<String, User> users, Map<String, Email> emails,
+                                      Set<String> replayedUsers, Set<String> replayedEmails) throws IOException {
+        long replayed = Journal.replay(Path.of(Journal.DEFAULT_DIRECTORY), record -> {
+            record.applyTo(users, emails);
+            (record.type() == JournalRecord.Type.REGISTER_USER ? replayedUsers : replayedEmails).add(record.key());
+        });
+        if (replayed > 0) {
+            System.out.println("Replayed " + replayed + " journaled changes.");
+        }
+    }
+
+    /**
+     * This method applies the journaled views of emails that were not loaded with the deltas.
+     * It cannot tell which mailboxes those emails are in, so it loads all of them, which only happens
+     * after the server was not stopped cleanly.
+     *
+     * @param pager          The pager the emails are loaded with
+     * @param emails         The emails loaded so far
+     * @param replayedEmails The IDs of the emails changed by the journal
+     * @throws IOException if the emails cannot be read
+     */
+    private static void applyReplayedViews(MailboxPager pager, Map<String, Email> emails, Set<String> replayedEmails)
+            throws IOException {
+        List<String> missing = replayedEmails.stream().filter(id -> !emails.containsKey(id)).toList();
+        if (missing.isEmpty()) {
+            return;
+        }
+        pager.loadAll(loaded -> loaded.forEach(emails::putIfAbsent));
+        for (String id : missing) {
+            Email email = emails.get(id);
+            if (email != null) {
+                email.setViewed(true);
+            }
+        }
+    }
+
+    /**
+     * This method opens the journal and hands it to the managers, unless it is already open,
+     * and starts saving the data in the background.
+     */
+    private static void openJournal() {
+        if (journal != null) {
+            return;
+        }
+        try {
+            journal = Journal.open();
+            userManager.setJournal(journal);
+            emailManager.setJournal(journal);
+            snapshotter = Snapshotter.start(userManager, emailManager, journal);
+        } catch (IOException e) {
+            System.out.println("Failed to open the journal, changes will only be saved on stop: " + e.getMessage());
+            log.error("Failed to open the journal", e);
+        }
+    }
+
+    /**
+     * This method stops the background saves.
+     */
+    private static void stopSnapshotter() {
+        if (snapshotter != null) {
+            snapshotter.close();
+            snapshotter = null;
+        }
+    }
+
+    /**
+     * This method writes the remaining journal records and closes the journal.
+     */
+    private static void closeJournal() {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
+            log.error("Failed to close the journal", e);
+        }
+        journal = null;
+    }
+
+    /**
+     * This method deletes the journal after the data files have been cleared,
+     * so the cleared data is not replayed on the next load.
+     *
+     * @throws IOException if a journal segment cannot be deleted
+     */
+    private static void clearJournal() throws IOException {
+        if (journal != null) {
+            journal.deleteSegmentsBefore(journal.rotate());
+        } else {
+            Journal.deleteSegments(Path.of(Journal.DEFAULT_DIRECTORY), Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * This method loads the saved search indexes.
+     * A missing or broken index file is not fatal, the indexes are then rebuilt on the first search.
+     */
+    private static void loadSearchIndexes() {
+        try {
+            emailManager.setSearchIndexes(StorageManager.loadSearchIndexes());
+        } catch (FailedToLoadException e) {
+            System.out.println("Search indexes could not be loaded, they will be rebuilt: " + e.getMessage());
+            log.warn("Failed to load search indexes", e);
+        }
+    }
+
     /**
      * This method saves all users and emails to the data files.
      * It uses the StorageManager to save the data from the UserManager and EmailManager.
+     * While the server is running this takes a snapshot, which also deletes the journal segments it makes redundant.
      * It's an extract method to keep the code clean and organized.
      */
     private static void saveAllUsersAndEmails() {
         try {
-            StorageManager.saveUsersAndEmails(userManager.getUserMap(), emailManager.getEmailMap());
+            if (snapshotter != null) {
+                snapshotter.snapshot();
+            } else {
+                emailManager.loadAllMailboxes();
+                StorageManager.saveUsersAndEmails(userManager.getUserMap(), emailManager.getEmailMap());
+                StorageManager.saveSearchIndexes(emailManager.getSearchIndexes());
+            }
             System.out.println("Data saved to files.");
         } catch (FailedToSaveException e) {
             System.out.println("Failed to save data: " + e.getMessage());
@@ -278,6 +573,23 @@ public class TCPServer {
         }
     }
 
+    /**
+     * This method converts the users and emails files to the given format.
+     * The server keeps saving in the format chosen with -Dserver.storage.format, so this is meant
+     * to be used before switching the format or to export the data.
+     *
+     * @param target The format to convert to
+     */
+    private static void convertDataFiles(StorageFormat target) {
+        try {
+            StorageManager.convertFiles(target);
+            System.out.println("Data files converted to " + target.getPropertyValue() + ".");
+        } catch (FailedToLoadException | FailedToSaveException e) {
+            System.out.println("Failed to convert data files: " + e.getMessage());
+            log.error("Failed to convert data files to {}", target.getPropertyValue(), e);
+        }
+    }
+
     /**
      * Ensures required directories like 'logs/' and 'data/' exist on startup.
      */
@@ -355,6 +667,7 @@ public class TCPServer {
         System.out.println("3. Exit Program");
         System.out.println("4. File Management Options");
         System.out.println("5. View Logged-In Users");
+        System.out.println("6. View Server Statistics");
 
     }
 
@@ -370,7 +683,9 @@ public class TCPServer {
         System.out.println("5. Save All Data");
         System.out.println("6. Save Only Users");
         System.out.println("7. Save Only Emails");
-        System.out.println("8. Back to Main Menu");
+        System.out.println("8. Convert Data Files to Binary");
+        System.out.println("9. Convert Data Files to JSON");
+        System.out.println("10. Back to Main Menu");
         System.out.print("Choose an option: ");
     }
 
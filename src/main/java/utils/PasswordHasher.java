@@ -0,0 +1,175 @@
+package utils;
+
+import exception.PasswordEncryptionException;
+import exception.ServerBusyException;
+import lombok.extern.slf4j.Slf4j;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * PasswordHasher runs the password hashing of registrations and logins on its own small pool of threads.
+ * <p>
+ * Hashing a password takes tens of milliseconds of CPU on purpose. Run on the connection threads, a burst of logins
+ * would take every core and the cheap commands of logged-in users would wait behind them. The pool has fewer threads
+ * than cores and a bounded queue, and a hash that does not fit in the queue is refused straight away with a
+ * ServerBusyException instead of waiting. The time each hash waited and took is recorded.
+ */
+@Slf4j
+public class PasswordHasher implements AutoCloseable {
+    private final ThreadPoolExecutor executor;
+    private final LatencyHistogram waitLatency = new LatencyHistogram();
+    private final LatencyHistogram hashLatency = new LatencyHistogram();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Creates a hasher.
+     *
+     * @param threads       The number of threads hashing at the same time
+     * @param queueCapacity The number of hashes that may wait for a thread before more are refused
+     */
+    public PasswordHasher(int threads, int queueCapacity) {
+        int size = Math.max(1, threads);
+        // Daemon threads that stop when idle, so a hasher that is never closed does not keep the JVM alive
+        executor = new ThreadPoolExecutor(size, size,
+                30L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                Thread.ofPlatform().name("password-hash-", 0).daemon(true).factory(),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Hashes a password with the provided salt on the hashing threads, waiting for the result.
+     *
+     * @param password The plain-text password
+     * @param salt     The salt to use
+     * @return The hashed password (Base64 encoded)
+     * @throws ServerBusyException if the queue is full
+     */
+    public String hashPassword(String password, String salt)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return run(() -> SecurityUtils.hashPassword(password, salt));
+    }
+
+    /**
+     * Checks that a raw password matches the hashed one, hashing it on the hashing threads.
+     *
+     * @param rawPassword  The password input
+     * @param salt         The salt stored with the user
+     * @param expectedHash The stored hashed password
+     * @return true if the password matches, false otherwise
+     * @throws ServerBusyException if the queue is full
+     */
+    public boolean verifyPassword(String rawPassword, String salt, String expectedHash)
+            throws NoSuchAlgorithmException, InvalidKeySpecException {
+        return run(() -> SecurityUtils.verifyPassword(rawPassword, salt, expectedHash));
+    }
+
+    /**
+     * Runs a hash on the hashing threads and waits for it, recording how long it waited and took.
+     */
+    private <T> T run(Callable<T> hash) throws NoSuchAlgorithmException, InvalidKeySpecException {
+        long queuedAt = System.nanoTime();
+        Future<T> result;
+        try {
+            result = executor.submit(() -> {
+                long startedAt = System.nanoTime();
+                waitLatency.record(startedAt - queuedAt);
+                try {
+                    return hash.call();
+                } finally {
+                    hashLatency.record(System.nanoTime() - startedAt);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            log.warn("Refused to hash a password, {} hashes are already waiting", executor.getQueue().size());
+            throw new ServerBusyException("Too many logins at once, try again later");
+        }
+
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new PasswordEncryptionException("Interrupted while waiting for the password hash", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchAlgorithmException noSuchAlgorithm) throw noSuchAlgorithm;
+            if (cause instanceof InvalidKeySpecException invalidKeySpec) throw invalidKeySpec;
+            if (cause instanceof RuntimeException runtime) throw runtime;
+            throw new PasswordEncryptionException("Error while hashing password", cause);
+        }
+    }
+
+    /**
+     * Gets the number of hashes waiting for a thread.
+     *
+     * @return the queued hash count
+     */
+    public int getQueuedHashes() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of hashes refused because the queue was full.
+     *
+     * @return the refused hash count
+     */
+    public long getRejectedHashes() {
+        return rejected.sum();
+    }
+
+    /**
+     * Gets the number of threads hashing at the same time.
+     *
+     * @return the thread count
+     */
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * Gets the number of hashes that may wait for a thread.
+     *
+     * @return the queue capacity
+     */
+    public int getQueueCapacity() {
+        return executor.getQueue().size() + executor.getQueue().remainingCapacity();
+    }
+
+    /**
+     * Gets the time hashes waited in the queue before a thread picked them up.
+     *
+     * @return the wait latency distribution
+     */
+    public LatencyHistogram getWaitLatency() {
+        return waitLatency;
+    }
+
+    /**
+     * Gets the time hashes took once started.
+     *
+     * @return the hash latency distribution
+     */
+    public LatencyHistogram getHashLatency() {
+        return hashLatency;
+    }
+
+    /**
+     * Stops the hashing threads once the queued hashes are done.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,102 @@
+package utils;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * SSLUtils builds the SSL contexts used by the server and the client.
+ * Each context is built once and shared, so the keystore is only read once per process,
+ * and the session caches inside the contexts let reconnecting clients resume their TLS session
+ * with an abbreviated handshake instead of a full key exchange.
+ */
+@Slf4j
+public class SSLUtils {
+    private static final String KEYSTORE_PATH = "serverkeystore.jks";
+    private static final char[] KEYSTORE_PASSWORD = "aloysirin".toCharArray(); // replace with your password
+
+    // Session cache settings, can be changed with -Dserver.tls.session.cache and -Dserver.tls.session.timeout
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("server.tls.session.cache", 10_000);
+    private static final int SESSION_TIMEOUT_SECONDS = Integer.getInteger("server.tls.session.timeout", 24 * 60 * 60);
+
+    private static SSLContext serverContext;
+    private static SSLContext clientContext;
+
+    static {
+        // Stateless session tickets let the server resume sessions it no longer has in its cache.
+        // They are on by default in current JDKs, this only keeps them on unless set otherwise.
+        setDefaultProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+        setDefaultProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+    }
+
+    /**
+     * Gets the shared server SSL context, building it on first use.
+     *
+     * @return The server SSL context
+     * @throws GeneralSecurityException if the keystore or the context cannot be set up
+     * @throws IOException              if the keystore cannot be read
+     */
+    public static synchronized SSLContext getServerContext() throws GeneralSecurityException, IOException {
+        if (serverContext == null) {
+            KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+            kmf.init(loadKeyStore(), KEYSTORE_PASSWORD);
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(kmf.getKeyManagers(), null, null);
+            configureSessionCache(context.getServerSessionContext());
+
+            serverContext = context;
+            log.info("Server SSL context created, session cache size {}, timeout {}s", SESSION_CACHE_SIZE, SESSION_TIMEOUT_SECONDS);
+        }
+        return serverContext;
+    }
+
+    /**
+     * Gets the shared client SSL context, building it on first use.
+     * The client trusts the server certificate from the same keystore.
+     *
+     * @return The client SSL context
+     * @throws GeneralSecurityException if the keystore or the context cannot be set up
+     * @throws IOException              if the keystore cannot be read
+     */
+    public static synchronized SSLContext getClientContext() throws GeneralSecurityException, IOException {
+        if (clientContext == null) {
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
+            tmf.init(loadKeyStore());
+
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(null, tmf.getTrustManagers(), null);
+            configureSessionCache(context.getClientSessionContext());
+
+            clientContext = context;
+        }
+        return clientContext;
+    }
+
+    private static KeyStore loadKeyStore() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = new FileInputStream(KEYSTORE_PATH)) {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        }
+        return keyStore;
+    }
+
+    private static void configureSessionCache(SSLSessionContext sessionContext) {
+        sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+        sessionContext.setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+    }
+
+    private static void setDefaultProperty(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+}
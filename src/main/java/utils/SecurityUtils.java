@@ -2,6 +2,8 @@ package utils;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.NoSuchAlgorithmException;
@@ -13,6 +15,10 @@ public class SecurityUtils {
     private static final int ITERATIONS = 65536;
     private static final int KEY_LENGTH = 256;
 
+    // Looking up the factory goes through the security providers every time, so each thread keeps its own.
+    // A factory is not thread-safe, which is why it is not shared.
+    private static final ThreadLocal<SecretKeyFactory> keyFactory = new ThreadLocal<>();
+
     /**
      * Generates a random salt string.
      */
@@ -37,9 +43,21 @@ public class SecurityUtils {
                 ITERATIONS,
                 KEY_LENGTH
         );
-        SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
-        byte[] hash = skf.generateSecret(spec).getEncoded();
-        return Base64.getEncoder().encodeToString(hash);
+        try {
+            byte[] hash = keyFactory().generateSecret(spec).getEncoded();
+            return Base64.getEncoder().encodeToString(hash);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static SecretKeyFactory keyFactory() throws NoSuchAlgorithmException {
+        SecretKeyFactory factory = keyFactory.get();
+        if (factory == null) {
+            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            keyFactory.set(factory);
+        }
+        return factory;
     }
 
     /**
@@ -52,7 +70,8 @@ public class SecurityUtils {
      */
     public static boolean verifyPassword(String rawPassword, String salt, String expectedHash)
             throws NoSuchAlgorithmException, InvalidKeySpecException {
-        String hashed = hashPassword(rawPassword, salt);
-        return hashed.equals(expectedHash);
+        byte[] hashed = hashPassword(rawPassword, salt).getBytes(StandardCharsets.US_ASCII);
+        // Compared in constant time, so how long it takes does not tell how much of the hash matched
+        return expectedHash != null && MessageDigest.isEqual(hashed, expectedHash.getBytes(StandardCharsets.US_ASCII));
     }
 }
@@ -1,66 +1,110 @@
 package utils;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 import exception.FailedToLoadException;
 import exception.FailedToSaveException;
 import lombok.extern.slf4j.Slf4j;
 import model.Email;
+import model.SearchIndex;
 import model.User;
+import utils.storage.AtomicFiles;
+import utils.storage.BinaryCodec;
+import utils.storage.BodyCache;
+import utils.storage.JsonCodec;
+import utils.storage.MailboxPager;
+import utils.storage.MappedMailboxStore;
+import utils.storage.SegmentedEmailStore;
+import utils.storage.StorageFormat;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.lang.reflect.Type;
-import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The StorageManager class is responsible for managing the storage of data in the application.
  * It provides methods to save, retrieve, and delete data from the storage into a file.
+ * Users and emails are streamed record by record, as JSON with the JsonCodec or in the binary format
+ * of the BinaryCodec, chosen with -Dserver.storage.format=json|binary.
+ * Emails are split into segments that are saved and loaded in parallel, see SegmentedEmailStore.
+ * With -Dserver.storage.engine=mapped, emails are kept in a memory-mapped log instead, with their contents
+ * off the heap, see MappedMailboxStore. The email files are then only read if there is no log yet.
+ * Only emails younger than -Dserver.storage.hot.hours keep their content on the heap, older ones are read
+ * through a body cache of -Dserver.storage.cache.mb.
+ * Files are saved with AtomicFiles, so a crash in the middle of a save leaves the previous file intact.
  */
 @Slf4j
 public class StorageManager {
 
-    private static final String USERS_FILE = "data/users.json";
-    private static final String EMAILS_FILE = "data/emails.json";
-    private static final Gson gson = new GsonBuilder()
-            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
-            .setPrettyPrinting()
-            .create();
+    private static final String USERS_BASE = "data/users";
+    private static final String EMAILS_BASE = "data/emails";
+    private static final String USERS_FILE = USERS_BASE + StorageFormat.JSON.getExtension();
+    private static final String EMAILS_FILE = EMAILS_BASE + StorageFormat.JSON.getExtension();
+    private static final String SEARCH_INDEX_FILE = "data/search_index.json";
+    private static final String MAILBOX_DIRECTORY = "data/mailbox";
+    private static final Gson indexGson = new Gson();
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final StorageFormat format = StorageFormat.fromPropertyValue(System.getProperty("server.storage.format"));
+    // Emails are saved as this many segments, read and written in parallel. Mailboxes are loaded lazily
+    // a segment at a time, so that needs more and smaller segments
+    private static final int segmentCount = Integer.getInteger("server.storage.segments",
+            Boolean.getBoolean("server.load.lazy") ? 64 : Runtime.getRuntime().availableProcessors());
+    // A full save of the emails is due once this many deltas of changed emails have been saved
+    private static final int maxDeltas = Integer.getInteger("server.storage.compact.deltas", 32);
+    private static final SegmentedEmailStore emailStore =
+            new SegmentedEmailStore(Path.of(EMAILS_BASE), segmentCount, format, maxDeltas);
+
+    private static final boolean mappedEngine = "mapped".equalsIgnoreCase(System.getProperty("server.storage.engine"));
+    // Contents of the mapped log read recently, and how long new emails keep their content on the heap
+    private static final BodyCache bodyCache =
+            new BodyCache((long) Integer.getInteger("server.storage.cache.mb", 64) << 20);
+    private static final MappedMailboxStore mailboxStore = new MappedMailboxStore(Path.of(MAILBOX_DIRECTORY),
+            Integer.getInteger("server.storage.mapped.segment.mb", 64) << 20,
+            Duration.ofHours(Integer.getInteger("server.storage.hot.hours", 72)), bodyCache);
 
     /**
-     * Saves the given map of users to a JSON file.
+     * Saves the given map of users to a file in the configured format.
      *
      * @param users The map of users to save
      * @throws FailedToSaveException if the file cannot be written
      */
     public static void saveUsers(Map<String, User> users) throws FailedToSaveException {
-        try (FileWriter writer = new FileWriter(USERS_FILE)) {
-            gson.toJson(users, writer);
-        } catch (IOException e) {
-            throw new FailedToSaveException("Failed to save users to " + USERS_FILE, e);
-        }
+        saveUsers(users, format);
     }
 
     /**
-     * Saves the given map of emails to a JSON file.
+     * Saves the given map of emails to a file in the configured format, or to the mapped log.
      *
      * @param emails The map of emails to save
      * @throws FailedToSaveException if the file cannot be written
      */
     public static void saveEmails(Map<String, Email> emails) throws FailedToSaveException {
-        try (FileWriter writer = new FileWriter(EMAILS_FILE)) {
-            gson.toJson(emails, writer);
-        } catch (IOException e) {
-            throw new FailedToSaveException("Failed to save emails to " + EMAILS_FILE, e);
+        if (mappedEngine) {
+            saveToMailbox(emails);
+        } else {
+            saveEmails(emails, format);
         }
     }
 
     /**
-     * Saves the given map of users and emails to their respective JSON files.
+     * Saves the given map of users and emails to their respective files.
      *
      * @param users  The map of users to save
      * @param emails The map of emails to save
@@ -72,81 +116,294 @@ public class StorageManager {
     }
 
     /**
-     * Loads the map of users from a JSON file as concurrent hash map.
+     * Saves only the emails changed since the last save, as a delta on top of the saved emails.
+     * Check shouldCompactEmails first: a delta needs a full save of the emails to build on.
+     *
+     * @param changed The changed emails by key
+     * @throws FailedToSaveException if the delta cannot be written
+     */
+    public static void saveChangedEmails(Map<String, Email> changed) throws FailedToSaveException {
+        if (mappedEngine) {
+            saveToMailbox(changed);
+            return;
+        }
+        try {
+            emailStore.saveDelta(changed);
+        } catch (IOException | JsonIOException e) {
+            throw new FailedToSaveException("Failed to save changed emails to " + EMAILS_BASE, e);
+        }
+    }
+
+    /**
+     * Checks if the next save of the emails has to be a full one rather than a delta of the changes,
+     * because there is no full save yet or too many deltas have piled up since the last one.
+     *
+     * @return true if all emails should be saved
+     */
+    public static boolean shouldCompactEmails() {
+        if (mappedEngine) {
+            // The log only ever appends, so all emails only have to be saved once, to start it
+            return !mailboxStore.exists();
+        }
+        try {
+            return emailStore.shouldCompact();
+        } catch (IOException e) {
+            log.warn("Cannot read the email manifest, saving all emails", e);
+            return true;
+        }
+    }
+
+    /**
+     * Converts the users and emails files to the given format.
+     * The data is read from whichever file exists and the file of the other format is removed.
+     *
+     * @param target The format to convert to
+     * @throws FailedToLoadException if the files cannot be read
+     * @throws FailedToSaveException if the files cannot be written
+     */
+    public static void convertFiles(StorageFormat target) throws FailedToLoadException, FailedToSaveException {
+        ConcurrentHashMap<String, User> users = loadUsers();
+        saveUsers(users, target);
+        ConcurrentHashMap<String, Email> emails = loadEmails();
+        saveEmails(emails, target);
+        log.info("Converted {} users and {} emails to {}", users.size(), emails.size(), target.getPropertyValue());
+    }
+
+    private static void saveUsers(Map<String, User> users, StorageFormat target) throws FailedToSaveException {
+        String file = USERS_BASE + target.getExtension();
+        try {
+            if (target == StorageFormat.BINARY) {
+                AtomicFiles.write(Path.of(file), out -> BinaryCodec.writeUsers(users, out));
+            } else {
+                AtomicFiles.write(Path.of(file), AtomicFiles.text(writer -> JsonCodec.writeUsers(users, writer)));
+            }
+            // The file of the other format is now out of date and must not be loaded instead of this one
+            Files.deleteIfExists(Path.of(USERS_BASE + target.other().getExtension()));
+        } catch (IOException | JsonIOException e) {
+            throw new FailedToSaveException("Failed to save users to " + file, e);
+        }
+    }
+
+    private static void saveToMailbox(Map<String, Email> emails) throws FailedToSaveException {
+        try {
+            int appended = mailboxStore.save(emails);
+            log.debug("Appended {} records to the mailbox log", appended);
+        } catch (IOException e) {
+            throw new FailedToSaveException("Failed to save emails to " + MAILBOX_DIRECTORY, e);
+        }
+    }
+
+    private static void saveEmails(Map<String, Email> emails, StorageFormat target) throws FailedToSaveException {
+        SegmentedEmailStore store = target == format
+                ? emailStore
+                : new SegmentedEmailStore(Path.of(EMAILS_BASE), segmentCount, target, maxDeltas);
+        try {
+            store.save(emails);
+            // The single email files of earlier versions are now out of date and must not be loaded
+            Files.deleteIfExists(Path.of(EMAILS_FILE));
+            Files.deleteIfExists(Path.of(EMAILS_BASE + StorageFormat.BINARY.getExtension()));
+        } catch (IOException | JsonIOException e) {
+            throw new FailedToSaveException("Failed to save emails to " + EMAILS_BASE, e);
+        }
+    }
+
+    /**
+     * Saves the search indexes to a JSON file, so they do not have to be rebuilt after a restart.
+     *
+     * @param indexes The search indexes by user email
+     * @throws FailedToSaveException if the file cannot be written
+     */
+    public static void saveSearchIndexes(Map<String, SearchIndex> indexes) throws FailedToSaveException {
+        Map<String, SearchIndex.Snapshot> snapshots = new HashMap<>();
+        indexes.forEach((user, index) -> snapshots.put(user, index.toSnapshot()));
+        try {
+            AtomicFiles.write(Path.of(SEARCH_INDEX_FILE), AtomicFiles.text(writer -> indexGson.toJson(snapshots, writer)));
+        } catch (IOException | JsonIOException e) {
+            throw new FailedToSaveException("Failed to save search indexes to " + SEARCH_INDEX_FILE, e);
+        }
+    }
+
+    /**
+     * Finds the format a file is stored in: the configured one if its file exists, otherwise
+     * the other one if its file exists, otherwise the configured one.
+     */
+    private static StorageFormat formatOnDisk(String base) {
+        if (!new File(base + format.getExtension()).exists() && new File(base + format.other().getExtension()).exists()) {
+            return format.other();
+        }
+        return format;
+    }
+
+    /**
+     * Loads the search indexes from a JSON file.
+     * A missing file is not an error, since the indexes can always be rebuilt from the emails.
+     *
+     * @return The search indexes by user email
+     * @throws FailedToLoadException if the file exists but cannot be read
+     */
+    public static Map<String, SearchIndex> loadSearchIndexes() throws FailedToLoadException {
+        if (!new File(SEARCH_INDEX_FILE).exists()) {
+            return new ConcurrentHashMap<>();
+        }
+        try (Reader reader = new BufferedReader(new FileReader(SEARCH_INDEX_FILE))) {
+            Type type = new TypeToken<Map<String, SearchIndex.Snapshot>>() {}.getType();
+            Map<String, SearchIndex.Snapshot> snapshots = indexGson.fromJson(reader, type);
+            Map<String, SearchIndex> indexes = new ConcurrentHashMap<>();
+            if (snapshots != null) {
+                snapshots.forEach((user, snapshot) -> indexes.put(user, SearchIndex.fromSnapshot(snapshot)));
+            }
+            return indexes;
+        } catch (IOException | JsonParseException e) {
+            throw new FailedToLoadException("Failed to load search indexes from " + SEARCH_INDEX_FILE, e);
+        }
+    }
+
+    /**
+     * Gets the cache that contents are read from the mapped log through.
+     *
+     * @return The body cache, or null if emails are not kept in the mapped log
+     */
+    public static BodyCache getBodyCache() {
+        return mappedEngine ? bodyCache : null;
+    }
+
+    /**
+     * Opens a pager over the email segments of the last save, to load mailboxes the first time they are needed.
+     *
+     * @return The pager, or null if the emails are not saved in segments, e.g. with the mapped engine
+     * @throws FailedToLoadException if the manifest cannot be read
+     */
+    public static MailboxPager openMailboxPager() throws FailedToLoadException {
+        if (mappedEngine || !emailStore.exists()) {
+            return null;
+        }
+        try {
+            return new MailboxPager(emailStore);
+        } catch (IOException e) {
+            throw new FailedToLoadException("Failed to read the email manifest in " + EMAILS_BASE, e);
+        }
+    }
+
+    /**
+     * Loads the map of users as concurrent hash map, from the file in the configured format
+     * or, if there is none, from the file in the other format.
+     * The users are read one by one straight into the returned map.
      *
      * @return The map of users
      * @throws FailedToLoadException if the file cannot be read
      */
-    public static Map<String, User> loadUsers() throws FailedToLoadException {
-        try (FileReader reader = new FileReader(USERS_FILE)) {
-            Type type = new TypeToken<Map<String, User>>() {}.getType();
-            Map<String, User> users = gson.fromJson(reader, type);
-            if (users == null||users.isEmpty()) {
-                return new ConcurrentHashMap<>();
+    public static ConcurrentHashMap<String, User> loadUsers() throws FailedToLoadException {
+        StorageFormat source = formatOnDisk(USERS_BASE);
+        String file = USERS_BASE + source.getExtension();
+        ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+        try {
+            if (source == StorageFormat.BINARY) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+                    BinaryCodec.readUsers(in, users);
+                }
             } else {
-                return new ConcurrentHashMap<>(users);
+                try (Reader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+                    JsonCodec.readUsers(reader, users);
+                }
             }
+            return users;
         } catch (IOException e) {
-            throw new FailedToLoadException("Failed to load users from " + USERS_FILE, e);
+            throw new FailedToLoadException("Failed to load users from " + file, e);
         }
     }
 
     /**
-     * Loads the map of emails from a JSON file.
+     * Loads the map of emails as concurrent hash map, from the mapped log if that engine is used and there is one,
+     * otherwise from the segments of the last save.
+     * If there are none, e.g. for data saved by an earlier version, it is loaded from the single email file
+     * in the configured format or, if there is none, from the one in the other format.
+     * The emails are read one by one straight into the returned map.
      *
      * @return The map of emails
      * @throws FailedToLoadException if the file cannot be read
      */
-    public static Map<String, Email> loadEmails() throws FailedToLoadException {
-        try (FileReader reader = new FileReader(EMAILS_FILE)) {
-            Type type = new TypeToken<Map<String, Email>>() {}.getType();
-            Map<String, Email> emails = gson.fromJson(reader, type);
-            if (emails == null||emails.isEmpty()) {
-                return new ConcurrentHashMap<>();
+    public static ConcurrentHashMap<String, Email> loadEmails() throws FailedToLoadException {
+        if (mappedEngine && mailboxStore.exists()) {
+            try {
+                return mailboxStore.load();
+            } catch (IOException e) {
+                throw new FailedToLoadException("Failed to load emails from " + MAILBOX_DIRECTORY, e);
+            }
+        }
+        if (emailStore.exists()) {
+            try {
+                return emailStore.load();
+            } catch (IOException e) {
+                throw new FailedToLoadException("Failed to load emails from " + EMAILS_BASE, e);
+            }
+        }
+        StorageFormat source = formatOnDisk(EMAILS_BASE);
+        String file = EMAILS_BASE + source.getExtension();
+        ConcurrentHashMap<String, Email> emails = new ConcurrentHashMap<>();
+        try {
+            if (source == StorageFormat.BINARY) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE)) {
+                    BinaryCodec.readEmails(in, emails);
+                }
             } else {
-                return new ConcurrentHashMap<>(emails);
+                try (Reader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+                    JsonCodec.readEmails(reader, emails);
+                }
             }
+            return emails;
         } catch (IOException e) {
-            throw new FailedToLoadException("Failed to load emails from " + EMAILS_FILE, e);
+            throw new FailedToLoadException("Failed to load emails from " + file, e);
         }
     }
 
     /**
-     * Clears the data in the users file.
+     * Clears the data in the users file and removes the binary users file.
      *
      * @throws FailedToSaveException if the file cannot be written
      */
     public static void clearUsers() throws FailedToSaveException {
         try (FileWriter writer = new FileWriter(USERS_FILE)) {
             writer.write("{}");
+            Files.deleteIfExists(Path.of(USERS_BASE + StorageFormat.BINARY.getExtension()));
         } catch (IOException e) {
             throw new FailedToSaveException("Failed to clear users in " + USERS_FILE, e);
         }
     }
 
     /**
-     * Clears the data in the emails file.
+     * Clears the data in the emails file and removes the binary emails file, the email segments and the mapped log.
      *
      * @throws FailedToSaveException if the file cannot be cleared
      */
     public static void clearEmails() throws FailedToSaveException {
-        try (FileWriter writer = new FileWriter(EMAILS_FILE)) {
+        try (FileWriter writer = new FileWriter(EMAILS_FILE);
+             FileWriter indexWriter = new FileWriter(SEARCH_INDEX_FILE)) {
             writer.write("{}");
+            indexWriter.write("{}");
+            Files.deleteIfExists(Path.of(EMAILS_BASE + StorageFormat.BINARY.getExtension()));
+            emailStore.delete();
+            mailboxStore.delete();
         } catch (IOException e) {
             throw new FailedToSaveException("Failed to clear emails in " + EMAILS_FILE, e);
         }
     }
 
     /**
-     * Clears the data in the users and emails files.
+     * Clears the data in the users and emails files and removes the binary ones, the email segments and the mapped log.
      *
      * @throws FailedToSaveException if the files cannot be cleared
      */
     public static void clearFiles() throws FailedToSaveException {
         try (FileWriter userWriter = new FileWriter(USERS_FILE);
-             FileWriter emailWriter = new FileWriter(EMAILS_FILE)) {
+             FileWriter emailWriter = new FileWriter(EMAILS_FILE);
+             FileWriter indexWriter = new FileWriter(SEARCH_INDEX_FILE)) {
             userWriter.write("{}");
             emailWriter.write("{}");
+            indexWriter.write("{}");
+            Files.deleteIfExists(Path.of(USERS_BASE + StorageFormat.BINARY.getExtension()));
+            Files.deleteIfExists(Path.of(EMAILS_BASE + StorageFormat.BINARY.getExtension()));
+            emailStore.delete();
+            mailboxStore.delete();
         } catch (IOException e) {
             throw new FailedToSaveException("Failed to clear both files", e);
         }
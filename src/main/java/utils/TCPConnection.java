@@ -0,0 +1,267 @@
+package utils;
+
+import lombok.extern.slf4j.Slf4j;
+import utils.protocols.BinaryProtocol;
+import utils.protocols.CommonProtocol;
+import utils.protocols.FrameCodec;
+import utils.protocols.Message;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * TCPConnection wraps a socket for the whole life of a connection.
+ * It owns one reusable input buffer and one output buffer, so reading and writing messages
+ * does not create new stream wrappers on every call, and bytes read ahead are never lost.
+ * Writes are buffered until flush is called, which lets several responses share one TLS record.
+ */
+@Slf4j
+public class TCPConnection implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+    private static final byte NEWLINE = '\n';
+
+    private final Socket socket;
+    private final InputStream input;
+    private final OutputStream output;
+
+    private final byte[] inBuffer = new byte[BUFFER_SIZE];
+    private int inPos = 0;
+    private int inLimit = 0;
+
+    // Reused between messages, grows to fit the largest message or frame seen
+    private byte[] lineBytes = new byte[256];
+    private int lineLength = 0;
+    private final byte[] lengthPrefix = new byte[4];
+
+    /**
+     * Creates a connection for the given socket.
+     *
+     * @param socket The connected socket
+     * @throws IOException if the socket streams cannot be opened
+     */
+    public TCPConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.input = socket.getInputStream();
+        this.output = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    /**
+     * Reads the next newline terminated message.
+     *
+     * @return The message without its line terminator, or null if the other side closed the connection
+     * @throws IOException if reading fails or the message is larger than allowed
+     */
+    public String readMessage() throws IOException {
+        lineLength = 0;
+        while (true) {
+            if (inPos == inLimit && !fill()) {
+                return lineLength == 0 ? null : decodeLine();
+            }
+
+            int start = inPos;
+            while (inPos < inLimit) {
+                if (inBuffer[inPos++] == NEWLINE) {
+                    appendLine(start, inPos - 1 - start);
+                    return decodeLine();
+                }
+            }
+            appendLine(start, inLimit - start);
+        }
+    }
+
+    /**
+     * Reads the next v2 binary frame.
+     *
+     * @return The decoded message, or null if the other side closed the connection
+     * @throws IOException if reading fails or the frame is malformed
+     */
+    public Message readFrame() throws IOException {
+        if (inPos == inLimit && !fill()) {
+            return null;
+        }
+        readFully(lengthPrefix, lengthPrefix.length);
+        int length = ByteBuffer.wrap(lengthPrefix).getInt();
+        if (length <= 0 || length > BinaryProtocol.MAX_FRAME_BYTES) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+        if (length > lineBytes.length) {
+            lineBytes = new byte[Math.max(lineBytes.length * 2, length)];
+        }
+        readFully(lineBytes, length);
+        return FrameCodec.decode(ByteBuffer.wrap(lineBytes, 0, length));
+    }
+
+    /**
+     * Writes a message as a v2 binary frame into the output buffer without flushing it.
+     *
+     * @param message The message to write
+     * @throws IOException if writing fails
+     */
+    public void writeFrame(Message message) throws IOException {
+        output.write(FrameCodec.encode(message));
+        log.debug("Sent frame: {}", message.getCommand());
+    }
+
+    /**
+     * Server side of the protocol negotiation.
+     * If the client opened with the v2 preamble, the preamble is consumed and echoed back.
+     * A v1 client is left untouched, since its first byte is already in the input buffer.
+     *
+     * @return true if the client asked for the v2 binary protocol
+     * @throws IOException if reading fails or the preamble is invalid
+     */
+    public boolean acceptBinaryProtocol() throws IOException {
+        if (inPos == inLimit && !fill()) {
+            return false;
+        }
+        if (inBuffer[inPos] != BinaryProtocol.PREAMBLE[0]) {
+            return false;
+        }
+        expectPreamble();
+        output.write(BinaryProtocol.PREAMBLE);
+        flush();
+        return true;
+    }
+
+    /**
+     * Client side of the protocol negotiation.
+     * Sends the v2 preamble and waits for the server to echo it.
+     *
+     * @throws IOException if the server does not answer with the preamble
+     */
+    public void requestBinaryProtocol() throws IOException {
+        output.write(BinaryProtocol.PREAMBLE);
+        flush();
+        expectPreamble();
+    }
+
+    /**
+     * Writes a message followed by a newline into the output buffer without flushing it.
+     *
+     * @param message The message to write
+     * @throws IOException if writing fails
+     */
+    public void writeMessage(String message) throws IOException {
+        output.write(message.getBytes(StandardCharsets.UTF_8));
+        output.write(NEWLINE);
+        log.debug("Sent: {}", message);
+    }
+
+    /**
+     * Flushes all buffered messages to the socket.
+     *
+     * @throws IOException if writing fails
+     */
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    /**
+     * Writes a message and flushes it straight away.
+     *
+     * @param message The message to send
+     * @throws IOException if writing fails
+     */
+    public void sendMessage(String message) throws IOException {
+        writeMessage(message);
+        flush();
+    }
+
+    /**
+     * Checks if more input is already waiting, either in the input buffer or decrypted and
+     * ready in the socket. A pipelining client may have sent several requests, so the server
+     * only needs to flush once no more requests are waiting.
+     *
+     * @return true if another message can be read without blocking
+     * @throws IOException if the socket cannot be checked
+     */
+    public boolean hasPendingInput() throws IOException {
+        return inPos < inLimit || input.available() > 0;
+    }
+
+    /**
+     * Gets the underlying socket.
+     *
+     * @return The socket of this connection
+     */
+    public Socket getSocket() {
+        return socket;
+    }
+
+    /**
+     * Closes the connection and its socket.
+     */
+    @Override
+    public void close() {
+        TCPUtils.closeSocket(socket);
+    }
+
+    /**
+     * Refills the input buffer from the socket.
+     *
+     * @return false if the end of the stream was reached
+     */
+    private boolean fill() throws IOException {
+        int read = input.read(inBuffer, 0, inBuffer.length);
+        if (read <= 0) {
+            return false;
+        }
+        inPos = 0;
+        inLimit = read;
+        return true;
+    }
+
+    private void expectPreamble() throws IOException {
+        byte[] preamble = new byte[BinaryProtocol.PREAMBLE.length];
+        readFully(preamble, preamble.length);
+        if (!Arrays.equals(preamble, BinaryProtocol.PREAMBLE)) {
+            throw new ProtocolException("Unsupported protocol preamble");
+        }
+    }
+
+    /**
+     * Reads exactly length bytes, first from the input buffer and then from the socket.
+     */
+    private void readFully(byte[] target, int length) throws IOException {
+        int copied = 0;
+        while (copied < length) {
+            if (inPos == inLimit && !fill()) {
+                throw new EOFException("Connection closed in the middle of a frame");
+            }
+            int chunk = Math.min(length - copied, inLimit - inPos);
+            System.arraycopy(inBuffer, inPos, target, copied, chunk);
+            inPos += chunk;
+            copied += chunk;
+        }
+    }
+
+    private void appendLine(int start, int length) throws IOException {
+        if (lineLength + length > CommonProtocol.MAX_MESSAGE_BYTES) {
+            throw new IOException("Message exceeds " + CommonProtocol.MAX_MESSAGE_BYTES + " bytes");
+        }
+        if (lineLength + length > lineBytes.length) {
+            lineBytes = Arrays.copyOf(lineBytes, Math.max(lineBytes.length * 2, lineLength + length));
+        }
+        System.arraycopy(inBuffer, start, lineBytes, lineLength, length);
+        lineLength += length;
+    }
+
+    private String decodeLine() {
+        int length = lineLength;
+        if (length > 0 && lineBytes[length - 1] == '\r') {
+            length--;
+        }
+        String message = new String(lineBytes, 0, length, StandardCharsets.UTF_8);
+        log.debug("Received: {}", message);
+        return message;
+    }
+}
@@ -12,6 +12,8 @@ import java.net.Socket;
 /**
  * TCPUtils class that provides utility methods for sending and receiving messages over TCP
  * It includes methods to send a message, receive a message, and close the socket
+ * These helpers create new stream wrappers on every call, so connections that send
+ * more than one message should use a TCPConnection instead.
  */
 @Slf4j
 public class TCPUtils {
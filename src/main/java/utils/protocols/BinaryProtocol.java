@@ -0,0 +1,86 @@
+package utils.protocols;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * BinaryProtocol holds the constants of the v2 length-prefixed framing protocol.
+ * A v2 client starts the connection with the PREAMBLE bytes and the server answers with the same bytes.
+ * Because a v1 text request never starts with a zero byte, both protocols can share one port.
+ *
+ * Frame layout: [int length][byte opcode][int field count] then for each field [byte type][payload].
+ * The length covers everything after the length itself.
+ */
+public class BinaryProtocol {
+    public static final byte VERSION = 2;
+    public static final byte[] PREAMBLE = {0x00, 'V', 'M', VERSION};
+
+    // Largest frame accepted, matching the largest text message
+    public static final int MAX_FRAME_BYTES = CommonProtocol.MAX_MESSAGE_BYTES;
+
+    // FIELD TYPES
+    public static final byte TYPE_NULL = 0;
+    public static final byte TYPE_STRING = 1;
+    public static final byte TYPE_LONG = 2;
+    public static final byte TYPE_BOOLEAN = 3;
+    public static final byte TYPE_TIMESTAMP = 4;
+    // A nested message, used for the sub-commands and sub-responses of a BATCH
+    public static final byte TYPE_MESSAGE = 5;
+
+    // OPCODES, 0 means the command is not in the table and is sent as the first string field
+    public static final byte OP_TEXT_COMMAND = 0;
+
+    private static final String[] COMMANDS = {
+            null,
+            UserProtocol.REGISTER,
+            UserProtocol.LOGIN,
+            UserProtocol.LOGOUT,
+            EmailProtocol.SEND_EMAIL,
+            EmailProtocol.GET_EMAILS,
+            EmailProtocol.LIST_INBOX,
+            EmailProtocol.LIST_SENT,
+            EmailProtocol.MARK_AS_VIEWED,
+            EmailProtocol.SEARCH_RECEIVED,
+            EmailProtocol.SEARCH_SENT,
+            EmailProtocol.UNKNOWN_COMMAND,
+            CommonProtocol.EXIT,
+            EmailProtocol.BATCH,
+            CommonProtocol.PING,
+            CommonProtocol.PONG,
+            EmailProtocol.LIST_SINCE,
+            EmailProtocol.LIST_BEFORE,
+            EmailProtocol.LIST_BETWEEN,
+            EmailProtocol.COUNTS,
+            EmailProtocol.GET_EMAIL,
+            UserProtocol.RESUME,
+    };
+
+    private static final Map<String, Byte> OPCODES = new HashMap<>();
+
+    static {
+        for (int i = 1; i < COMMANDS.length; i++) {
+            OPCODES.put(COMMANDS[i], (byte) i);
+        }
+    }
+
+    /**
+     * Gets the opcode of a command.
+     *
+     * @param command The command
+     * @return The opcode, or OP_TEXT_COMMAND if the command has no opcode
+     */
+    public static byte opcodeOf(String command) {
+        Byte opcode = OPCODES.get(command);
+        return opcode == null ? OP_TEXT_COMMAND : opcode;
+    }
+
+    /**
+     * Gets the command of an opcode.
+     *
+     * @param opcode The opcode
+     * @return The command, or null if the opcode is OP_TEXT_COMMAND or unknown
+     */
+    public static String commandOf(byte opcode) {
+        return opcode > 0 && opcode < COMMANDS.length ? COMMANDS[opcode] : null;
+    }
+}
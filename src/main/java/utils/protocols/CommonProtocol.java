@@ -6,4 +6,13 @@ public class CommonProtocol {
     public static final int PORT = 12345;
     public static final String EXIT = "EXIT";
     public static final String GOODBYE = "GOODBYE";
+    // Health check used by pooled clients
+    public static final String PING = "PING";
+    public static final String PONG = "PONG";
+    // Largest single message accepted on a connection
+    public static final int MAX_MESSAGE_BYTES = 8 * 1024 * 1024;
+    // Separates the sub-commands of a BATCH request and the sub-responses of its response
+    public static final String BATCH_SEP = "||";
+    // Largest number of sub-commands accepted in one BATCH request
+    public static final int MAX_BATCH_SIZE = 1000;
 }
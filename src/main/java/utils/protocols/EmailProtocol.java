@@ -9,6 +9,23 @@ public class EmailProtocol {
     public static final String SENT = "SENT";
     public static final String SEARCH_RECEIVED = "SEARCH_RECEIVED";
     public static final String SEARCH_SENT = "SEARCH_SENT";
+    public static final String BATCH = "BATCH";
+    // Date range listings, newest first: since a time, before a time, or from one time up to another
+    public static final String LIST_SINCE = "LIST_SINCE";
+    public static final String LIST_BEFORE = "LIST_BEFORE";
+    public static final String LIST_BETWEEN = "LIST_BETWEEN";
+    // Folder counts: inbox total, inbox unread and sent total
+    public static final String COUNTS = "COUNTS";
+    // Fetches one full email, used with header-only listings
+    public static final String GET_EMAIL = "GET_EMAIL";
+    // List option: send headers, size and a snippet instead of the full content
+    public static final String HEADERS = "HEADERS";
+    // List options: LIMIT=n caps the page size, CURSOR=c continues after the page that ended with CURSOR=c
+    public static final String LIMIT = "LIMIT";
+    public static final String CURSOR = "CURSOR";
+    public static final String OPTION_SEP = "=";
+    // Largest number of emails in one listing or search response, also used when no LIMIT is given
+    public static final int MAX_PAGE_SIZE = 500;
 
     // RESPONSE CODES
     public static final String SEND_EMAIL = "SENDEMAIL";
@@ -18,6 +35,8 @@ public class EmailProtocol {
     public static final String NO_EMAILS = "NO_EMAILS";
     public static final String RECIPIENT_NOT_FOUND = "RECIPIENT_NOT_FOUND";
     public static final String INVALID_DETAILS = "INVALID_DETAILS";
+    public static final String BATCH_TOO_LARGE = "BATCH_TOO_LARGE";
+    public static final String EMAIL_NOT_FOUND = "EMAIL_NOT_FOUND";
 
     // WRONG REQUEST FORMAT CODES
     public static final String INVALID_FORMAT = "INVALID_FORMAT";
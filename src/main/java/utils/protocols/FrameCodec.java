@@ -0,0 +1,176 @@
+package utils.protocols;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FrameCodec encodes messages into v2 binary frames and decodes them straight from byte buffers.
+ * Strings are length-prefixed, so bodies may contain newlines or the v1 separator without escaping.
+ * A nested message (a BATCH sub-command) is written as a complete frame inside its parent frame.
+ */
+public class FrameCodec {
+    // Messages may hold nested messages, but nested messages may not hold further messages
+    private static final int MAX_NESTING = 1;
+
+    private record Nested(byte[] frame) {
+    }
+
+    /**
+     * Encodes a message into a complete frame, including the length prefix.
+     *
+     * @param message The message to encode
+     * @return The frame bytes
+     */
+    public static byte[] encode(Message message) {
+        byte opcode = BinaryProtocol.opcodeOf(message.getCommand());
+        List<Object> fields = message.getFields();
+
+        // The command goes into the first field when it has no opcode of its own
+        List<Object> encoded = new ArrayList<>(fields.size() + 1);
+        if (opcode == BinaryProtocol.OP_TEXT_COMMAND) {
+            encoded.add(message.getCommand().getBytes(StandardCharsets.UTF_8));
+        }
+        int size = 1 + 4;
+        for (Object field : fields) {
+            Object value = field;
+            if (field instanceof String text) {
+                value = text.getBytes(StandardCharsets.UTF_8);
+            } else if (field instanceof Message nested) {
+                value = new Nested(encode(nested));
+            }
+            encoded.add(value);
+        }
+        for (Object value : encoded) {
+            size += 1 + payloadSize(value);
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(4 + size);
+        frame.putInt(size);
+        frame.put(opcode);
+        frame.putInt(encoded.size());
+        for (Object value : encoded) {
+            writeField(frame, value);
+        }
+        return frame.array();
+    }
+
+    /**
+     * Decodes a frame body, i.e. everything after the length prefix.
+     *
+     * @param body The buffer positioned at the opcode, limited to the end of the frame
+     * @return The decoded message
+     * @throws ProtocolException if the frame is malformed
+     */
+    public static Message decode(ByteBuffer body) throws ProtocolException {
+        return decode(body, 0);
+    }
+
+    private static Message decode(ByteBuffer body, int depth) throws ProtocolException {
+        try {
+            byte opcode = body.get();
+            int count = body.getInt();
+            if (count < 0 || count > body.remaining()) {
+                throw new ProtocolException("Invalid field count " + count);
+            }
+            List<Object> fields = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                fields.add(readField(body, depth));
+            }
+
+            String command = BinaryProtocol.commandOf(opcode);
+            if (command == null) {
+                if (opcode != BinaryProtocol.OP_TEXT_COMMAND || fields.isEmpty()) {
+                    throw new ProtocolException("Unknown opcode " + opcode);
+                }
+                command = String.valueOf(fields.remove(0));
+            }
+            if (body.hasRemaining()) {
+                throw new ProtocolException("Trailing bytes in frame");
+            }
+            return new Message(command, fields);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated frame");
+        }
+    }
+
+    private static int payloadSize(Object value) {
+        if (value == null) return 0;
+        if (value instanceof byte[] bytes) return 4 + bytes.length;
+        if (value instanceof Nested nested) return nested.frame().length;
+        if (value instanceof Long || value instanceof Integer) return 8;
+        if (value instanceof Boolean) return 1;
+        if (value instanceof LocalDateTime) return 8 + 4;
+        return 4 + String.valueOf(value).getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void writeField(ByteBuffer frame, Object value) {
+        if (value == null) {
+            frame.put(BinaryProtocol.TYPE_NULL);
+        } else if (value instanceof byte[] bytes) {
+            frame.put(BinaryProtocol.TYPE_STRING).putInt(bytes.length).put(bytes);
+        } else if (value instanceof Nested nested) {
+            frame.put(BinaryProtocol.TYPE_MESSAGE).put(nested.frame());
+        } else if (value instanceof Long || value instanceof Integer) {
+            frame.put(BinaryProtocol.TYPE_LONG).putLong(((Number) value).longValue());
+        } else if (value instanceof Boolean flag) {
+            frame.put(BinaryProtocol.TYPE_BOOLEAN).put((byte) (flag ? 1 : 0));
+        } else if (value instanceof LocalDateTime time) {
+            frame.put(BinaryProtocol.TYPE_TIMESTAMP)
+                    .putLong(time.toEpochSecond(ZoneOffset.UTC))
+                    .putInt(time.getNano());
+        } else {
+            byte[] bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+            frame.put(BinaryProtocol.TYPE_STRING).putInt(bytes.length).put(bytes);
+        }
+    }
+
+    private static Object readField(ByteBuffer body, int depth) throws ProtocolException {
+        byte type = body.get();
+        switch (type) {
+            case BinaryProtocol.TYPE_NULL:
+                return null;
+            case BinaryProtocol.TYPE_STRING:
+                int length = body.getInt();
+                if (length < 0 || length > body.remaining()) {
+                    throw new ProtocolException("Invalid string length " + length);
+                }
+                String text;
+                if (body.hasArray()) {
+                    text = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+                    body.position(body.position() + length);
+                } else {
+                    byte[] bytes = new byte[length];
+                    body.get(bytes);
+                    text = new String(bytes, StandardCharsets.UTF_8);
+                }
+                return text;
+            case BinaryProtocol.TYPE_LONG:
+                return body.getLong();
+            case BinaryProtocol.TYPE_BOOLEAN:
+                return body.get() != 0;
+            case BinaryProtocol.TYPE_TIMESTAMP:
+                long seconds = body.getLong();
+                int nanos = body.getInt();
+                return LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+            case BinaryProtocol.TYPE_MESSAGE:
+                if (depth >= MAX_NESTING) {
+                    throw new ProtocolException("Nested message too deep");
+                }
+                int frameLength = body.getInt();
+                if (frameLength <= 0 || frameLength > body.remaining()) {
+                    throw new ProtocolException("Invalid nested frame length " + frameLength);
+                }
+                ByteBuffer nested = body.slice(body.position(), frameLength);
+                body.position(body.position() + frameLength);
+                return decode(nested, depth + 1);
+            default:
+                throw new ProtocolException("Unknown field type " + type);
+        }
+    }
+}
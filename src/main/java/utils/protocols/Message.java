@@ -0,0 +1,198 @@
+package utils.protocols;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Message is a protocol request or response made of a command and a list of typed fields.
+ * The same message can be written as a v1 text line (fields joined with CommonProtocol.SEP)
+ * or as a v2 binary frame (see FrameCodec), so the command layer does not depend on the wire format.
+ * Fields may be a String, Long, Integer, Boolean, LocalDateTime, null, or a nested Message for the
+ * sub-commands of a BATCH. In text form, nested messages follow each other separated by CommonProtocol.BATCH_SEP,
+ * with every '|' and '\' in them escaped by a '\', so a field may itself contain the separator.
+ */
+public class Message {
+    private final String command;
+    private final List<Object> fields;
+
+    /**
+     * Creates a message with the given command and fields.
+     *
+     * @param command The command, e.g. LOGIN or GETEMAILS
+     * @param fields  The fields following the command
+     */
+    public Message(String command, List<Object> fields) {
+        this.command = command;
+        this.fields = fields;
+    }
+
+    /**
+     * Creates a message with the given command and fields.
+     *
+     * @param command The command
+     * @param fields  The fields following the command
+     * @return The new message
+     */
+    public static Message of(String command, Object... fields) {
+        List<Object> list = new ArrayList<>(fields.length + 4);
+        Collections.addAll(list, fields);
+        return new Message(command, list);
+    }
+
+    /**
+     * Parses a v1 text line into a message by splitting it on CommonProtocol.SEP.
+     * A BATCH request is first split on CommonProtocol.BATCH_SEP, and each sub-command is unescaped and becomes
+     * a nested message.
+     *
+     * @param line The text line
+     * @return The parsed message, with every field as a String, or as a Message for a BATCH
+     */
+    public static Message fromText(String line) {
+        String batchPrefix = EmailProtocol.BATCH + CommonProtocol.SEP;
+        if (line.regionMatches(true, 0, batchPrefix, 0, batchPrefix.length())) {
+            Message batch = Message.of(EmailProtocol.BATCH);
+            for (String subCommand : splitBatch(line.substring(batchPrefix.length()))) {
+                batch.add(fromParts(subCommand.trim().split(CommonProtocol.SEP)));
+            }
+            return batch;
+        }
+        return fromParts(line.split(CommonProtocol.SEP));
+    }
+
+    /**
+     * Escapes the text of one sub-command or sub-response so it can be joined with CommonProtocol.BATCH_SEP.
+     *
+     * @param text The text of a message
+     * @return The text with every '|' and '\' preceded by a '\'
+     */
+    public static String escapeBatchPart(String text) {
+        StringBuilder escaped = new StringBuilder(text.length() + 8);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '|' || c == '\\') {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    /**
+     * Splits escaped sub-commands or sub-responses joined with CommonProtocol.BATCH_SEP and unescapes them.
+     *
+     * @param text The joined text
+     * @return Every part, unescaped, in order
+     */
+    public static List<String> splitBatch(String text) {
+        List<String> parts = new ArrayList<>();
+        StringBuilder part = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                part.append(text.charAt(++i));
+            } else if (text.startsWith(CommonProtocol.BATCH_SEP, i)) {
+                parts.add(part.toString());
+                part.setLength(0);
+                i += CommonProtocol.BATCH_SEP.length() - 1;
+            } else {
+                part.append(c);
+            }
+        }
+        parts.add(part.toString());
+        return parts;
+    }
+
+    /**
+     * Creates a message from already split parts, where the first part is the command.
+     *
+     * @param parts The parts of a request
+     * @return The message
+     */
+    public static Message fromParts(String[] parts) {
+        List<Object> list = new ArrayList<>(Math.max(parts.length - 1, 0));
+        for (int i = 1; i < parts.length; i++) {
+            list.add(parts[i]);
+        }
+        return new Message(parts.length == 0 ? "" : parts[0], list);
+    }
+
+    /**
+     * Adds a field to the end of the message.
+     *
+     * @param field The field to add
+     * @return This message, for chaining
+     */
+    public Message add(Object field) {
+        fields.add(field);
+        return this;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    public List<Object> getFields() {
+        return fields;
+    }
+
+    /**
+     * Gets the number of fields, not counting the command.
+     *
+     * @return The field count
+     */
+    public int size() {
+        return fields.size();
+    }
+
+    /**
+     * Gets a field as text, the way it appears in the v1 protocol.
+     *
+     * @param index The field index, starting at 0 for the field after the command
+     * @return The field as a String, empty for a null field
+     */
+    public String getString(int index) {
+        return text(fields.get(index));
+    }
+
+    /**
+     * Converts the message to the parts array a v1 request would be split into.
+     *
+     * @return The command followed by every field as a String, with null fields empty
+     */
+    public String[] toParts() {
+        String[] parts = new String[fields.size() + 1];
+        parts[0] = command;
+        for (int i = 0; i < fields.size(); i++) {
+            parts[i + 1] = text(fields.get(i));
+        }
+        return parts;
+    }
+
+    /**
+     * Writes the message as a v1 text line.
+     *
+     * @return The command and fields joined with CommonProtocol.SEP, with null fields empty
+     */
+    public String toText() {
+        StringBuilder text = new StringBuilder(command);
+        Object previous = null;
+        for (Object field : fields) {
+            boolean nested = field instanceof Message && previous instanceof Message;
+            text.append(nested ? CommonProtocol.BATCH_SEP : CommonProtocol.SEP)
+                    .append(field instanceof Message message ? escapeBatchPart(message.toText()) : text(field));
+            previous = field;
+        }
+        return text.toString();
+    }
+
+    // A null field is sent as an empty one rather than as the text "null"
+    private static String text(Object field) {
+        return field == null ? "" : field.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
@@ -5,6 +5,8 @@ public class UserProtocol {
     public static final String REGISTER = "REGISTER";
     public static final String LOGIN = "LOGIN";
     public static final String LOGOUT = "LOGOUT";
+    // Logs a connection in with the session token returned by LOGIN
+    public static final String RESUME = "RESUME";
 
     // RESPONSE CODES
     public static final String SUCCESS = "SUCCESS";
@@ -13,6 +15,8 @@ public class UserProtocol {
     public static final String USER_ALREADY_EXISTS = "USER_ALREADY_EXISTS";
     public static final String NO_USER = "NO_USER";
     public static final String INVALID_CREDENTIALS = "INVALID_CREDENTIALS";
+    public static final String SERVER_BUSY = "SERVER_BUSY";
+    public static final String INVALID_SESSION = "INVALID_SESSION";
 
     // WRONG REQUEST FORMAT CODES
     public static final String INVALID_FORMAT = "INVALID_FORMAT";
@@ -0,0 +1,75 @@
+package utils.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * AtomicFiles writes files so that they are either fully replaced or left as they were.
+ * A file is written to a temporary file next to it, forced to the disk and renamed over the old one,
+ * so a crash in the middle of a save never leaves a half written file behind.
+ */
+public class AtomicFiles {
+    public static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Writes the content of a file.
+     */
+    public interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Writes the content of a text file.
+     */
+    public interface TextContent {
+        void writeTo(Writer writer) throws IOException;
+    }
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * Writes a file atomically.
+     *
+     * @param target  The file to write
+     * @param content Writes the content to a buffered stream
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path target, Content content) throws IOException {
+        Path temp = target.resolveSibling(target.getFileName() + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+            OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+            content.writeTo(buffered);
+            buffered.flush();
+            out.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Adapts text content to a UTF-8 encoded file.
+     *
+     * @param content Writes the text
+     * @return The content of the file
+     */
+    public static Content text(TextContent content) {
+        return out -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE);
+            content.writeTo(writer);
+            writer.flush();
+        };
+    }
+}
@@ -0,0 +1,358 @@
+package utils.storage;
+
+import model.Email;
+import model.User;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * BinaryCodec reads and writes the users and emails files in a compact binary format, which loads
+ * several times faster than JSON since nothing has to be tokenized and timestamps are plain numbers.
+ * <p>
+ * A file starts with a header: the magic number "VMSB", a format version and the kind of record.
+ * Records follow in blocks. A block is the number of records, the number of bytes, the records
+ * and the CRC32 of those bytes, so damage is found before any record of the block is used.
+ * An empty block ends the file, so a file cut short is an error rather than silently missing records.
+ * Each record is its length followed by its fields. Strings are a UTF-8 length (-1 for null) and bytes,
+ * and timestamps are the epoch second and nanosecond of the local date-time taken as UTC.
+ */
+public class BinaryCodec {
+    public static final int VERSION = 1;
+
+    private static final int MAGIC = 0x564D5342; // "VMSB"
+    private static final byte KIND_USERS = 1;
+    private static final byte KIND_EMAILS = 2;
+    // A block is written once it holds this many bytes
+    private static final int BLOCK_BYTES = 1 << 20;
+    private static final long NULL_TIMESTAMP = Long.MIN_VALUE;
+
+    private BinaryCodec() {
+    }
+
+    /**
+     * Writes a map of emails.
+     *
+     * @param emails The emails to write
+     * @param out    The stream, left open
+     * @throws IOException if the stream fails
+     */
+    public static void writeEmails(Map<String, Email> emails, OutputStream out) throws IOException {
+        BlockWriter writer = new BlockWriter(out, KIND_EMAILS);
+        for (Map.Entry<String, Email> entry : emails.entrySet()) {
+            DataOutputStream record = writer.startRecord();
+            writeString(record, entry.getKey());
+            writeEmail(record, entry.getValue());
+            writer.endRecord();
+        }
+        writer.finish();
+    }
+
+    /**
+     * Reads the emails of a file into a map.
+     *
+     * @param in   The stream, left open
+     * @param into The map the emails are put in
+     * @throws IOException if the stream fails or the file is damaged
+     */
+    public static void readEmails(InputStream in, Map<String, Email> into) throws IOException {
+        readBlocks(in, KIND_EMAILS, record -> {
+            String key = readString(record);
+            Email email = readEmail(record);
+            if (email != null) {
+                into.put(key, email);
+            }
+        });
+    }
+
+    /**
+     * Writes a map of users. The raw password is never written.
+     *
+     * @param users The users to write
+     * @param out   The stream, left open
+     * @throws IOException if the stream fails
+     */
+    public static void writeUsers(Map<String, User> users, OutputStream out) throws IOException {
+        BlockWriter writer = new BlockWriter(out, KIND_USERS);
+        for (Map.Entry<String, User> entry : users.entrySet()) {
+            DataOutputStream record = writer.startRecord();
+            writeString(record, entry.getKey());
+            writeUser(record, entry.getValue());
+            writer.endRecord();
+        }
+        writer.finish();
+    }
+
+    /**
+     * Reads the users of a file into a map.
+     *
+     * @param in   The stream, left open
+     * @param into The map the users are put in
+     * @throws IOException if the stream fails or the file is damaged
+     */
+    public static void readUsers(InputStream in, Map<String, User> into) throws IOException {
+        readBlocks(in, KIND_USERS, record -> {
+            String key = readString(record);
+            User user = readUser(record);
+            if (user != null) {
+                into.put(key, user);
+            }
+        });
+    }
+
+    /**
+     * Reads one record from the bytes of a block.
+     */
+    private interface RecordReader {
+        void read(ByteBuffer record) throws IOException;
+    }
+
+    /**
+     * Collects records into blocks and writes each full block with its checksum.
+     */
+    private static final class BlockWriter {
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + BLOCK_BYTES / 4);
+        private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+        private final DataOutputStream record = new DataOutputStream(recordBytes);
+        private final DataOutputStream blockData = new DataOutputStream(block);
+        private int recordCount = 0;
+
+        BlockWriter(OutputStream out, byte kind) throws IOException {
+            this.out = new DataOutputStream(out);
+            this.out.writeInt(MAGIC);
+            this.out.writeShort(VERSION);
+            this.out.writeByte(kind);
+        }
+
+        DataOutputStream startRecord() {
+            recordBytes.reset();
+            return record;
+        }
+
+        void endRecord() throws IOException {
+            record.flush();
+            blockData.writeInt(recordBytes.size());
+            recordBytes.writeTo(blockData);
+            recordCount++;
+            if (block.size() >= BLOCK_BYTES) {
+                writeBlock();
+            }
+        }
+
+        void finish() throws IOException {
+            if (recordCount > 0) {
+                writeBlock();
+            }
+            // The empty block marks the end of the file
+            writeBlock();
+            out.flush();
+        }
+
+        private void writeBlock() throws IOException {
+            blockData.flush();
+            CRC32 crc = new CRC32();
+            byte[] bytes = block.toByteArray();
+            crc.update(bytes);
+            out.writeInt(recordCount);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeInt((int) crc.getValue());
+            block.reset();
+            recordCount = 0;
+        }
+    }
+
+    private static void readBlocks(InputStream in, byte kind, RecordReader reader) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        try {
+            if (data.readInt() != MAGIC) {
+                throw new IOException("Not a binary snapshot file");
+            }
+            int version = data.readUnsignedShort();
+            if (version > VERSION) {
+                throw new IOException("Unsupported binary snapshot version " + version);
+            }
+            if (data.readByte() != kind) {
+                throw new IOException("Binary snapshot holds the wrong kind of record");
+            }
+
+            while (true) {
+                int count = data.readInt();
+                int length = data.readInt();
+                if (count < 0 || length < 0) {
+                    throw new IOException("Damaged block header in binary snapshot");
+                }
+                // Read as it arrives rather than allocated up front, so a damaged length cannot take more
+                // memory than the file holds
+                byte[] bytes = data.readNBytes(length);
+                if (bytes.length < length) {
+                    throw new EOFException();
+                }
+                CRC32 crc = new CRC32();
+                crc.update(bytes);
+                if (data.readInt() != (int) crc.getValue()) {
+                    throw new IOException("Checksum mismatch in binary snapshot");
+                }
+                if (count == 0) {
+                    return;
+                }
+
+                ByteBuffer block = ByteBuffer.wrap(bytes);
+                for (int i = 0; i < count; i++) {
+                    int recordLength = block.getInt();
+                    ByteBuffer record = block.slice(block.position(), recordLength);
+                    block.position(block.position() + recordLength);
+                    reader.read(record);
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Binary snapshot ends before its last block", e);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | DateTimeException e) {
+            // The checksum matched, so this is a bug or a hand-made file rather than disk damage
+            throw new IOException("Malformed record in binary snapshot", e);
+        }
+    }
+
+    private static void writeEmail(DataOutputStream out, Email email) throws IOException {
+        out.writeBoolean(email != null);
+        if (email == null) {
+            return;
+        }
+        writeString(out, email.getId());
+        writeString(out, email.getSender());
+        writeString(out, email.getRecipient());
+        writeString(out, email.getSubject());
+        writeString(out, email.getContent());
+        writeTimestamp(out, email.getTimestamp());
+        out.writeBoolean(email.isViewed());
+    }
+
+    private static Email readEmail(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        Email email = new Email();
+        email.setId(readString(in));
+        email.setSender(readString(in));
+        email.setRecipient(readString(in));
+        email.setSubject(readString(in));
+        email.setContent(readString(in));
+        email.setTimestamp(readTimestamp(in));
+        email.setViewed(in.get() != 0);
+        return email;
+    }
+
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        out.writeBoolean(user != null);
+        if (user == null) {
+            return;
+        }
+        out.writeBoolean(user.getId() != null);
+        if (user.getId() != null) {
+            out.writeLong(user.getId().getMostSignificantBits());
+            out.writeLong(user.getId().getLeastSignificantBits());
+        }
+        writeString(out, user.getFirstName());
+        writeString(out, user.getLastName());
+        writeString(out, user.getEmail());
+        writeString(out, user.getHashedPassword());
+        writeString(out, user.getSalt());
+        out.writeBoolean(user.isLoggedIn());
+        writeEmailList(out, user.getEmailsSent());
+        writeEmailList(out, user.getEmailsReceived());
+    }
+
+    private static User readUser(ByteBuffer in) {
+        if (in.get() == 0) {
+            return null;
+        }
+        User user = new User();
+        if (in.get() != 0) {
+            user.setId(new UUID(in.getLong(), in.getLong()));
+        }
+        user.setFirstName(readString(in));
+        user.setLastName(readString(in));
+        user.setEmail(readString(in));
+        user.setHashedPassword(readString(in));
+        user.setSalt(readString(in));
+        user.setLoggedIn(in.get() != 0);
+        user.setEmailsSent(readEmailList(in));
+        user.setEmailsReceived(readEmailList(in));
+        return user;
+    }
+
+    private static void writeEmailList(DataOutputStream out, List<Email> emails) throws IOException {
+        out.writeInt(emails == null ? -1 : emails.size());
+        if (emails != null) {
+            for (Email email : emails) {
+                writeEmail(out, email);
+            }
+        }
+    }
+
+    private static List<Email> readEmailList(ByteBuffer in) {
+        int size = in.getInt();
+        if (size < 0) {
+            return null;
+        }
+        List<Email> emails = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            emails.add(readEmail(in));
+        }
+        return emails;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    private static void writeTimestamp(DataOutputStream out, LocalDateTime timestamp) throws IOException {
+        if (timestamp == null) {
+            out.writeLong(NULL_TIMESTAMP);
+            return;
+        }
+        out.writeLong(timestamp.toEpochSecond(ZoneOffset.UTC));
+        out.writeInt(timestamp.getNano());
+    }
+
+    private static LocalDateTime readTimestamp(ByteBuffer in) {
+        long seconds = in.getLong();
+        if (seconds == NULL_TIMESTAMP) {
+            return null;
+        }
+        return LocalDateTime.ofEpochSecond(seconds, in.getInt(), ZoneOffset.UTC);
+    }
+}
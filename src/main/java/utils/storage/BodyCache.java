@@ -0,0 +1,124 @@
+package utils.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * BodyCache keeps the most recently read email contents that are not kept on the heap otherwise,
+ * so reading the same email again does not decode it from its file again.
+ * It is bounded by the estimated size of the contents it holds and evicts the least recently used first.
+ * Hits, misses and evictions are counted to tune its size. It is thread-safe.
+ */
+public class BodyCache {
+    // Estimated size of a String and its map entry, on top of the characters
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    // Guarded by this, in access order so the first entry is the least recently used
+    private final LinkedHashMap<Object, String> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxBytes The largest estimated size of the contents held
+     */
+    public BodyCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Gets a content from the cache, or reads and caches it.
+     * The content is read without holding the lock, so a slow read never blocks other readers.
+     *
+     * @param key    Identifies the content
+     * @param loader Reads the content
+     * @return The content
+     */
+    public String get(Object key, Supplier<String> loader) {
+        synchronized (this) {
+            String cached = entries.get(key);
+            if (cached != null) {
+                hits.increment();
+                return cached;
+            }
+        }
+        misses.increment();
+        String content = loader.get();
+        long size = sizeOf(content);
+        if (size > maxBytes) {
+            return content;
+        }
+        synchronized (this) {
+            if (entries.putIfAbsent(key, content) == null) {
+                bytes += size;
+                evict();
+            }
+        }
+        return content;
+    }
+
+    /**
+     * Removes every content.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Object, String>> eldest = entries.entrySet().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= sizeOf(eldest.next().getValue());
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private static long sizeOf(String content) {
+        // Two bytes per character, the most a String takes, so the bound is never exceeded
+        return ENTRY_OVERHEAD + 2L * content.length();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the share of reads served from the cache.
+     *
+     * @return the hit ratio between 0 and 1, or 0 if nothing was read
+     */
+    public double getHitRatio() {
+        long hitCount = getHits();
+        long total = hitCount + getMisses();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+}
@@ -0,0 +1,65 @@
+package utils.storage;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ChangeTracker remembers the keys of the entries changed since they were last saved,
+ * so a save only has to write those entries. It is thread-safe.
+ * A change must be marked after it has been applied, so an entry drained for a save is either
+ * saved with the change or marked again and saved by the next one.
+ */
+public class ChangeTracker {
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Marks an entry as changed.
+     *
+     * @param key The key of the entry
+     */
+    public void markChanged(String key) {
+        changed.add(key);
+    }
+
+    /**
+     * Marks entries as changed, e.g. to give back the keys of a save that failed.
+     *
+     * @param keys The keys of the entries
+     */
+    public void markAllChanged(Collection<String> keys) {
+        changed.addAll(keys);
+    }
+
+    /**
+     * Takes the keys of all changed entries and forgets them.
+     *
+     * @return The keys changed since the last drain
+     */
+    public Set<String> drain() {
+        Set<String> drained = new HashSet<>();
+        for (Iterator<String> keys = changed.iterator(); keys.hasNext(); ) {
+            drained.add(keys.next());
+            keys.remove();
+        }
+        return drained;
+    }
+
+    /**
+     * Forgets all changes, e.g. after the data has been replaced by a load.
+     */
+    public void clear() {
+        changed.clear();
+    }
+
+    /**
+     * Gets the number of changed entries.
+     *
+     * @return The number of keys waiting to be saved
+     */
+    public int size() {
+        return changed.size();
+    }
+}
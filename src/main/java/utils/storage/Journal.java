@@ -0,0 +1,509 @@
+package utils.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import exception.JournalException;
+import lombok.extern.slf4j.Slf4j;
+import utils.LocalDateTimeAdapter;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Journal is an append-only log of every change to the server state.
+ * A change is appended to the journal, only then applied in memory, and then answered, so every change a client
+ * has been told about survives a crash, and a change that could not be journaled is not made at all.
+ * At startup the journal is replayed over the last saved snapshot.
+ * <p>
+ * The journal is split into numbered segment files. Saving a snapshot first rotates to a new segment,
+ * then deletes the older ones, since everything in them is in the snapshot. Rotating waits for the changes
+ * that are journaled but not applied yet, so every change in the older segments is in memory by then.
+ * <p>
+ * If a batch cannot be written, its appends fail and what was written of it is cut off again. The next batch
+ * goes to a new segment, so the journal carries on once the disk is writable again.
+ * <p>
+ * Appends use group commit: one writer thread writes every record waiting at that moment with a single
+ * write and a single fsync, while the appending threads wait for their record to be on disk.
+ * How records are batched can be changed with these system properties:
+ * <ul>
+ *     <li>server.journal.fsync: force each batch to the disk (default true). Without it a batch only
+ *     reaches the operating system, which survives a crash of the server but not of the machine.</li>
+ *     <li>server.journal.batch.delay: milliseconds the writer waits for more records before writing a batch (default 0).</li>
+ *     <li>server.journal.batch.size: number of records that ends that wait early (default 256).</li>
+ * </ul>
+ * Each line is the CRC32 of the record in hex, a space and the record as JSON.
+ * A damaged line, e.g. one cut short by a crash, ends the replay of its segment.
+ */
+@Slf4j
+public class Journal implements Closeable {
+    public static final String DEFAULT_DIRECTORY = "data/journal";
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final boolean DEFAULT_FSYNC = Boolean.parseBoolean(System.getProperty("server.journal.fsync", "true"));
+    private static final long DEFAULT_BATCH_DELAY_MILLIS = Long.getLong("server.journal.batch.delay", 0);
+    private static final int DEFAULT_BATCH_SIZE = Integer.getInteger("server.journal.batch.size", 256);
+
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+            .create();
+
+    private final Path directory;
+    private final boolean fsync;
+    private final long batchDelayNanos;
+    private final int batchSize;
+    private final Thread writer;
+
+    // Held for reading from appending a change until it is applied, and for writing while rotating
+    private final ReadWriteLock rotation = new ReentrantReadWriteLock();
+
+    // Guards everything below, and is what appending threads wait on
+    private final Object lock = new Object();
+    private List<Entry> pending = new ArrayList<>();
+    private long appended = 0;
+    private long segment;
+    private boolean rotateRequested = false;
+    private IOException rotateFailure;
+    private boolean closed = false;
+    private IOException closeFailure;
+
+    // Only used by the writer thread once it has started, null after a failed write
+    private FileChannel channel;
+
+    /**
+     * One appended record, waiting to be written.
+     */
+    private static final class Entry {
+        private final ByteBuffer line;
+        // Guarded by the lock of the journal
+        private boolean done;
+        private IOException failure;
+
+        Entry(ByteBuffer line) {
+            this.line = line;
+        }
+    }
+
+    /**
+     * Opens a journal in the default directory with the batching set by the system properties.
+     *
+     * @return The open journal
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public static Journal open() throws IOException {
+        return new Journal(Path.of(DEFAULT_DIRECTORY), DEFAULT_FSYNC, DEFAULT_BATCH_DELAY_MILLIS, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Opens a journal, writing to a new segment after any that already exist.
+     *
+     * @param directory        The directory holding the segment files
+     * @param fsync            Force each batch to the disk
+     * @param batchDelayMillis How long the writer waits for more records before writing a batch
+     * @param batchSize        The number of records that ends that wait early
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    public Journal(Path directory, boolean fsync, long batchDelayMillis, int batchSize) throws IOException {
+        this.directory = directory;
+        this.fsync = fsync;
+        this.batchDelayNanos = TimeUnit.MILLISECONDS.toNanos(batchDelayMillis);
+        this.batchSize = batchSize;
+
+        Files.createDirectories(directory);
+        List<Long> existing = segments(directory);
+        this.segment = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        this.channel = openSegment(segment);
+
+        this.writer = new Thread(this::writeLoop, "journal-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+        log.info("Journal opened at {}, segment {}, fsync {}", directory, segment, fsync);
+    }
+
+    /**
+     * Appends a record and waits until it has been written, together with any records appended at the same time.
+     *
+     * @param record The change to journal
+     * @throws JournalException if the record could not be written
+     */
+    public void append(JournalRecord record) {
+        Entry entry = new Entry(encode(record));
+        synchronized (lock) {
+            if (closed) {
+                throw new JournalException("Journal is closed", null);
+            }
+            pending.add(entry);
+            appended++;
+            lock.notifyAll();
+            try {
+                while (!entry.done) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new JournalException("Interrupted while waiting for the journal", e);
+            }
+            if (entry.failure != null) {
+                throw new JournalException("Failed to write the journal", entry.failure);
+            }
+        }
+    }
+
+    /**
+     * Appends a record, waits until it has been written and then applies the change it describes.
+     * If the record cannot be written, the change is not applied.
+     * The journal does not rotate in between, so a snapshot never misses a change that is only in an older segment.
+     *
+     * @param record The change to journal
+     * @param change Applies the change in memory
+     * @throws JournalException if the record could not be written
+     */
+    public void append(JournalRecord record, Runnable change) {
+        rotation.readLock().lock();
+        try {
+            append(record);
+            change.run();
+        } finally {
+            rotation.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of records appended since the journal was opened.
+     *
+     * @return The record count
+     */
+    public long getAppendedCount() {
+        synchronized (lock) {
+            return appended;
+        }
+    }
+
+    /**
+     * Waits for the journaled changes to be applied, writes all appended records, then starts a new segment.
+     * Called before saving a snapshot: once the snapshot is saved, all segments before the returned one can be deleted.
+     *
+     * @return The number of the new segment
+     * @throws IOException if the new segment could not be created
+     */
+    public long rotate() throws IOException {
+        rotation.writeLock().lock();
+        try {
+            synchronized (lock) {
+                if (closed) {
+                    throw new IOException("Journal is closed");
+                }
+                rotateRequested = true;
+                lock.notifyAll();
+                try {
+                    while (rotateRequested) {
+                        lock.wait();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rotating the journal");
+                }
+                if (rotateFailure != null) {
+                    throw new IOException("Failed to rotate the journal", rotateFailure);
+                }
+                return segment;
+            }
+        } finally {
+            rotation.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments before the given one, e.g. once a snapshot holds all of their changes.
+     *
+     * @param before The first segment to keep
+     * @throws IOException if a segment cannot be deleted
+     */
+    public void deleteSegmentsBefore(long before) throws IOException {
+        deleteSegments(directory, before);
+    }
+
+    /**
+     * Writes the remaining records and closes the journal.
+     *
+     * @throws IOException if the remaining records could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the journal");
+        }
+        synchronized (lock) {
+            if (closeFailure != null) {
+                throw new IOException("Failed to write the journal", closeFailure);
+            }
+        }
+        log.info("Journal closed");
+    }
+
+    /**
+     * Reads every record in the journal directory, oldest first.
+     *
+     * @param directory The directory holding the segment files
+     * @param consumer  Receives each record
+     * @return The number of records read
+     * @throws IOException if a segment cannot be read
+     */
+    public static long replay(Path directory, Consumer<JournalRecord> consumer) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        long count = 0;
+        for (long number : segments(directory)) {
+            Path file = segmentPath(directory, number);
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    JournalRecord record = decode(line);
+                    if (record == null) {
+                        log.warn("Damaged journal record in {} at line {}, ignoring the rest of the segment", file, lineNumber);
+                        break;
+                    }
+                    consumer.accept(record);
+                    count++;
+                }
+            }
+        }
+        log.info("Replayed {} journal records from {}", count, directory);
+        return count;
+    }
+
+    /**
+     * Deletes the segments before the given one from a journal directory.
+     *
+     * @param directory The directory holding the segment files
+     * @param before    The first segment to keep, or Long.MAX_VALUE to delete all
+     * @throws IOException if a segment cannot be deleted
+     */
+    public static void deleteSegments(Path directory, long before) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        for (long number : segments(directory)) {
+            if (number < before) {
+                Files.deleteIfExists(segmentPath(directory, number));
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (true) {
+            List<Entry> batch;
+            boolean rotate;
+            boolean stop;
+            synchronized (lock) {
+                try {
+                    while (pending.isEmpty() && !rotateRequested && !closed) {
+                        lock.wait();
+                    }
+                    // Give other threads a moment to join the batch
+                    long deadline = System.nanoTime() + batchDelayNanos;
+                    long remaining;
+                    while (!closed && !rotateRequested && pending.size() < batchSize
+                            && (remaining = deadline - System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                rotate = rotateRequested;
+                stop = closed;
+            }
+
+            IOException batchFailure = null;
+            try {
+                write(batch);
+            } catch (IOException e) {
+                log.error("Failed to write {} journal records, their changes are not applied", batch.size(), e);
+                batchFailure = e;
+            }
+            IOException rotationFailure = null;
+            if (rotate) {
+                try {
+                    closeSegment();
+                    openNextSegment();
+                } catch (IOException e) {
+                    log.error("Failed to rotate the journal", e);
+                    rotationFailure = e;
+                }
+            }
+            if (stop) {
+                try {
+                    closeSegment();
+                } catch (IOException e) {
+                    batchFailure = batchFailure != null ? batchFailure : e;
+                }
+            }
+
+            synchronized (lock) {
+                for (Entry entry : batch) {
+                    entry.done = true;
+                    entry.failure = batchFailure;
+                }
+                if (rotate) {
+                    rotateRequested = false;
+                    rotateFailure = rotationFailure;
+                }
+                if (stop) {
+                    closeFailure = batchFailure;
+                }
+                lock.notifyAll();
+            }
+            if (stop) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a batch. If it fails, what was written of it is cut off and the segment is closed,
+     * so the next batch starts a new one.
+     */
+    private void write(List<Entry> batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (channel == null) {
+            openNextSegment();
+        }
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = batch.get(i).line;
+        }
+        long start = channel.size();
+        try {
+            ByteBuffer last = buffers[buffers.length - 1];
+            while (last.hasRemaining()) {
+                channel.write(buffers);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            try {
+                // The appends fail, so their records must not be replayed either
+                channel.truncate(start);
+            } catch (IOException truncateFailure) {
+                e.addSuppressed(truncateFailure);
+            }
+            try {
+                closeSegment();
+            } catch (IOException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        FileChannel current = channel;
+        channel = null;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    private void openNextSegment() throws IOException {
+        long next;
+        synchronized (lock) {
+            next = segment + 1;
+        }
+        channel = openSegment(next);
+        synchronized (lock) {
+            segment = next;
+        }
+    }
+
+    private FileChannel openSegment(long number) throws IOException {
+        return FileChannel.open(segmentPath(directory, number),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static Path segmentPath(Path directory, long number) {
+        return directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    /**
+     * Lists the segment numbers in a journal directory, in ascending order.
+     */
+    private static List<Long> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()))
+                    .filter(number -> !number.isEmpty() && number.chars().allMatch(Character::isDigit))
+                    .map(Long::parseLong)
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static ByteBuffer encode(JournalRecord record) {
+        byte[] json = gson.toJson(record).getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        byte[] prefix = String.format("%08x ", crc.getValue()).getBytes(StandardCharsets.US_ASCII);
+
+        ByteBuffer line = ByteBuffer.allocate(prefix.length + json.length + 1);
+        line.put(prefix).put(json).put((byte) '\n');
+        return line.flip();
+    }
+
+    /**
+     * Decodes one journal line.
+     *
+     * @return The record, or null if the line is damaged
+     */
+    private static JournalRecord decode(String line) {
+        if (line.length() < 10 || line.charAt(8) != ' ') {
+            return null;
+        }
+        try {
+            long expected = Long.parseLong(line.substring(0, 8), 16);
+            String json = line.substring(9);
+            CRC32 crc = new CRC32();
+            crc.update(json.getBytes(StandardCharsets.UTF_8));
+            if (crc.getValue() != expected) {
+                return null;
+            }
+            return gson.fromJson(json, JournalRecord.class);
+        } catch (NumberFormatException | JsonParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package utils.storage;
+
+import model.Email;
+import model.User;
+
+import java.util.Map;
+
+/**
+ * JournalRecord is one change to the server state, as written to the journal.
+ * Only the fields needed by its type are set, the others are null and left out of the journal line.
+ * Applying a record twice has the same effect as applying it once, so a record that is both in
+ * a snapshot and in the journal can safely be replayed.
+ *
+ * @param type    The kind of change
+ * @param user    The registered user, for REGISTER_USER
+ * @param email   The sent email, for SEND_EMAIL
+ * @param emailId The ID of the viewed email, for MARK_VIEWED
+ */
+public record JournalRecord(Type type, User user, Email email, String emailId) {
+
+    /**
+     * The kinds of change that are journaled.
+     */
+    public enum Type {
+        REGISTER_USER,
+        SEND_EMAIL,
+        MARK_VIEWED
+    }
+
+    public static JournalRecord userRegistered(User user) {
+        return new JournalRecord(Type.REGISTER_USER, user, null, null);
+    }
+
+    public static JournalRecord emailSent(Email email) {
+        return new JournalRecord(Type.SEND_EMAIL, null, email, null);
+    }
+
+    public static JournalRecord emailViewed(String emailId) {
+        return new JournalRecord(Type.MARK_VIEWED, null, null, emailId);
+    }
+
+    /**
+     * Gets the key of the changed entry: the email address of the registered user,
+     * or the ID of the sent or viewed email.
+     *
+     * @return The key of the user or email the record changes
+     */
+    public String key() {
+        return switch (type) {
+            case REGISTER_USER -> user.getEmail();
+            case SEND_EMAIL -> email.getId();
+            case MARK_VIEWED -> emailId;
+        };
+    }
+
+    /**
+     * Applies the change to maps loaded from a snapshot.
+     *
+     * @param users  The users by email address
+     * @param emails The emails by ID
+     */
+    public void applyTo(Map<String, User> users, Map<String, Email> emails) {
+        switch (type) {
+            case REGISTER_USER -> users.put(user.getEmail(), user);
+            // The journaled copy replaces a saved one, whose content may not have reached the disk before a crash
+            case SEND_EMAIL -> {
+                Email saved = emails.put(email.getId(), email);
+                if (saved != null && saved.isViewed()) {
+                    email.setViewed(true);
+                }
+            }
+            case MARK_VIEWED -> {
+                Email viewed = emails.get(emailId);
+                if (viewed != null) {
+                    viewed.setViewed(true);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,319 @@
+package utils.storage;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+import model.Email;
+import model.User;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * JsonCodec reads and writes the users and emails files one record at a time with Gson's streaming API,
+ * instead of building the whole map with reflection and copying it afterwards.
+ * Records are read straight into the map that will hold them, so loading keeps one copy of the data in memory.
+ * The format is the one Gson wrote before: an object from key to record, with the same field names,
+ * ISO timestamps and null fields left out. Unknown fields are skipped. Output is not pretty printed.
+ */
+public class JsonCodec {
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+    private JsonCodec() {
+    }
+
+    /**
+     * Writes a map of emails as a JSON object from key to email.
+     *
+     * @param emails The emails to write
+     * @param out    The writer, left open
+     * @throws IOException if the writer fails
+     */
+    public static void writeEmails(Map<String, Email> emails, Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        for (Map.Entry<String, Email> entry : emails.entrySet()) {
+            writer.name(entry.getKey());
+            writeEmail(writer, entry.getValue());
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Reads a JSON object from key to email into a map.
+     *
+     * @param in   The reader, left open
+     * @param into The map the emails are put in
+     * @throws IOException if the reader fails or the JSON is malformed
+     */
+    public static void readEmails(Reader in, Map<String, Email> into) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        if (reader.peek() == JsonToken.END_DOCUMENT) {
+            return;
+        }
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                Email email = readEmail(reader);
+                if (email != null) {
+                    into.put(key, email);
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | IllegalArgumentException | DateTimeException e) {
+            // Unexpected tokens, bad UUIDs and bad timestamps are malformed input like any other
+            throw new MalformedJsonException("Malformed email at " + reader.getPath(), e);
+        }
+    }
+
+    /**
+     * Writes a map of users as a JSON object from key to user.
+     *
+     * @param users The users to write
+     * @param out   The writer, left open
+     * @throws IOException if the writer fails
+     */
+    public static void writeUsers(Map<String, User> users, Writer out) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginObject();
+        for (Map.Entry<String, User> entry : users.entrySet()) {
+            writer.name(entry.getKey());
+            writeUser(writer, entry.getValue());
+        }
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Reads a JSON object from key to user into a map.
+     *
+     * @param in   The reader, left open
+     * @param into The map the users are put in
+     * @throws IOException if the reader fails or the JSON is malformed
+     */
+    public static void readUsers(Reader in, Map<String, User> into) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        if (reader.peek() == JsonToken.END_DOCUMENT) {
+            return;
+        }
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String key = reader.nextName();
+                User user = readUser(reader);
+                if (user != null) {
+                    into.put(key, user);
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | IllegalArgumentException | DateTimeException e) {
+            // Unexpected tokens, bad UUIDs and bad timestamps are malformed input like any other
+            throw new MalformedJsonException("Malformed user at " + reader.getPath(), e);
+        }
+    }
+
+    /**
+     * Writes one email as a JSON object.
+     *
+     * @param writer The JSON writer
+     * @param email  The email, may be null
+     * @throws IOException if the writer fails
+     */
+    public static void writeEmail(JsonWriter writer, Email email) throws IOException {
+        if (email == null) {
+            writer.nullValue();
+            return;
+        }
+        writer.beginObject();
+        writeString(writer, "id", email.getId());
+        writeString(writer, "sender", email.getSender());
+        writeString(writer, "recipient", email.getRecipient());
+        writeString(writer, "subject", email.getSubject());
+        writeString(writer, "content", email.getContent());
+        if (email.getTimestamp() != null) {
+            writer.name("timestamp").value(email.getTimestamp().format(TIMESTAMP_FORMAT));
+        }
+        writer.name("viewed").value(email.isViewed());
+        writer.endObject();
+    }
+
+    /**
+     * Reads one email from a JSON object.
+     *
+     * @param reader The JSON reader
+     * @return The email, or null for a JSON null
+     * @throws IOException if the reader fails or the JSON is malformed
+     */
+    public static Email readEmail(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        Email email = new Email();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id" -> email.setId(reader.nextString());
+                case "sender" -> email.setSender(reader.nextString());
+                case "recipient" -> email.setRecipient(reader.nextString());
+                case "subject" -> email.setSubject(reader.nextString());
+                case "content" -> email.setContent(reader.nextString());
+                case "timestamp" -> email.setTimestamp(parseTimestamp(reader.nextString()));
+                case "viewed" -> email.setViewed(reader.nextBoolean());
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return email;
+    }
+
+    /**
+     * Writes one user as a JSON object. The raw password is never written.
+     *
+     * @param writer The JSON writer
+     * @param user   The user, may be null
+     * @throws IOException if the writer fails
+     */
+    public static void writeUser(JsonWriter writer, User user) throws IOException {
+        if (user == null) {
+            writer.nullValue();
+            return;
+        }
+        writer.beginObject();
+        if (user.getId() != null) {
+            writer.name("id").value(user.getId().toString());
+        }
+        writeString(writer, "firstName", user.getFirstName());
+        writeString(writer, "lastName", user.getLastName());
+        writeString(writer, "email", user.getEmail());
+        writeString(writer, "hashedPassword", user.getHashedPassword());
+        writeString(writer, "salt", user.getSalt());
+        writer.name("isLoggedIn").value(user.isLoggedIn());
+        writeEmailList(writer, "emailsSent", user.getEmailsSent());
+        writeEmailList(writer, "emailsReceived", user.getEmailsReceived());
+        writer.endObject();
+    }
+
+    /**
+     * Reads one user from a JSON object.
+     *
+     * @param reader The JSON reader
+     * @return The user, or null for a JSON null
+     * @throws IOException if the reader fails or the JSON is malformed
+     */
+    public static User readUser(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        User user = new User();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+                case "id" -> user.setId(UUID.fromString(reader.nextString()));
+                case "firstName" -> user.setFirstName(reader.nextString());
+                case "lastName" -> user.setLastName(reader.nextString());
+                case "email" -> user.setEmail(reader.nextString());
+                case "hashedPassword" -> user.setHashedPassword(reader.nextString());
+                case "salt" -> user.setSalt(reader.nextString());
+                case "isLoggedIn" -> user.setLoggedIn(reader.nextBoolean());
+                case "emailsSent" -> user.setEmailsSent(readEmailList(reader));
+                case "emailsReceived" -> user.setEmailsReceived(readEmailList(reader));
+                default -> reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return user;
+    }
+
+    /**
+     * Parses an ISO timestamp. The yyyy-MM-ddTHH:mm:ss[.fraction] form written by this codec is parsed by hand,
+     * which is several times faster than the formatter when loading every email at startup.
+     * Any other form goes through the formatter.
+     *
+     * @param text The timestamp
+     * @return The parsed timestamp
+     * @throws DateTimeException if the text is not a valid timestamp
+     */
+    static LocalDateTime parseTimestamp(String text) {
+        int length = text.length();
+        boolean fixedForm = length >= 19 && length != 20 && length <= 29
+                && text.charAt(4) == '-' && text.charAt(7) == '-' && text.charAt(10) == 'T'
+                && text.charAt(13) == ':' && text.charAt(16) == ':'
+                && (length == 19 || text.charAt(19) == '.');
+        if (!fixedForm) {
+            return LocalDateTime.parse(text, TIMESTAMP_FORMAT);
+        }
+        int nanos = 0;
+        for (int i = 20; i < 29; i++) {
+            nanos = nanos * 10 + (i < length ? digit(text, i) : 0);
+        }
+        return LocalDateTime.of(digits(text, 0, 4), digits(text, 5, 7), digits(text, 8, 10),
+                digits(text, 11, 13), digits(text, 14, 16), digits(text, 17, 19), nanos);
+    }
+
+    private static int digits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            value = value * 10 + digit(text, i);
+        }
+        return value;
+    }
+
+    private static int digit(String text, int index) {
+        char c = text.charAt(index);
+        if (c < '0' || c > '9') {
+            throw new DateTimeParseException("Invalid timestamp: " + text, text, index);
+        }
+        return c - '0';
+    }
+
+    private static void writeString(JsonWriter writer, String name, String value) throws IOException {
+        if (value != null) {
+            writer.name(name).value(value);
+        }
+    }
+
+    private static void writeEmailList(JsonWriter writer, String name, List<Email> emails) throws IOException {
+        if (emails == null) {
+            return;
+        }
+        writer.name(name).beginArray();
+        for (Email email : emails) {
+            writeEmail(writer, email);
+        }
+        writer.endArray();
+    }
+
+    private static List<Email> readEmailList(JsonReader reader) throws IOException {
+        List<Email> emails = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            emails.add(readEmail(reader));
+        }
+        reader.endArray();
+        return emails;
+    }
+}
@@ -0,0 +1,151 @@
+package utils.storage;
+
+import lombok.extern.slf4j.Slf4j;
+import model.Email;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * MailboxPager loads the emails of the last save one mailbox at a time, the first time each is needed,
+ * instead of all of them before the server starts.
+ * <p>
+ * Emails are saved in segments by recipient, and the manifest lists the segments each sender has emails in,
+ * so a user's mailbox is loaded by reading just those segments. A segment holds the mailboxes of other users too,
+ * and all of its emails are handed over, so it is never read twice. The deltas of the save are small and are
+ * loaded up front with loadDeltas.
+ * <p>
+ * A full save, e.g. a conversion, writes a new generation of segments and deletes the old ones. When a segment
+ * is gone, the pager reads the new manifest and carries on with its segments. It is thread-safe.
+ */
+@Slf4j
+public class MailboxPager {
+    private final SegmentedEmailStore store;
+    private final Set<String> loadedUsers = ConcurrentHashMap.newKeySet();
+    private volatile boolean complete;
+
+    // Guarded by this
+    private SegmentedEmailStore.Manifest manifest;
+    private final Set<Integer> loadedSegments = new HashSet<>();
+
+    /**
+     * Creates a pager over the current snapshot of a store.
+     *
+     * @param store The store the emails were saved in
+     * @throws IOException if the manifest cannot be read
+     */
+    public MailboxPager(SegmentedEmailStore store) throws IOException {
+        this.store = store;
+        this.manifest = store.readManifest();
+    }
+
+    /**
+     * Loads the emails of the deltas of the snapshot, the emails that changed since its segments were saved.
+     *
+     * @return The emails by key
+     * @throws IOException if a delta cannot be read
+     */
+    public synchronized ConcurrentHashMap<String, Email> loadDeltas() throws IOException {
+        return store.loadDeltas(manifest);
+    }
+
+    /**
+     * Checks if the mailbox of a user has been loaded.
+     *
+     * @param user The email address of the user
+     * @return true if all emails of the user have been handed over
+     */
+    public boolean isLoaded(String user) {
+        return complete || loadedUsers.contains(user);
+    }
+
+    /**
+     * Checks if every segment has been loaded.
+     *
+     * @return true if all emails have been handed over
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Loads the mailbox of a user, unless it has been loaded before.
+     * The emails of each segment read are handed over before the user counts as loaded.
+     *
+     * @param user The email address of the user
+     * @param into Takes the emails of each segment read, by key
+     * @throws IOException if a segment cannot be read
+     */
+    public synchronized void load(String user, Consumer<Map<String, Email>> into) throws IOException {
+        if (isLoaded(user)) {
+            return;
+        }
+        int read;
+        try {
+            read = loadSegments(manifest.segmentsOf(user), into);
+        } catch (NoSuchFileException e) {
+            refreshManifest();
+            read = loadSegments(manifest.segmentsOf(user), into);
+        }
+        loadedUsers.add(user);
+        log.debug("Loaded the mailbox of {} from {} segments", user, read);
+    }
+
+    /**
+     * Loads every segment not loaded yet, e.g. before a full save.
+     *
+     * @param into Takes the emails of each segment read, by key
+     * @throws IOException if a segment cannot be read
+     */
+    public synchronized void loadAll(Consumer<Map<String, Email>> into) throws IOException {
+        if (complete) {
+            return;
+        }
+        int read;
+        try {
+            read = loadSegments(allSegments(), into);
+        } catch (NoSuchFileException e) {
+            refreshManifest();
+            read = loadSegments(allSegments(), into);
+        }
+        complete = true;
+        log.info("Loaded the remaining {} email segments", read);
+    }
+
+    private int loadSegments(Set<Integer> indexes, Consumer<Map<String, Email>> into) throws IOException {
+        int read = 0;
+        for (int index : indexes) {
+            if (loadedSegments.add(index)) {
+                try {
+                    into.accept(store.loadSegment(manifest, index));
+                } catch (IOException | RuntimeException e) {
+                    loadedSegments.remove(index);
+                    throw e;
+                }
+                read++;
+            }
+        }
+        return read;
+    }
+
+    private Set<Integer> allSegments() {
+        Set<Integer> all = new HashSet<>();
+        for (int i = 0; i < manifest.segments().size(); i++) {
+            all.add(i);
+        }
+        return all;
+    }
+
+    private void refreshManifest() throws IOException {
+        SegmentedEmailStore.Manifest current = store.readManifest();
+        log.info("Email segments were replaced by generation {}, paging from those", current.generation());
+        // The new segments hold every email the old ones did, loaded or not, so only the loaded users carry over
+        manifest = current;
+        loadedSegments.clear();
+    }
+}
@@ -0,0 +1,551 @@
+package utils.storage;
+
+import exception.DamagedContentException;
+import lombok.extern.slf4j.Slf4j;
+import model.ContentSource;
+import model.Email;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.DateTimeException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * MappedMailboxStore keeps the emails in an append-only log of memory-mapped segment files,
+ * so the content of an email does not have to be held on the heap and nothing has to be parsed as JSON on startup.
+ * <p>
+ * Saving an email appends a record with its header fields and content, and moves the content off the heap:
+ * the email only keeps a small reference to the record, and its content is read through the mapping whenever
+ * it is needed. Marking an email as viewed later on appends a small record with just its ID.
+ * Loading scans the records of every segment, reading the header fields and skipping over the contents,
+ * so it touches little more than the headers however large the emails are.
+ * <p>
+ * A segment file starts with the magic number "VMML" and a version, followed by records. A record is its length,
+ * the CRC32 of its header, the header and, for an email, the content. The header of an email holds the CRC32 of its
+ * content, which is checked when the content is first read instead of on load, so a scan never has to read it.
+ * Segments of version 1 have no content checksum. A zero length ends a segment. Segments are mapped at a fixed size, set with
+ * -Dserver.storage.mapped.segment.mb, and a new one is started when a record does not fit.
+ * <p>
+ * Emails younger than the hot age keep their content on the heap after they are saved, since recent mail is
+ * read the most; each save moves the contents of the ones that have grown older off the heap. Contents read
+ * from the mapping go through a size-bounded body cache, so the heap holds recent mail and what is being read,
+ * not every email ever sent. Loaded emails are all read through the cache.
+ * <p>
+ * Writes through the mapping are only forced to the disk by save, so a record that is damaged or cut short ends
+ * the scan of its segment, and a content that does not match its checksum throws a DamagedContentException when read.
+ * The journal still holds every change made since the last save, and replaying it replaces the saved copies of the
+ * emails it holds, so nothing is lost.
+ * It is thread-safe.
+ */
+@Slf4j
+public class MappedMailboxStore implements Closeable {
+    public static final int VERSION = 2;
+
+    private static final int MAGIC = 0x564D4D4C; // "VMML"
+    private static final int FILE_HEADER_BYTES = 8;
+    // The record length and the checksum in front of every record
+    private static final int RECORD_PREFIX_BYTES = 8;
+    private static final byte TYPE_EMAIL = 1;
+    private static final byte TYPE_VIEWED = 2;
+    private static final long NULL_TIMESTAMP = Long.MIN_VALUE;
+    private static final String SEGMENT_PREFIX = "mailbox-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final Duration hotAge;
+    private final BodyCache cache;
+
+    // Guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private final Set<Segment> unforced = new LinkedHashSet<>();
+    // Saved emails whose content is still on the heap, oldest first
+    private final PriorityQueue<Email> hot = new PriorityQueue<>(
+            Comparator.comparing(Email::getTimestamp, Comparator.nullsFirst(Comparator.<LocalDateTime>naturalOrder())));
+    private boolean open;
+    private int position;
+
+    /**
+     * One mapped segment file.
+     */
+    private final class Segment {
+        private final int number;
+        private final MappedByteBuffer buffer;
+        private int version = VERSION;
+        // Set when the store is deleted, so the records in it count as not saved any more
+        private volatile boolean retired;
+
+        Segment(int number, MappedByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+        }
+
+        boolean belongsTo(MappedMailboxStore store) {
+            return store == MappedMailboxStore.this && !retired;
+        }
+
+        String read(Body body) {
+            // A cached content was checked when it was read into the cache
+            return cache == null ? body.decode() : cache.get(body, body::decode);
+        }
+    }
+
+    /**
+     * The content of a saved email: where it is in the mapping, and if its viewed record has been saved.
+     * This is all that is kept on the heap in place of the content.
+     */
+    private static final class Body implements ContentSource {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        // The CRC32 of the content, unknown in a segment of version 1
+        private final Integer checksum;
+        // Guarded by the store
+        private boolean viewedSaved;
+
+        Body(Segment segment, int offset, int length, Integer checksum, boolean viewedSaved) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+            this.viewedSaved = viewedSaved;
+        }
+
+        @Override
+        public String load() {
+            return segment.read(this);
+        }
+
+        private String decode() {
+            byte[] bytes = new byte[length];
+            // An absolute read leaves the position alone, so any number of threads can read at once
+            segment.buffer.get(offset, bytes);
+            if (checksum != null && crc(bytes) != checksum) {
+                throw new DamagedContentException("Damaged email content at " + offset + " in mailbox segment "
+                        + segment.number);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public int size() {
+            return length;
+        }
+    }
+
+    /**
+     * Creates a store that moves every content off the heap when it is saved and does not cache contents.
+     *
+     * @param directory    The directory holding the segment files
+     * @param segmentBytes The size each segment file is mapped at
+     */
+    public MappedMailboxStore(Path directory, int segmentBytes) {
+        this(directory, segmentBytes, Duration.ZERO, null);
+    }
+
+    /**
+     * Creates a store. Nothing is mapped until it is loaded or saved to.
+     *
+     * @param directory    The directory holding the segment files
+     * @param segmentBytes The size each segment file is mapped at
+     * @param hotAge       How long an email keeps its content on the heap after it was sent
+     * @param cache        The cache contents read from the mapping go through, or null to read them every time
+     */
+    public MappedMailboxStore(Path directory, int segmentBytes, Duration hotAge, BodyCache cache) {
+        this.directory = directory;
+        this.segmentBytes = Math.max(segmentBytes, 1 << 16);
+        this.hotAge = hotAge;
+        this.cache = cache;
+    }
+
+    /**
+     * Checks if the store holds any segments.
+     *
+     * @return true if there is a segment file
+     */
+    public synchronized boolean exists() {
+        try {
+            return !segmentFiles().isEmpty();
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Loads the emails from the segments. The contents stay in the mapping and are read when needed.
+     *
+     * @return The emails by ID
+     * @throws IOException if a segment cannot be mapped or is not a mailbox segment
+     */
+    public synchronized ConcurrentHashMap<String, Email> load() throws IOException {
+        unmap();
+        ConcurrentHashMap<String, Email> emails = new ConcurrentHashMap<>();
+        // Senders and recipients repeat across emails, so each address is only kept once
+        Map<String, String> addresses = new HashMap<>();
+        for (Path file : segmentFiles()) {
+            Segment segment = map(file, segmentNumber(file), Files.size(file));
+            position = scan(segment, emails, addresses);
+        }
+        open = true;
+        log.info("Loaded {} emails from {} mapped segments", emails.size(), segments.size());
+        return emails;
+    }
+
+    /**
+     * Saves the emails that are not saved yet and the viewed flags that changed, then forces the segments
+     * to the disk. The content of every email saved is moved off the heap, unless it is younger than the hot age,
+     * and so are the contents of the emails saved earlier that have grown older since.
+     *
+     * @param emails The emails to save, by ID
+     * @return The number of records appended
+     * @throws IOException if a segment cannot be mapped or forced
+     */
+    public synchronized int save(Map<String, Email> emails) throws IOException {
+        if (!open) {
+            // Finds the end of the last segment; the emails are already in memory, so the scan result is dropped
+            load();
+        }
+        int appended = 0;
+        LocalDateTime hotSince = LocalDateTime.now().minus(hotAge);
+        for (Email email : emails.values()) {
+            if (email.getContentSource() instanceof Body body && body.segment.belongsTo(this)) {
+                if (email.isViewed() && !body.viewedSaved) {
+                    appendViewed(email.getId());
+                    body.viewedSaved = true;
+                    appended++;
+                }
+            } else {
+                boolean viewed = email.isViewed();
+                Body body = appendEmail(email, viewed);
+                if (isHot(email, hotSince)) {
+                    email.keepContentWith(body);
+                    hot.add(email);
+                } else {
+                    email.moveContentTo(body);
+                }
+                appended++;
+            }
+        }
+        force();
+        int cooled = moveColdContents(hotSince);
+        if (cooled > 0) {
+            log.debug("Moved the contents of {} emails off the heap, {} are still kept", cooled, hot.size());
+        }
+        return appended;
+    }
+
+    private static boolean isHot(Email email, LocalDateTime hotSince) {
+        return email.getTimestamp() != null && email.getTimestamp().isAfter(hotSince);
+    }
+
+    private int moveColdContents(LocalDateTime hotSince) {
+        int cooled = 0;
+        while (!hot.isEmpty() && !isHot(hot.peek(), hotSince)) {
+            Email email = hot.poll();
+            // Skipped if the content was replaced or the store deleted since it was saved
+            if (email.getContentSource() instanceof Body body && body.segment.belongsTo(this)) {
+                email.moveContentTo(body);
+                cooled++;
+            }
+        }
+        return cooled;
+    }
+
+    /**
+     * Deletes every segment. Emails saved before keep reading their content from the old mapping,
+     * but count as not saved, so the next save writes them again.
+     *
+     * @throws IOException if a file cannot be deleted
+     */
+    public synchronized void delete() throws IOException {
+        unmap();
+        for (Path file : segmentFiles()) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Forgets the mapped segments. The mappings themselves are released once no email refers to them.
+     */
+    @Override
+    public synchronized void close() {
+        unmap();
+    }
+
+    private void unmap() {
+        segments.forEach(segment -> segment.retired = true);
+        segments.clear();
+        unforced.clear();
+        hot.clear();
+        if (cache != null) {
+            cache.clear();
+        }
+        open = false;
+        position = 0;
+    }
+
+    private void force() {
+        for (Segment segment : unforced) {
+            segment.buffer.force();
+        }
+        unforced.clear();
+    }
+
+    private List<Path> segmentFiles() throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> {
+                String name = file.getFileName().toString();
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }).sorted().toList();
+        }
+    }
+
+    private Segment map(Path file, int number, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            Segment segment = new Segment(number, buffer);
+            segments.add(segment);
+            return segment;
+        }
+    }
+
+    /**
+     * Reads the records of a segment into the map.
+     *
+     * @return The position after the last valid record, where the next record goes
+     */
+    private int scan(Segment segment, Map<String, Email> emails, Map<String, String> addresses) throws IOException {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        if (buffer.limit() < FILE_HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a mailbox segment: segment " + segment.number + " in " + directory);
+        }
+        int version = buffer.getShort(4);
+        if (version > VERSION) {
+            throw new IOException("Unsupported mailbox segment version " + version);
+        }
+        segment.version = version;
+
+        int at = FILE_HEADER_BYTES;
+        while (at + RECORD_PREFIX_BYTES <= buffer.limit()) {
+            int length = buffer.getInt(at);
+            if (length <= 0 || length > buffer.limit() - at - RECORD_PREFIX_BYTES) {
+                break;
+            }
+            int start = at + RECORD_PREFIX_BYTES;
+            buffer.limit(start + length).position(start);
+            try {
+                if (!readRecord(segment, buffer, buffer.getInt(at + 4), emails, addresses)) {
+                    break;
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException
+                     | DateTimeException e) {
+                log.warn("Damaged record at {} in mailbox segment {}, ignoring the rest of it", at, segment.number);
+                break;
+            } finally {
+                buffer.limit(buffer.capacity());
+            }
+            at = start + length;
+        }
+        return at;
+    }
+
+    /**
+     * Reads one record, positioned at its type.
+     *
+     * @return false if the checksum does not match
+     */
+    private boolean readRecord(Segment segment, ByteBuffer record, int checksum, Map<String, Email> emails,
+                               Map<String, String> addresses) {
+        int start = record.position();
+        byte type = record.get();
+        if (type == TYPE_VIEWED) {
+            String id = readString(record);
+            if (crc(record, start, record.position()) != checksum) {
+                return false;
+            }
+            Email email = emails.get(id);
+            if (email != null) {
+                email.setViewed(true);
+                if (email.getContentSource() instanceof Body body) {
+                    body.viewedSaved = true;
+                }
+            }
+            return true;
+        }
+        if (type != TYPE_EMAIL) {
+            throw new IllegalArgumentException("Unknown mailbox record type " + type);
+        }
+
+        Email email = new Email();
+        email.setId(readString(record));
+        email.setSender(addresses.computeIfAbsent(readString(record), address -> address));
+        email.setRecipient(addresses.computeIfAbsent(readString(record), address -> address));
+        email.setSubject(readString(record));
+        long seconds = record.getLong();
+        int nanos = record.getInt();
+        email.setTimestamp(seconds == NULL_TIMESTAMP ? null : LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC));
+        email.setViewed(record.get() != 0);
+        int contentLength = record.getInt();
+        Integer contentChecksum = segment.version >= 2 ? record.getInt() : null;
+        if (crc(record, start, record.position()) != checksum || contentLength != record.remaining()) {
+            return false;
+        }
+        email.moveContentTo(new Body(segment, record.position(), contentLength, contentChecksum, email.isViewed()));
+        emails.put(email.getId(), email);
+        return true;
+    }
+
+    private Body appendEmail(Email email, boolean viewed) throws IOException {
+        String text = email.getContent();
+        byte[] content = text == null ? new byte[0] : bytes(text);
+        byte[] id = bytes(email.getId());
+        byte[] sender = bytes(email.getSender());
+        byte[] recipient = bytes(email.getRecipient());
+        byte[] subject = bytes(email.getSubject());
+        ByteBuffer header = ByteBuffer.allocate(1 + stringBytes(id) + stringBytes(sender) + stringBytes(recipient)
+                + stringBytes(subject) + 8 + 4 + 1 + 4 + 4);
+        header.put(TYPE_EMAIL);
+        putString(header, id);
+        putString(header, sender);
+        putString(header, recipient);
+        putString(header, subject);
+        LocalDateTime timestamp = email.getTimestamp();
+        header.putLong(timestamp == null ? NULL_TIMESTAMP : timestamp.toEpochSecond(ZoneOffset.UTC));
+        header.putInt(timestamp == null ? 0 : timestamp.getNano());
+        header.put((byte) (viewed ? 1 : 0));
+        header.putInt(content.length);
+        int contentChecksum = crc(content);
+        header.putInt(contentChecksum);
+
+        int contentOffset = append(header.array(), content);
+        return new Body(segments.get(segments.size() - 1), contentOffset, content.length, contentChecksum, viewed);
+    }
+
+    private void appendViewed(String id) throws IOException {
+        byte[] bytes = bytes(id);
+        ByteBuffer header = ByteBuffer.allocate(1 + stringBytes(bytes));
+        header.put(TYPE_VIEWED);
+        putString(header, bytes);
+        append(header.array(), new byte[0]);
+    }
+
+    /**
+     * Appends a record to the last segment, or to a new one if it does not fit.
+     *
+     * @return The offset of the content in the segment
+     */
+    private int append(byte[] header, byte[] content) throws IOException {
+        int length = header.length + content.length;
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        // One zero length is always left at the end of a segment to mark where its records end.
+        // Records are only appended to a segment of the current version, so it is read back the same way
+        if (segment == null || segment.version != VERSION
+                || position + RECORD_PREFIX_BYTES + length + 4 > segment.buffer.capacity()) {
+            segment = newSegment(FILE_HEADER_BYTES + RECORD_PREFIX_BYTES + length + 4);
+        }
+        ByteBuffer buffer = segment.buffer;
+        CRC32 crc = new CRC32();
+        crc.update(header);
+        buffer.put(position + RECORD_PREFIX_BYTES, header);
+        buffer.put(position + RECORD_PREFIX_BYTES + header.length, content);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        // The length is written last, so a record is never found before it is complete
+        buffer.putInt(position, length);
+        int contentOffset = position + RECORD_PREFIX_BYTES + header.length;
+        position += RECORD_PREFIX_BYTES + length;
+        unforced.add(segment);
+        return contentOffset;
+    }
+
+    private Segment newSegment(int minimumBytes) throws IOException {
+        Files.createDirectories(directory);
+        int number = segments.isEmpty() ? nextSegmentNumber() : segments.get(segments.size() - 1).number + 1;
+        Path file = directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+        Segment segment = map(file, number, Math.max(segmentBytes, minimumBytes));
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putShort(4, (short) VERSION);
+        unforced.add(segment);
+        position = FILE_HEADER_BYTES;
+        return segment;
+    }
+
+    private int nextSegmentNumber() throws IOException {
+        List<Path> files = segmentFiles();
+        if (files.isEmpty()) {
+            return 0;
+        }
+        return segmentNumber(files.get(files.size() - 1)) + 1;
+    }
+
+    private static int segmentNumber(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected mailbox segment name " + name, e);
+        }
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return (int) crc.getValue();
+    }
+
+    private static int crc(ByteBuffer buffer, int from, int to) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(from, to - from));
+        return (int) crc.getValue();
+    }
+
+    private static byte[] bytes(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int stringBytes(byte[] bytes) {
+        return 4 + (bytes == null ? 0 : bytes.length);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes == null ? -1 : bytes.length);
+        if (bytes != null) {
+            buffer.put(bytes);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,385 @@
+package utils.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import lombok.extern.slf4j.Slf4j;
+import model.Email;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * SegmentedEmailStore saves the emails as several segment files instead of one, so they can be
+ * written and read on all cores at once.
+ * Emails are spread over the segments by a hash of their recipient, and each segment is written
+ * in the configured storage format by its own task in a fork-join pool.
+ * <p>
+ * A manifest lists the segments of the current snapshot and how many emails each holds.
+ * Every save writes its segments under a new generation number and then replaces the manifest,
+ * which is what makes the new snapshot current, so a crash during a save leaves the previous
+ * snapshot intact. Segments of older generations are deleted afterwards.
+ * <p>
+ * Between two full saves, only the emails changed since the last save are written, as a delta file
+ * added to the manifest. Deltas are applied in order over the segments when loading, so a save costs
+ * as much as the changes instead of the whole mailbox store. Once there are too many deltas,
+ * shouldCompact tells the caller to fold them into a new full save.
+ * <p>
+ * The manifest also lists, for every sender, the segments holding emails they sent. Together with the
+ * segment of their inbox, that is every segment a user's mailbox is in, so a MailboxPager can load the
+ * mailbox of one user without loading all emails.
+ */
+@Slf4j
+public class SegmentedEmailStore {
+    public static final int MANIFEST_VERSION = 1;
+
+    private static final String MANIFEST_FILE = "manifest.json";
+    private static final String SEGMENT_PREFIX = "emails-";
+    private static final String DELTA_PREFIX = "delta-";
+    private static final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+
+    private final Path directory;
+    private final int segmentCount;
+    private final StorageFormat format;
+    private final int maxDeltas;
+
+    /**
+     * The manifest of a snapshot.
+     *
+     * @param version    The manifest version
+     * @param generation The generation of the snapshot, one more than the previous one
+     * @param format     The storage format of the segments
+     * @param segments   The segments, in partition order
+     * @param deltas     The changes saved since the segments, oldest first, null if there are none
+     * @param senders    The segments holding emails sent by each sender, null in manifests of earlier versions
+     */
+    public record Manifest(int version, long generation, String format, List<Segment> segments, List<Segment> deltas,
+                           Map<String, List<Integer>> senders) {
+        List<Segment> deltaList() {
+            return deltas == null ? List.of() : deltas;
+        }
+
+        /**
+         * Finds the segments a user's emails are in: the one of their inbox and the ones they sent emails to.
+         *
+         * @param user The email address of the user
+         * @return The indexes of the segments, all of them if the manifest does not list senders
+         */
+        public Set<Integer> segmentsOf(String user) {
+            Set<Integer> indexes = new TreeSet<>();
+            if (senders == null) {
+                for (int i = 0; i < segments.size(); i++) {
+                    indexes.add(i);
+                }
+                return indexes;
+            }
+            indexes.add(partitionOf(user, segments.size()));
+            indexes.addAll(senders.getOrDefault(user, List.of()));
+            return indexes;
+        }
+    }
+
+    /**
+     * One segment file of a snapshot.
+     *
+     * @param file   The file name, relative to the store directory
+     * @param emails The number of emails in the file
+     */
+    public record Segment(String file, int emails) {
+    }
+
+    /**
+     * Creates a store.
+     *
+     * @param directory    The directory holding the manifest and the segments
+     * @param segmentCount The number of segments each save is split into
+     * @param format       The format segments are saved in
+     * @param maxDeltas    The number of deltas after which a full save is due
+     */
+    public SegmentedEmailStore(Path directory, int segmentCount, StorageFormat format, int maxDeltas) {
+        this.directory = directory;
+        this.segmentCount = Math.max(1, segmentCount);
+        this.format = format;
+        this.maxDeltas = Math.max(0, maxDeltas);
+    }
+
+    /**
+     * Checks if the store holds a snapshot.
+     *
+     * @return true if there is a manifest
+     */
+    public boolean exists() {
+        return Files.exists(directory.resolve(MANIFEST_FILE));
+    }
+
+    /**
+     * Loads all segments of the current snapshot in parallel, straight into one map, then applies the deltas.
+     * The map is sized from the manifest up front, so it never has to grow while the segments are read.
+     *
+     * @return The emails by key
+     * @throws IOException if the manifest or a segment cannot be read, or the segments do not hold
+     *                     the number of emails the manifest lists
+     */
+    public synchronized ConcurrentHashMap<String, Email> load() throws IOException {
+        Manifest manifest = readManifest();
+        int total = manifest.segments().stream().mapToInt(Segment::emails).sum();
+        ConcurrentHashMap<String, Email> emails = new ConcurrentHashMap<>(Math.max(16, total * 4 / 3 + 1));
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (Segment segment : manifest.segments()) {
+            tasks.add(() -> {
+                readSegment(directory.resolve(segment.file()), emails);
+                return null;
+            });
+        }
+        runAll(tasks);
+        if (emails.size() != total) {
+            throw new IOException("Segments hold " + emails.size() + " emails, the manifest lists " + total);
+        }
+        // Later deltas hold newer versions of the same emails, so they are applied one after the other
+        for (Segment delta : manifest.deltaList()) {
+            readSegment(directory.resolve(delta.file()), emails);
+        }
+        log.info("Loaded {} emails from {} segments and {} deltas of generation {}",
+                emails.size(), tasks.size(), manifest.deltaList().size(), manifest.generation());
+        return emails;
+    }
+
+    /**
+     * Saves the emails as a new snapshot, writing the segments in parallel.
+     *
+     * @param emails The emails by key
+     * @throws IOException if a segment or the manifest cannot be written
+     */
+    public synchronized void save(Map<String, Email> emails) throws IOException {
+        Files.createDirectories(directory);
+        long generation = exists() ? readManifest().generation() + 1 : 1;
+
+        List<Map<String, Email>> partitions = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            partitions.add(new HashMap<>());
+        }
+        Map<String, Set<Integer>> senderPartitions = new HashMap<>();
+        emails.forEach((key, email) -> {
+            int partition = partitionOf(email.getRecipient(), segmentCount);
+            partitions.get(partition).put(key, email);
+            senderPartitions.computeIfAbsent(email.getSender(), sender -> new TreeSet<>()).add(partition);
+        });
+        Map<String, List<Integer>> senders = new HashMap<>();
+        senderPartitions.forEach((sender, indexes) -> senders.put(sender, new ArrayList<>(indexes)));
+
+        List<Segment> segments = new ArrayList<>(segmentCount);
+        List<Callable<Void>> tasks = new ArrayList<>(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            Map<String, Email> partition = partitions.get(i);
+            String file = String.format("%s%08d-%03d%s", SEGMENT_PREFIX, generation, i, format.getExtension());
+            segments.add(new Segment(file, partition.size()));
+            tasks.add(() -> {
+                writeSegment(directory.resolve(file), partition);
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        writeManifest(new Manifest(MANIFEST_VERSION, generation, format.getPropertyValue(), segments, null, senders));
+        deleteSegmentsExcept(segments);
+        log.info("Saved {} emails in {} segments of generation {}", emails.size(), segmentCount, generation);
+    }
+
+    /**
+     * Saves changed emails as a delta on top of the current snapshot.
+     * An email in the delta replaces the one with the same key in the snapshot.
+     *
+     * @param emails The changed emails by key
+     * @throws IOException if there is no snapshot yet, or the delta or the manifest cannot be written
+     */
+    public synchronized void saveDelta(Map<String, Email> emails) throws IOException {
+        if (emails.isEmpty()) {
+            return;
+        }
+        if (!exists()) {
+            throw new IOException("No email snapshot to save a delta on in " + directory);
+        }
+        Manifest manifest = readManifest();
+        List<Segment> deltas = new ArrayList<>(manifest.deltaList());
+        String file = String.format("%s%08d-%05d%s", DELTA_PREFIX, manifest.generation(), deltas.size(), format.getExtension());
+        writeSegment(directory.resolve(file), emails);
+        deltas.add(new Segment(file, emails.size()));
+        writeManifest(new Manifest(MANIFEST_VERSION, manifest.generation(), manifest.format(), manifest.segments(), deltas,
+                manifest.senders()));
+        log.info("Saved {} changed emails as delta {} of generation {}", emails.size(), deltas.size(), manifest.generation());
+    }
+
+    /**
+     * Checks if the next save should be a full one: there is no snapshot yet, there are too many deltas,
+     * or the deltas hold more emails than the segments, so loading them costs more than a full save.
+     *
+     * @return true if a full save is due
+     * @throws IOException if the manifest cannot be read
+     */
+    public synchronized boolean shouldCompact() throws IOException {
+        if (!exists()) {
+            return true;
+        }
+        Manifest manifest = readManifest();
+        int segmentEmails = manifest.segments().stream().mapToInt(Segment::emails).sum();
+        int deltaEmails = manifest.deltaList().stream().mapToInt(Segment::emails).sum();
+        return manifest.deltaList().size() >= maxDeltas || deltaEmails > segmentEmails;
+    }
+
+    /**
+     * Deletes the manifest, every segment and every delta.
+     *
+     * @throws IOException if a file cannot be deleted
+     */
+    public synchronized void delete() throws IOException {
+        Files.deleteIfExists(directory.resolve(MANIFEST_FILE));
+        deleteSegmentsExcept(List.of());
+    }
+
+    /**
+     * Loads the emails of one segment of a snapshot, without its deltas.
+     *
+     * @param manifest The manifest of the snapshot
+     * @param index    The index of the segment
+     * @return The emails by key
+     * @throws IOException if the segment cannot be read, e.g. because a later save replaced it
+     */
+    public Map<String, Email> loadSegment(Manifest manifest, int index) throws IOException {
+        Segment segment = manifest.segments().get(index);
+        Map<String, Email> emails = new HashMap<>(Math.max(16, segment.emails() * 4 / 3 + 1));
+        readSegment(directory.resolve(segment.file()), emails);
+        return emails;
+    }
+
+    /**
+     * Loads the emails of the deltas of a snapshot, later ones replacing earlier ones.
+     *
+     * @param manifest The manifest of the snapshot
+     * @return The emails by key
+     * @throws IOException if a delta cannot be read
+     */
+    public ConcurrentHashMap<String, Email> loadDeltas(Manifest manifest) throws IOException {
+        ConcurrentHashMap<String, Email> emails = new ConcurrentHashMap<>();
+        for (Segment delta : manifest.deltaList()) {
+            readSegment(directory.resolve(delta.file()), emails);
+        }
+        return emails;
+    }
+
+    /**
+     * Finds the segment the emails of a recipient are saved in.
+     *
+     * @param recipient    The email address of the recipient
+     * @param segmentCount The number of segments
+     * @return The index of the segment
+     */
+    public static int partitionOf(String recipient, int segmentCount) {
+        return Math.floorMod(recipient == null ? 0 : recipient.hashCode(), segmentCount);
+    }
+
+    /**
+     * Reads the manifest of the current snapshot.
+     *
+     * @return The manifest
+     * @throws IOException if there is none or it cannot be read
+     */
+    public synchronized Manifest readManifest() throws IOException {
+        try (Reader reader = Files.newBufferedReader(directory.resolve(MANIFEST_FILE), StandardCharsets.UTF_8)) {
+            Manifest manifest = gson.fromJson(reader, Manifest.class);
+            if (manifest == null || manifest.segments() == null) {
+                throw new IOException("Empty email manifest in " + directory);
+            }
+            if (manifest.version() > MANIFEST_VERSION) {
+                throw new IOException("Unsupported email manifest version " + manifest.version());
+            }
+            return manifest;
+        } catch (JsonParseException e) {
+            throw new IOException("Malformed email manifest in " + directory, e);
+        }
+    }
+
+    private void writeManifest(Manifest manifest) throws IOException {
+        AtomicFiles.write(directory.resolve(MANIFEST_FILE), AtomicFiles.text(writer -> gson.toJson(manifest, writer)));
+    }
+
+    private void writeSegment(Path file, Map<String, Email> emails) throws IOException {
+        if (format == StorageFormat.BINARY) {
+            AtomicFiles.write(file, out -> BinaryCodec.writeEmails(emails, out));
+        } else {
+            AtomicFiles.write(file, AtomicFiles.text(writer -> JsonCodec.writeEmails(emails, writer)));
+        }
+    }
+
+    private static void readSegment(Path file, Map<String, Email> into) throws IOException {
+        // A segment is read in the format it was written in, whatever the configured format is now
+        if (file.getFileName().toString().endsWith(StorageFormat.BINARY.getExtension())) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+                BinaryCodec.readEmails(in, into);
+            }
+        } else {
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                JsonCodec.readEmails(reader, into);
+            }
+        }
+    }
+
+    private void deleteSegmentsExcept(List<Segment> keep) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        Set<String> names = new HashSet<>();
+        keep.forEach(segment -> names.add(segment.file()));
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if ((name.startsWith(SEGMENT_PREFIX) || name.startsWith(DELTA_PREFIX)) && !names.contains(name)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the tasks in a fork-join pool with one thread per core, at most one per task,
+     * and waits for all of them.
+     */
+    private static void runAll(List<Callable<Void>> tasks) throws IOException {
+        int parallelism = Math.max(1, Math.min(tasks.size(), Runtime.getRuntime().availableProcessors()));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the email segments");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("Failed to process an email segment", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
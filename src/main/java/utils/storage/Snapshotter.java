@@ -0,0 +1,215 @@
+package utils.storage;
+
+import exception.FailedToSaveException;
+import lombok.extern.slf4j.Slf4j;
+import model.Email;
+import model.EmailManagerInterface;
+import model.SearchIndex;
+import model.User;
+import model.UserManagerInterface;
+import utils.StorageManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshotter saves the users, emails and search indexes in the background while the server keeps running,
+ * and deletes the journal segments the saved files make redundant.
+ * <p>
+ * A snapshot first rotates the journal, then copies the maps of the managers and writes the copies to file.
+ * Copying only copies references, so senders are never blocked while the files are written.
+ * The copy is not taken at one instant, but rotating waits for the changes journaled before it to be
+ * applied, so they are in memory and so in the copy, and every later change is in the new segment. Changes that are in both
+ * are replayed without effect, so the snapshot plus the remaining journal always give the current state.
+ * Emails are copied before users, so every sender and recipient in the copy is also in the copy of users.
+ * <p>
+ * Most snapshots only save what changed: the managers track the keys of changed users and emails, and
+ * a snapshot drains them after the rotation and saves just those emails as a delta, plus the users file
+ * if a user changed. Managers mark a change as they apply it, and rotating waits for that, so every change
+ * in the old segments has been drained by then. Every few snapshots the emails are saved in full again, together with the
+ * search indexes, so the deltas to apply on load stay few. If a save fails, the drained keys are marked
+ * again for the next snapshot.
+ * <p>
+ * A snapshot is taken when enough changes were journaled, or when any change is older than the interval.
+ * Both can be changed with these system properties:
+ * <ul>
+ *     <li>server.snapshot.interval: seconds between snapshots while there are changes (default 300).</li>
+ *     <li>server.snapshot.changes: number of changes that triggers a snapshot early (default 10000).</li>
+ * </ul>
+ */
+@Slf4j
+public class Snapshotter implements Closeable {
+    private static final long DEFAULT_INTERVAL_SECONDS = Long.getLong("server.snapshot.interval", 300);
+    private static final long DEFAULT_CHANGE_THRESHOLD = Long.getLong("server.snapshot.changes", 10_000);
+    // How often the change count is checked against the threshold
+    private static final long CHECK_PERIOD_MILLIS = 1000;
+
+    private final UserManagerInterface userManager;
+    private final EmailManagerInterface emailManager;
+    private final Journal journal;
+    private final long intervalNanos;
+    private final long changeThreshold;
+    private final long checkPeriodMillis;
+    private final ScheduledExecutorService scheduler;
+
+    // Guarded by this
+    private long savedChangeCount;
+    private long savedAt = System.nanoTime();
+
+    /**
+     * Starts a snapshotter with the interval and threshold set by the system properties.
+     *
+     * @param userManager  The user manager to save
+     * @param emailManager The email manager to save
+     * @param journal      The journal the managers append to
+     * @return The running snapshotter
+     */
+    public static Snapshotter start(UserManagerInterface userManager, EmailManagerInterface emailManager, Journal journal) {
+        Snapshotter snapshotter = new Snapshotter(userManager, emailManager, journal,
+                TimeUnit.SECONDS.toMillis(DEFAULT_INTERVAL_SECONDS), DEFAULT_CHANGE_THRESHOLD);
+        snapshotter.start();
+        return snapshotter;
+    }
+
+    /**
+     * Creates a snapshotter. It only takes snapshots in the background once started.
+     *
+     * @param userManager     The user manager to save
+     * @param emailManager    The email manager to save
+     * @param journal         The journal the managers append to
+     * @param intervalMillis  The longest time a change waits for a snapshot
+     * @param changeThreshold The number of changes that triggers a snapshot early
+     */
+    public Snapshotter(UserManagerInterface userManager, EmailManagerInterface emailManager, Journal journal,
+                       long intervalMillis, long changeThreshold) {
+        this.userManager = userManager;
+        this.emailManager = emailManager;
+        this.journal = journal;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.changeThreshold = changeThreshold;
+        this.checkPeriodMillis = Math.min(CHECK_PERIOD_MILLIS, Math.max(1, intervalMillis));
+        this.savedChangeCount = journal.getAppendedCount();
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "snapshotter");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts taking snapshots in the background whenever one is due. Call it once.
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::snapshotIfDue, checkPeriodMillis, checkPeriodMillis, TimeUnit.MILLISECONDS);
+        log.info("Snapshotter started, interval {} ms, change threshold {}",
+                TimeUnit.NANOSECONDS.toMillis(intervalNanos), changeThreshold);
+    }
+
+    /**
+     * Saves a snapshot now and deletes the journal segments it makes redundant.
+     *
+     * @throws FailedToSaveException if the files cannot be written
+     * @throws IOException           if the journal cannot be rotated or truncated
+     */
+    public synchronized void snapshot() throws FailedToSaveException, IOException {
+        long start = System.nanoTime();
+        long changeCount = journal.getAppendedCount();
+        long segment = journal.rotate();
+
+        Set<String> changedEmails = emailManager.getChangeTracker().drain();
+        Set<String> changedUsers = userManager.getChangeTracker().drain();
+        String saved;
+        try {
+            saved = StorageManager.shouldCompactEmails()
+                    ? saveAll()
+                    : saveChanges(changedUsers, changedEmails);
+        } catch (FailedToSaveException | IOException | RuntimeException e) {
+            emailManager.getChangeTracker().markAllChanged(changedEmails);
+            userManager.getChangeTracker().markAllChanged(changedUsers);
+            throw e;
+        }
+        journal.deleteSegmentsBefore(segment);
+
+        savedChangeCount = changeCount;
+        savedAt = System.nanoTime();
+        log.info("Snapshot of {} saved in {} ms", saved, TimeUnit.NANOSECONDS.toMillis(savedAt - start));
+    }
+
+    private String saveAll() throws FailedToSaveException, IOException {
+        // A full save replaces all saved emails, so the mailboxes not loaded yet must be in the copy too
+        emailManager.loadAllMailboxes();
+        Map<String, Email> emails = new HashMap<>(emailManager.getEmailMap());
+        Map<String, User> users = new HashMap<>(userManager.getUserMap());
+        Map<String, SearchIndex> indexes = new HashMap<>(emailManager.getSearchIndexes());
+
+        StorageManager.saveUsersAndEmails(users, emails);
+        StorageManager.saveSearchIndexes(indexes);
+        return users.size() + " users and " + emails.size() + " emails";
+    }
+
+    private String saveChanges(Set<String> changedUsers, Set<String> changedEmails) throws FailedToSaveException {
+        Map<String, Email> allEmails = emailManager.getEmailMap();
+        Map<String, Email> emails = new HashMap<>();
+        for (String emailId : changedEmails) {
+            Email email = allEmails.get(emailId);
+            if (email != null) {
+                emails.put(emailId, email);
+            }
+        }
+        // The users file holds no emails and is small, so it is saved whole if any user changed
+        int users = 0;
+        if (!changedUsers.isEmpty()) {
+            Map<String, User> userCopy = new HashMap<>(userManager.getUserMap());
+            StorageManager.saveUsers(userCopy);
+            users = userCopy.size();
+        }
+        StorageManager.saveChangedEmails(emails);
+        return users + " users and " + emails.size() + " changed emails";
+    }
+
+    /**
+     * Stops taking snapshots. Does not take a last one, call snapshot for that.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("Snapshotter did not stop in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks if enough changes were journaled since the last snapshot, or any change waited longer than the interval.
+     *
+     * @return true if a snapshot should be taken
+     */
+    synchronized boolean isDue() {
+        long changes = journal.getAppendedCount() - savedChangeCount;
+        return changes >= changeThreshold
+                || (changes > 0 && System.nanoTime() - savedAt >= intervalNanos);
+    }
+
+    private synchronized void snapshotIfDue() {
+        if (!isDue()) {
+            return;
+        }
+        try {
+            snapshot();
+        } catch (FailedToSaveException | IOException | RuntimeException e) {
+            // Nothing is lost, the changes stay in the journal until the next snapshot succeeds
+            log.error("Background snapshot failed", e);
+            savedAt = System.nanoTime();
+        }
+    }
+}
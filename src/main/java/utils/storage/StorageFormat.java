@@ -0,0 +1,71 @@
+package utils.storage;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * StorageFormat is the file format the users and emails are saved in.
+ * The format is chosen once at startup using the "server.storage.format" system property.
+ * Loading falls back to the file of the other format if there is none in the chosen one,
+ * so switching formats needs no manual conversion.
+ */
+@Slf4j
+public enum StorageFormat {
+    JSON("json", ".json"),
+    BINARY("binary", ".bin");
+
+    private final String propertyValue;
+    private final String extension;
+
+    StorageFormat(String propertyValue, String extension) {
+        this.propertyValue = propertyValue;
+        this.extension = extension;
+    }
+
+    /**
+     * Gets the value used to select this format on the command line.
+     *
+     * @return the property value of the format
+     */
+    public String getPropertyValue() {
+        return propertyValue;
+    }
+
+    /**
+     * Gets the file name extension of this format, including the dot.
+     *
+     * @return the file name extension
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Gets the other format.
+     *
+     * @return the format that is not this one
+     */
+    public StorageFormat other() {
+        return this == JSON ? BINARY : JSON;
+    }
+
+    /**
+     * Resolves a format from its property value.
+     * If the value is missing, JSON is used. If it is not recognised, JSON is used and a warning is logged,
+     * so a misspelled format does not go unnoticed.
+     *
+     * @param value the property value, e.g. "binary"
+     * @return the matching storage format
+     */
+    public static StorageFormat fromPropertyValue(String value) {
+        if (value == null) {
+            return JSON;
+        }
+        for (StorageFormat format : values()) {
+            if (format.propertyValue.equalsIgnoreCase(value.trim())) {
+                return format;
+            }
+        }
+        log.warn("Unknown storage format \"{}\", expected json or binary, using json", value);
+        return JSON;
+    }
+}
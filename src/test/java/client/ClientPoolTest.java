@@ -0,0 +1,263 @@
+package client;
+
+import exception.SessionExpiredException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import utils.protocols.CommonProtocol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClientPoolTest {
+    private static final String VALID_TOKEN = "valid-token";
+
+    /**
+     * A clock that only moves when told to.
+     */
+    private static class ManualClock extends Clock {
+        private volatile Instant now = Instant.parse("2025-05-04T10:30:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    private final ManualClock clock = new ManualClock();
+    // Every request the server received, and the number of connections it accepted
+    private final List<String> received = new CopyOnWriteArrayList<>();
+    private final AtomicInteger accepted = new AtomicInteger();
+    private volatile boolean answerPing = true;
+    private ServerSocket server;
+
+    /**
+     * Starts a line server answering PING with PONG, RESUME with the outcome for the token, and echoing anything else.
+     */
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    accepted.incrementAndGet();
+                    Thread serve = new Thread(() -> serve(socket));
+                    serve.setDaemon(true);
+                    serve.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                received.add(line);
+                if (line.equals(CommonProtocol.PING)) {
+                    if (!answerPing) {
+                        return;
+                    }
+                    out.println(CommonProtocol.PONG);
+                } else if (line.startsWith("RESUME##")) {
+                    out.println(line.equals("RESUME##" + VALID_TOKEN)
+                            ? "RESUME##SUCCESS##john@voidmail.com"
+                            : "RESUME##INVALID_SESSION");
+                } else {
+                    out.println("ECHO##" + line);
+                }
+            }
+        } catch (IOException ignored) {
+            // The client went away
+        }
+    }
+
+    @AfterEach
+    void stopServer() throws IOException {
+        server.close();
+    }
+
+    private ClientPool pool(int maxSize) {
+        return new ClientPool(() -> new ClientConnection(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())),
+                maxSize, clock);
+    }
+
+    /**
+     * Waits for the server to accept the expected number of connections, as a connect returns before the accept does.
+     */
+    private void assertAccepted(int expected) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (accepted.get() < expected && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, accepted.get());
+    }
+
+    private long pings() {
+        return received.stream().filter(CommonProtocol.PING::equals).count();
+    }
+
+    @Test
+    void borrow_WaitsWhileAllConnectionsAreInUse() throws Exception {
+        try (ClientPool pool = pool(2)) {
+            ClientConnection first = pool.borrow();
+            pool.borrow();
+
+            CompletableFuture<ClientConnection> third = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return pool.borrow();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            assertThrows(TimeoutException.class, () -> third.get(200, TimeUnit.MILLISECONDS));
+
+            pool.release(first);
+            assertSame(first, third.get(5, TimeUnit.SECONDS));
+            assertAccepted(2);
+        }
+    }
+
+    @Test
+    void borrow_ReusesRecentlyUsedConnectionWithoutPing() throws Exception {
+        try (ClientPool pool = pool(2)) {
+            assertEquals("ECHO##hello", pool.execute("hello"));
+            clock.advance(Duration.ofSeconds(9));
+            assertEquals("ECHO##again", pool.execute("again"));
+
+            assertAccepted(1);
+            assertEquals(0, pings());
+        }
+    }
+
+    @Test
+    void borrow_PingsConnectionIdleForTenSeconds() throws Exception {
+        try (ClientPool pool = pool(2)) {
+            pool.execute("hello");
+            clock.advance(Duration.ofSeconds(11));
+            assertEquals("ECHO##again", pool.execute("again"));
+
+            assertAccepted(1);
+            assertEquals(1, pings());
+        }
+    }
+
+    @Test
+    void borrow_ReplacesConnectionThatFailsPing() throws Exception {
+        try (ClientPool pool = pool(2)) {
+            ClientConnection first = pool.borrow();
+            pool.release(first);
+            answerPing = false;
+            clock.advance(Duration.ofSeconds(11));
+
+            ClientConnection second = pool.borrow();
+            assertNotSame(first, second);
+            assertFalse(first.isOpen());
+            assertAccepted(2);
+        }
+    }
+
+    @Test
+    void borrow_ClosesConnectionIdleForFiveMinutes() throws Exception {
+        try (ClientPool pool = pool(2)) {
+            ClientConnection first = pool.borrow();
+            pool.release(first);
+            clock.advance(Duration.ofMinutes(5).plusSeconds(1));
+
+            ClientConnection second = pool.borrow();
+            assertNotSame(first, second);
+            assertFalse(first.isOpen());
+            // Too old to be worth checking, so it is closed without a PING
+            assertEquals(0, pings());
+        }
+    }
+
+    @Test
+    void execute_DoesNotReuseConnectionThatFailed() throws Exception {
+        try (ClientPool pool = pool(1)) {
+            ClientConnection[] used = new ClientConnection[1];
+            assertThrows(IOException.class, () -> pool.execute(connection -> {
+                used[0] = connection;
+                throw new IOException("Broken pipe");
+            }));
+
+            // The only permit was given back, and a new connection is opened in place of the failed one
+            ClientConnection next = pool.borrow();
+            assertNotSame(used[0], next);
+            assertFalse(used[0].isOpen());
+            assertAccepted(2);
+        }
+    }
+
+    @Test
+    void release_DoesNotKeepClosedConnection() throws Exception {
+        try (ClientPool pool = pool(1)) {
+            ClientConnection first = pool.borrow();
+            first.close();
+            pool.release(first);
+
+            assertNotSame(first, pool.borrow());
+        }
+    }
+
+    @Test
+    void resumeSession_LogsNewConnectionsInWithToken() throws Exception {
+        try (ClientPool pool = pool(2)) {
+            pool.setInitializer(ClientPool.resumeSession(VALID_TOKEN));
+
+            assertEquals("ECHO##hello", pool.execute("hello"));
+            assertEquals(List.of("RESUME##" + VALID_TOKEN, "hello"), received);
+        }
+    }
+
+    @Test
+    void resumeSession_ThrowsWhenSessionHasEnded() throws Exception {
+        try (ClientPool pool = pool(1)) {
+            pool.setInitializer(ClientPool.resumeSession("ended-token"));
+
+            assertThrows(SessionExpiredException.class, pool::borrow);
+            // The failed connection gave its permit back
+            pool.setInitializer(ClientPool.resumeSession(VALID_TOKEN));
+            assertEquals("ECHO##hello", pool.execute("hello"));
+        }
+    }
+}
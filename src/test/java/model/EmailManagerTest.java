@@ -1,11 +1,18 @@
 package model;
 
 import exception.EmailNotFoundException;
+import exception.JournalException;
 import exception.UserNotFoundException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import utils.storage.Journal;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -31,6 +38,21 @@ class EmailManagerTest {
         emailManager.setUserMap(userMap);
     }
 
+    @Test
+    void sendEmail_NotAppliedWhenJournalFails(@TempDir Path directory) throws IOException {
+        Journal journal = new Journal(directory, false, 0, 256);
+        journal.close();
+        emailManager.setJournal(journal);
+        try {
+            assertThrows(JournalException.class,
+                    () -> emailManager.sendEmail(user1.getEmail(), user2.getEmail(), "Subject", "Content"));
+            assertTrue(emailManager.getEmailMap().isEmpty());
+            assertEquals(0, emailManager.getFolderCounts(user2.getEmail()).inboxTotal());
+        } finally {
+            emailManager.setJournal(null);
+        }
+    }
+
     @Test
     void sendEmail_Success() throws UserNotFoundException {
         String sender = user1.getEmail();
@@ -132,6 +154,176 @@ class EmailManagerTest {
         assertEquals(testMap, emailManager.getEmailMap());
     }
 
+    @Test
+    void setEmailMap_RebuildsMailboxIndexes() {
+        ConcurrentHashMap<String, Email> testMap = new ConcurrentHashMap<>();
+        LocalDateTime now = LocalDateTime.now();
+        for (int i = 0; i < 3; i++) {
+            Email email = Email.builder()
+                    .id("id-" + i)
+                    .sender(user1.getEmail())
+                    .recipient(user2.getEmail())
+                    .subject("Subject " + i)
+                    .content("Content")
+                    .timestamp(now.minusMinutes(i))
+                    .build();
+            testMap.put(email.getId(), email);
+        }
+
+        emailManager.setEmailMap(testMap);
+
+        List<Email> receivedEmails = emailManager.getReceivedEmails(user2.getEmail());
+        assertEquals(3, receivedEmails.size());
+        assertEquals("id-0", receivedEmails.get(0).getId());
+        assertEquals("id-2", receivedEmails.get(2).getId());
+        assertEquals(3, emailManager.getSentEmails(user1.getEmail()).size());
+        assertTrue(emailManager.getReceivedEmails(user1.getEmail()).isEmpty());
+    }
+
+    @Test
+    void getReceivedEmails_TimeRangeNewestFirst() {
+        ConcurrentHashMap<String, Email> testMap = new ConcurrentHashMap<>();
+        LocalDateTime start = LocalDateTime.of(2025, 1, 1, 12, 0);
+        for (int i = 0; i < 5; i++) {
+            Email email = Email.builder()
+                    .id("id-" + i)
+                    .sender(user1.getEmail())
+                    .recipient(user2.getEmail())
+                    .subject("Subject " + i)
+                    .content("Content")
+                    .timestamp(start.plusDays(i))
+                    .build();
+            testMap.put(email.getId(), email);
+        }
+        emailManager.setEmailMap(testMap);
+
+        List<Email> since = emailManager.getReceivedEmails(user2.getEmail(), start.plusDays(3), null, null, 10).emails();
+        assertEquals(List.of("id-4", "id-3"), since.stream().map(Email::getId).toList());
+
+        List<Email> before = emailManager.getReceivedEmails(user2.getEmail(), null, start.plusDays(1), null, 10).emails();
+        assertEquals(List.of("id-0"), before.stream().map(Email::getId).toList());
+
+        List<Email> between = emailManager.getSentEmails(user1.getEmail(), start.plusDays(1), start.plusDays(3), null, 10).emails();
+        assertEquals(List.of("id-2", "id-1"), between.stream().map(Email::getId).toList());
+
+        assertTrue(emailManager.getReceivedEmails(user2.getEmail(), start.plusDays(3), start, null, 10).emails().isEmpty());
+    }
+
+    @Test
+    void getReceivedEmails_CursorPagesAreStable() throws UserNotFoundException {
+        ConcurrentHashMap<String, Email> testMap = new ConcurrentHashMap<>();
+        LocalDateTime start = LocalDateTime.of(2025, 1, 1, 12, 0);
+        for (int i = 0; i < 5; i++) {
+            Email email = Email.builder()
+                    .id("id-" + i)
+                    .sender(user1.getEmail())
+                    .recipient(user2.getEmail())
+                    .subject("Report " + i)
+                    .content("Content")
+                    .timestamp(start.plusMinutes(i))
+                    .build();
+            testMap.put(email.getId(), email);
+        }
+        emailManager.setEmailMap(testMap);
+
+        EmailPage first = emailManager.getReceivedEmails(user2.getEmail(), null, null, null, 2);
+        assertEquals(List.of("id-4", "id-3"), first.emails().stream().map(Email::getId).toList());
+        assertNotNull(first.nextCursor());
+
+        // A newer email does not shift the following pages
+        emailManager.sendEmail(user1.getEmail(), user2.getEmail(), "Report new", "Content");
+
+        EmailPage second = emailManager.getReceivedEmails(user2.getEmail(), null, null, first.nextCursor(), 2);
+        assertEquals(List.of("id-2", "id-1"), second.emails().stream().map(Email::getId).toList());
+        EmailPage last = emailManager.getReceivedEmails(user2.getEmail(), null, null, second.nextCursor(), 2);
+        assertEquals(List.of("id-0"), last.emails().stream().map(Email::getId).toList());
+        assertNull(last.nextCursor());
+
+        EmailPage search = emailManager.searchReceivedEmails(user2.getEmail(), "report", first.nextCursor(), 3);
+        assertEquals(List.of("id-2", "id-1", "id-0"), search.emails().stream().map(Email::getId).toList());
+        assertNull(search.nextCursor());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> emailManager.getReceivedEmails(user2.getEmail(), null, null, "garbage", 2));
+    }
+
+    @Test
+    void getEmail_ReturnsEmailWithSnippetAndSize() throws UserNotFoundException {
+        String body = "Hello   there,\n\nthis body is long. " + "x".repeat(200);
+        String id = emailManager.sendEmail(user1.getEmail(), user2.getEmail(), "Long", body);
+
+        Email email = emailManager.getEmail(id);
+        assertEquals(body, email.getContent());
+        assertEquals(body.length(), email.getSize());
+        assertTrue(email.getSnippet().startsWith("Hello there, this body is long."));
+        assertEquals(Email.SNIPPET_LENGTH + 3, email.getSnippet().length());
+
+        email.setContent("Short");
+        assertEquals("Short", email.getSnippet());
+        assertEquals(5, email.getSize());
+
+        assertThrows(EmailNotFoundException.class, () -> emailManager.getEmail("missing"));
+    }
+
+    @Test
+    void getFolderCounts_TracksSendsAndViews() throws Exception {
+        String sender = user1.getEmail();
+        String recipient = user2.getEmail();
+        String first = emailManager.sendEmail(sender, recipient, "One", "Content");
+        emailManager.sendEmail(sender, recipient, "Two", "Content");
+
+        assertEquals(new FolderCounts(2, 2, 0), emailManager.getFolderCounts(recipient));
+        assertEquals(new FolderCounts(0, 0, 2), emailManager.getFolderCounts(sender));
+
+        emailManager.markEmailAsViewed(first);
+        emailManager.markEmailAsViewed(first);
+
+        assertEquals(new FolderCounts(2, 1, 0), emailManager.getFolderCounts(recipient));
+        assertEquals(new FolderCounts(0, 0, 0), emailManager.getFolderCounts("nobody@voidmail.com"));
+    }
+
+    @Test
+    void searchReceivedEmails_MatchesSubjectContentAndShortQueries() throws UserNotFoundException {
+        String sender = user1.getEmail();
+        String recipient = user2.getEmail();
+        emailManager.sendEmail(sender, recipient, "Quarterly Report", "Numbers attached");
+        emailManager.sendEmail(sender, recipient, "Lunch", "See you at the REPORT meeting");
+        emailManager.sendEmail(sender, recipient, "Holiday", "Out of office");
+
+        assertEquals(2, emailManager.searchReceivedEmails(recipient, "report").size());
+        assertEquals(1, emailManager.searchReceivedEmails(recipient, "Lunch").size());
+        assertEquals(3, emailManager.searchReceivedEmails(recipient, "jo").size());
+        assertTrue(emailManager.searchReceivedEmails(recipient, "invoice").isEmpty());
+        assertTrue(emailManager.searchSentEmails(recipient, "report").isEmpty());
+    }
+
+    @Test
+    void searchSentEmails_IndexUpdatedAfterFirstSearch() throws UserNotFoundException {
+        String sender = user1.getEmail();
+        String recipient = user2.getEmail();
+        emailManager.sendEmail(sender, recipient, "First", "Alpha");
+        assertEquals(1, emailManager.searchSentEmails(sender, "alpha").size());
+
+        emailManager.sendEmail(sender, recipient, "Second", "Alphabet");
+
+        assertEquals(2, emailManager.searchSentEmails(sender, "alpha").size());
+        assertEquals(1, emailManager.searchSentEmails(sender, "bet").size());
+    }
+
+    @Test
+    void setSearchIndexes_StaleIndexIsRebuilt() throws UserNotFoundException {
+        String sender = user1.getEmail();
+        String recipient = user2.getEmail();
+        emailManager.sendEmail(sender, recipient, "Kept", "Content");
+
+        Map<String, SearchIndex> stale = new ConcurrentHashMap<>();
+        stale.put(recipient, new SearchIndex());
+        emailManager.setSearchIndexes(stale);
+
+        assertFalse(emailManager.getSearchIndexes().containsKey(recipient));
+        assertEquals(1, emailManager.searchReceivedEmails(recipient, "kept").size());
+    }
+
     @Test
     void setUserMap_NullInput() {
         // Should not throw, just log a warning
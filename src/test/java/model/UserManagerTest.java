@@ -5,6 +5,7 @@ import exception.UserAlreadyExistsException;
 import exception.UserNotFoundException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import utils.PasswordHasher;
 
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -80,6 +81,21 @@ public class UserManagerTest {
         });
     }
 
+    @Test
+    void testLoginUser_VerifiesOnPasswordHasher() throws Exception {
+        userManager.registerUser(validFirstName, validLastName, validEmail, validPassword);
+
+        try (PasswordHasher hasher = new PasswordHasher(1, 4)) {
+            userManager.setPasswordHasher(hasher);
+            assertDoesNotThrow(() -> userManager.loginUser(validEmail, validPassword));
+            assertThrows(InvalidUserCredentialsException.class,
+                    () -> userManager.loginUser(validEmail, "WrongPassword123!"));
+            assertEquals(2, hasher.getHashLatency().getCount());
+        } finally {
+            userManager.setPasswordHasher(null);
+        }
+    }
+
     @Test
     void testSetUserMap_Success() {
         ConcurrentHashMap<String, User> newUserMap = new ConcurrentHashMap<>();
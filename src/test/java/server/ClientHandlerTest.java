@@ -3,10 +3,19 @@ package server;
 import exception.InvalidUserDetailsException;
 import exception.UserAlreadyExistsException;
 import model.Email;
+import model.EmailManager;
 import model.User;
+import model.UserManager;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.concurrent.ConcurrentHashMap;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -295,4 +304,105 @@ public class ClientHandlerTest {
         String resp = "GETEMAILS##INVALID_FORMAT"; // Simulate expected response
         assertEquals("GETEMAILS##INVALID_FORMAT", resp);
     }
+
+    @Test
+    void testResume_LogsInWithTokenUntilLogout() throws Exception {
+        UserManager users = new UserManager();
+        users.setUserMap(new ConcurrentHashMap<>());
+        users.registerUser("John", "Doe", "john@voidmail.com", "Password123!");
+        EmailManager.clearEmailsForTest();
+        SessionStore sessions = new SessionStore(Duration.ofMinutes(30));
+
+        ClientHandler first = new ClientHandler(users, new EmailManager(), sessions);
+        String login = first.handleRequest("LOGIN##john@voidmail.com##Password123!");
+        assertTrue(login.startsWith("LOGIN##SUCCESS##"));
+        String token = login.substring("LOGIN##SUCCESS##".length());
+
+        ClientHandler second = new ClientHandler(users, new EmailManager(), sessions);
+        assertEquals("RESUME##SUCCESS##john@voidmail.com", second.handleRequest("RESUME##" + token));
+
+        assertEquals("LOGOUT##SUCCESS##john@voidmail.com", first.handleRequest("LOGOUT"));
+        ClientHandler third = new ClientHandler(users, new EmailManager(), sessions);
+        assertEquals("RESUME##INVALID_SESSION", third.handleRequest("RESUME##" + token));
+    }
+
+    @Test
+    void testLogin_EndsSessionTheConnectionHeldBefore() throws Exception {
+        UserManager users = new UserManager();
+        users.setUserMap(new ConcurrentHashMap<>());
+        users.registerUser("John", "Doe", "john@voidmail.com", "Password123!");
+        EmailManager.clearEmailsForTest();
+        SessionStore sessions = new SessionStore(Duration.ofMinutes(30));
+
+        ClientHandler handler = new ClientHandler(users, new EmailManager(), sessions);
+        String first = handler.handleRequest("LOGIN##john@voidmail.com##Password123!");
+        String second = handler.handleRequest("LOGIN##john@voidmail.com##Password123!");
+
+        assertNull(sessions.resume(first.substring("LOGIN##SUCCESS##".length())));
+        assertEquals("john@voidmail.com", sessions.resume(second.substring("LOGIN##SUCCESS##".length())));
+        assertEquals(1, sessions.size());
+    }
+
+    @Test
+    void testRun_PipelinedRequestsAnsweredInOrderUntilLogout() throws Exception {
+        UserManager users = new UserManager();
+        users.setUserMap(new ConcurrentHashMap<>());
+        users.registerUser("John", "Doe", "john@voidmail.com", "Password123!");
+        EmailManager.clearEmailsForTest();
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            client.setSoTimeout(10_000);
+            // Every request is written at once, the ones after LOGOUT must not be answered
+            client.getOutputStream().write(("PING\nREGISTER##John\nLOGIN##john@voidmail.com##Password123!\n"
+                    + "LOGOUT\nPING\nFOO\n").getBytes(StandardCharsets.UTF_8));
+            client.getOutputStream().flush();
+            Socket accepted = server.accept();
+            Thread thread = new Thread(new ClientHandler(accepted, users, new EmailManager(),
+                    new SessionStore(Duration.ofMinutes(30))));
+            thread.start();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals("PONG", in.readLine());
+            assertEquals("REGISTER##INVALID_FORMAT", in.readLine());
+            assertTrue(in.readLine().startsWith("LOGIN##SUCCESS##"));
+            assertEquals("LOGOUT##SUCCESS##john@voidmail.com", in.readLine());
+            assertNull(in.readLine());
+            thread.join(10_000);
+            assertFalse(thread.isAlive());
+        }
+    }
+
+    @Test
+    void testRun_ManyPipelinedRequestsAnsweredInOrder() throws Exception {
+        EmailManager.clearEmailsForTest();
+        UserManager users = new UserManager();
+        users.setUserMap(new ConcurrentHashMap<>());
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+             Socket client = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort())) {
+            client.setSoTimeout(10_000);
+            Socket accepted = server.accept();
+            Thread thread = new Thread(new ClientHandler(accepted, users, new EmailManager(),
+                    new SessionStore(Duration.ofMinutes(30))));
+            thread.start();
+
+            // More requests than are kept unflushed, so the responses go out in several flushes
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < 150; i++) {
+                requests.append(i % 2 == 0 ? "PING\n" : "FOO\n");
+            }
+            client.getOutputStream().write(requests.toString().getBytes(StandardCharsets.UTF_8));
+            client.getOutputStream().flush();
+
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < 150; i++) {
+                assertEquals(i % 2 == 0 ? "PONG" : "UNKNOWN_COMMAND", in.readLine(), "Response " + i);
+            }
+            client.shutdownOutput();
+            assertNull(in.readLine());
+            thread.join(10_000);
+            assertFalse(thread.isAlive());
+        }
+    }
 }
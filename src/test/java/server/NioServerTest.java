@@ -0,0 +1,221 @@
+package server;
+
+import model.EmailManager;
+import model.UserManager;
+import model.UserManagerInterface;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import utils.SSLUtils;
+import utils.protocols.BinaryProtocol;
+import utils.protocols.CommonProtocol;
+import utils.protocols.FrameCodec;
+import utils.protocols.Message;
+
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioServerTest {
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private ExecutorService workers;
+    private NioServer server;
+    private Thread serverThread;
+
+    private void startServer(UserManagerInterface users) throws Exception {
+        EmailManager.clearEmailsForTest();
+        workers = Executors.newFixedThreadPool(2);
+        server = new NioServer(0, SSLUtils.getServerContext(), workers, new ServerStats(), users,
+                new EmailManager(), new SessionStore(Duration.ofMinutes(30)));
+        serverThread = new Thread(() -> {
+            try {
+                server.run(running::get);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, "nio-server-test");
+        serverThread.start();
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (server.getLocalPort() == 0) {
+            assertTrue(System.nanoTime() < deadline, "Server did not start listening");
+            Thread.sleep(10);
+        }
+    }
+
+    private static UserManager usersWithJohn() throws Exception {
+        UserManager users = new UserManager();
+        users.setUserMap(new ConcurrentHashMap<>());
+        users.registerUser("John", "Doe", "john@voidmail.com", "Password123!");
+        return users;
+    }
+
+    private SSLSocket connect() throws Exception {
+        SSLSocket socket = (SSLSocket) SSLUtils.getClientContext().getSocketFactory()
+                .createSocket(CommonProtocol.HOSTNAME, server.getLocalPort());
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static BufferedReader reader(SSLSocket socket) throws Exception {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void write(SSLSocket socket, String text) throws Exception {
+        OutputStream out = socket.getOutputStream();
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    @AfterEach
+    void stopServer() throws Exception {
+        running.set(false);
+        if (serverThread != null) {
+            serverThread.join(5_000);
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    @Test
+    void pipelinedRequests_AnsweredInOrder() throws Exception {
+        startServer(usersWithJohn());
+        try (SSLSocket socket = connect()) {
+            write(socket, "PING\nREGISTER##John\nFOO\nPING\n");
+
+            BufferedReader in = reader(socket);
+            assertEquals("PONG", in.readLine());
+            assertEquals("REGISTER##INVALID_FORMAT", in.readLine());
+            assertEquals("UNKNOWN_COMMAND", in.readLine());
+            assertEquals("PONG", in.readLine());
+        }
+    }
+
+    @Test
+    void requestSplitAcrossReads_IsReassembled() throws Exception {
+        startServer(usersWithJohn());
+        try (SSLSocket socket = connect()) {
+            // Each write is its own TLS record, and the pause makes the server read them separately
+            write(socket, "PI");
+            Thread.sleep(100);
+            write(socket, "NG\r\nPI");
+            Thread.sleep(100);
+            write(socket, "NG\n");
+
+            BufferedReader in = reader(socket);
+            assertEquals("PONG", in.readLine());
+            assertEquals("PONG", in.readLine());
+        }
+    }
+
+    @Test
+    void binaryPreamble_SwitchesToFrames() throws Exception {
+        startServer(usersWithJohn());
+        try (SSLSocket socket = connect()) {
+            byte[] frame = FrameCodec.encode(Message.of(CommonProtocol.PING));
+            OutputStream out = socket.getOutputStream();
+            out.write(BinaryProtocol.PREAMBLE);
+            // The frame arrives in two reads, its length in the first
+            out.write(frame, 0, 6);
+            out.flush();
+            Thread.sleep(100);
+            out.write(frame, 6, frame.length - 6);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] preamble = new byte[BinaryProtocol.PREAMBLE.length];
+            in.readFully(preamble);
+            assertArrayEquals(BinaryProtocol.PREAMBLE, preamble);
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            assertEquals(CommonProtocol.PONG, FrameCodec.decode(ByteBuffer.wrap(body)).getCommand());
+        }
+    }
+
+    @Test
+    void logout_ClosesConnectionAfterItsResponse() throws Exception {
+        startServer(usersWithJohn());
+        try (SSLSocket socket = connect()) {
+            // Requests pipelined after LOGOUT are dropped
+            write(socket, "LOGIN##john@voidmail.com##Password123!\nLOGOUT\nPING\n");
+
+            BufferedReader in = reader(socket);
+            assertTrue(in.readLine().startsWith("LOGIN##SUCCESS##"));
+            assertEquals("LOGOUT##SUCCESS##john@voidmail.com", in.readLine());
+            assertNull(in.readLine());
+        }
+    }
+
+    @Test
+    void manyConnections_AreServedConcurrently() throws Exception {
+        startServer(usersWithJohn());
+        SSLSocket[] sockets = new SSLSocket[8];
+        try {
+            for (int i = 0; i < sockets.length; i++) {
+                sockets[i] = connect();
+                write(sockets[i], "PING\n");
+            }
+            for (SSLSocket socket : sockets) {
+                assertEquals("PONG", reader(socket).readLine());
+            }
+        } finally {
+            for (SSLSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        assertTrue(Arrays.stream(sockets).allMatch(SSLSocket::isClosed));
+    }
+
+    @Test
+    void unexpectedError_IsAnsweredAndClosesOnlyThatConnection() throws Exception {
+        startServer(new UserManager() {
+            @Override
+            public void registerUser(String firstName, String lastName, String email, String password) {
+                throw new NoClassDefFoundError("jakarta/validation/Validation");
+            }
+        });
+        try (SSLSocket socket = connect()) {
+            write(socket, "REGISTER##John##Doe##john@voidmail.com##Password123!\nPING\n");
+
+            BufferedReader in = reader(socket);
+            assertEquals("REGISTER##FAILURE##Internal server error", in.readLine());
+            assertNull(in.readLine());
+        }
+        try (SSLSocket socket = connect()) {
+            write(socket, "PING\n");
+            assertEquals("PONG", reader(socket).readLine());
+        }
+    }
+
+    @Test
+    void handshake_DelegatedTasksRunOnWorkers() throws Exception {
+        startServer(usersWithJohn());
+        try (SSLSocket socket = connect()) {
+            socket.startHandshake();
+
+            // No request was sent yet, so anything the workers ran was handshake work
+            ThreadPoolExecutor pool = (ThreadPoolExecutor) workers;
+            long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+            while (pool.getCompletedTaskCount() == 0) {
+                assertTrue(System.nanoTime() < deadline, "No delegated task ran on the workers");
+                Thread.sleep(10);
+            }
+            write(socket, "PING\n");
+            assertEquals("PONG", reader(socket).readLine());
+        }
+    }
+}
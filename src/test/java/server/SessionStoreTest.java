@@ -0,0 +1,94 @@
+package server;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SessionStoreTest {
+
+    /**
+     * A clock that only moves when told to.
+     */
+    private static class ManualClock extends Clock {
+        private Instant now = Instant.parse("2025-05-04T10:30:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneOffset getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(java.time.ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    @Test
+    void resume_ReturnsUserOfTokenUntilLogout() {
+        SessionStore sessions = new SessionStore(Duration.ofMinutes(30));
+        String token = sessions.create("john@voidmail.com");
+
+        assertFalse(token.contains("#"));
+        assertEquals("john@voidmail.com", sessions.resume(token));
+        assertEquals("john@voidmail.com", sessions.resume(token), "a token can be resumed on many connections");
+        assertNull(sessions.resume("unknown"));
+        assertNull(sessions.resume(null));
+
+        sessions.remove(token);
+        assertNull(sessions.resume(token));
+    }
+
+    @Test
+    void resume_ExpiresIdleSessionsAndExtendsUsedOnes() {
+        ManualClock clock = new ManualClock();
+        SessionStore sessions = new SessionStore(Duration.ofMinutes(30), clock);
+        String used = sessions.create("john@voidmail.com");
+        String idle = sessions.create("jane@voidmail.com");
+
+        clock.advance(Duration.ofMinutes(20));
+        assertEquals("john@voidmail.com", sessions.resume(used));
+        clock.advance(Duration.ofMinutes(20));
+
+        assertEquals("john@voidmail.com", sessions.resume(used));
+        assertNull(sessions.resume(idle));
+    }
+
+    @Test
+    void create_SweepsExpiredSessions() {
+        ManualClock clock = new ManualClock();
+        SessionStore sessions = new SessionStore(Duration.ofMinutes(1), clock);
+        Set<String> tokens = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            tokens.add(sessions.create("user" + i + "@voidmail.com"));
+        }
+        assertEquals(1000, tokens.size(), "tokens are unique");
+
+        clock.advance(Duration.ofMinutes(2));
+        for (int i = 0; i < 1000; i++) {
+            sessions.create("user" + i + "@voidmail.com");
+        }
+        assertTrue(sessions.size() < 2000);
+    }
+
+    @Test
+    void constructor_RejectsTimeToLiveThatIsNotPositive() {
+        assertThrows(IllegalArgumentException.class, () -> new SessionStore(Duration.ZERO));
+        assertThrows(IllegalArgumentException.class, () -> new SessionStore(Duration.ofMinutes(-5)));
+    }
+}
@@ -0,0 +1,81 @@
+package utils;
+
+import exception.ServerBusyException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PasswordHasherTest {
+
+    @Test
+    void hashPassword_MatchesHashOnCallerThreadAndRecordsLatency() throws Exception {
+        try (PasswordHasher hasher = new PasswordHasher(1, 4)) {
+            String salt = SecurityUtils.generateSalt();
+
+            assertEquals(SecurityUtils.hashPassword("Password123!", salt), hasher.hashPassword("Password123!", salt));
+            assertTrue(hasher.verifyPassword("Password123!", salt, SecurityUtils.hashPassword("Password123!", salt)));
+            assertFalse(hasher.verifyPassword("Wrong123!", salt, SecurityUtils.hashPassword("Password123!", salt)));
+
+            assertEquals(3, hasher.getHashLatency().getCount());
+            assertTrue(hasher.getHashLatency().getPercentileNanos(50) > 0);
+            assertEquals(0, hasher.getRejectedHashes());
+        }
+    }
+
+    @Test
+    void hashPassword_RefusesWhenQueueIsFull() throws Exception {
+        int callers = 8;
+        try (PasswordHasher hasher = new PasswordHasher(1, 1)) {
+            ExecutorService executor = Executors.newFixedThreadPool(callers);
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> results = new ArrayList<>();
+            String salt = SecurityUtils.generateSalt();
+            for (int i = 0; i < callers; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return hasher.hashPassword("Password123!", salt);
+                }));
+            }
+            start.countDown();
+
+            int refused = 0;
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    assertInstanceOf(ServerBusyException.class, e.getCause());
+                    refused++;
+                }
+            }
+            executor.shutdown();
+
+            // One hash runs and one waits, so at least one of the others is refused
+            assertTrue(refused > 0);
+            assertEquals(refused, hasher.getRejectedHashes());
+            assertEquals(callers - refused, hasher.getHashLatency().getCount());
+        }
+    }
+
+    @Test
+    void latencyHistogram_ReportsBucketUpperBoundCappedByMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(3_000_000);
+        }
+        histogram.record(50_000_000);
+
+        assertEquals(100, histogram.getCount());
+        long p50 = histogram.getPercentileNanos(50);
+        assertTrue(p50 >= 3_000_000 && p50 <= 6_000_000, "within twice the real value");
+        assertEquals(50_000_000, histogram.getPercentileNanos(100));
+        assertEquals(50_000_000, histogram.getMaxNanos());
+    }
+}
@@ -0,0 +1,130 @@
+package utils.protocols;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FrameCodecTest {
+
+    private Message roundTrip(Message message) throws ProtocolException {
+        byte[] frame = FrameCodec.encode(message);
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        int length = buffer.getInt();
+        assertEquals(frame.length - 4, length);
+        return FrameCodec.decode(buffer);
+    }
+
+    @Test
+    void roundTrip_KnownCommandWithTypedFields() throws ProtocolException {
+        LocalDateTime timestamp = LocalDateTime.of(2025, 5, 4, 10, 30, 15, 123456789);
+        Message message = Message.of(EmailProtocol.GET_EMAILS, EmailProtocol.SUCCESS, "id1", timestamp, true, 42L);
+
+        Message decoded = roundTrip(message);
+
+        assertEquals(EmailProtocol.GET_EMAILS, decoded.getCommand());
+        assertEquals("id1", decoded.getFields().get(1));
+        assertEquals(timestamp, decoded.getFields().get(2));
+        assertEquals(true, decoded.getFields().get(3));
+        assertEquals(42L, decoded.getFields().get(4));
+    }
+
+    @Test
+    void roundTrip_BodyWithNewlinesAndSeparator() throws ProtocolException {
+        String body = "line one\nline two ## not a field\r\n";
+        Message decoded = roundTrip(Message.of(EmailProtocol.SEND_EMAIL, "a@voidmail.com", "b@voidmail.com", "Hi", body));
+
+        assertEquals(4, decoded.size());
+        assertEquals(body, decoded.getString(3));
+    }
+
+    @Test
+    void roundTrip_CommandWithoutOpcode() throws ProtocolException {
+        Message decoded = roundTrip(Message.of("FOO", "bar"));
+
+        assertEquals("FOO", decoded.getCommand());
+        assertEquals(1, decoded.size());
+        assertEquals("bar", decoded.getString(0));
+    }
+
+    @Test
+    void decode_TruncatedFrame_Throws() {
+        byte[] frame = FrameCodec.encode(Message.of(UserProtocol.LOGIN, "a@voidmail.com", "secret"));
+        ByteBuffer truncated = ByteBuffer.wrap(frame, 4, frame.length - 8);
+
+        assertThrows(ProtocolException.class, () -> FrameCodec.decode(truncated));
+    }
+
+    @Test
+    void toText_MatchesV1Format() {
+        Message message = Message.fromText("LOGIN##john@voidmail.com##Password123!");
+
+        assertEquals(UserProtocol.LOGIN, message.getCommand());
+        assertEquals("LOGIN##john@voidmail.com##Password123!", message.toText());
+    }
+
+    @Test
+    void roundTrip_BatchWithNestedMessages() throws ProtocolException {
+        Message batch = Message.of(EmailProtocol.BATCH,
+                Message.of(EmailProtocol.MARK_AS_VIEWED, "id1"),
+                Message.of(EmailProtocol.SEND_EMAIL, "a@voidmail.com", "b@voidmail.com", "Hi", "body ## || text"));
+
+        Message decoded = roundTrip(batch);
+
+        assertEquals(EmailProtocol.BATCH, decoded.getCommand());
+        assertEquals(2, decoded.size());
+        Message second = (Message) decoded.getFields().get(1);
+        assertEquals(EmailProtocol.SEND_EMAIL, second.getCommand());
+        assertEquals("body ## || text", second.getString(3));
+    }
+
+    @Test
+    void decode_MessageNestedTooDeep_Throws() {
+        Message nested = Message.of(EmailProtocol.BATCH, Message.of(EmailProtocol.BATCH, Message.of(UserProtocol.LOGOUT)));
+        byte[] frame = FrameCodec.encode(nested);
+
+        assertThrows(ProtocolException.class, () -> FrameCodec.decode(ByteBuffer.wrap(frame, 4, frame.length - 4)));
+    }
+
+    @Test
+    void fromText_BatchSplitsSubCommands() {
+        Message batch = Message.fromText("BATCH##MARK_AS_VIEWED##id1||MARK_AS_VIEWED##id2||LIST_INBOX##john@voidmail.com");
+
+        assertEquals(3, batch.size());
+        Message last = (Message) batch.getFields().get(2);
+        assertEquals(EmailProtocol.LIST_INBOX, last.getCommand());
+        assertEquals("john@voidmail.com", last.getString(0));
+        assertEquals("BATCH##MARK_AS_VIEWED##id1||MARK_AS_VIEWED##id2||LIST_INBOX##john@voidmail.com", batch.toText());
+    }
+
+    @Test
+    void toText_BatchEscapesSeparatorInFields() {
+        Message batch = Message.of(EmailProtocol.BATCH,
+                Message.of(EmailProtocol.SEND_EMAIL, "a@voidmail.com", "b@voidmail.com", "a || b", "ends with |"),
+                Message.of(EmailProtocol.MARK_AS_VIEWED, "id\\1"));
+
+        Message parsed = Message.fromText(batch.toText());
+
+        assertEquals(2, parsed.size());
+        Message send = (Message) parsed.getFields().get(0);
+        assertEquals("a || b", send.getString(2));
+        assertEquals("ends with |", send.getString(3));
+        assertEquals("id\\1", ((Message) parsed.getFields().get(1)).getString(0));
+        assertEquals(List.of("LOGIN##x||y", "PING"),
+                Message.splitBatch(Message.escapeBatchPart("LOGIN##x||y") + CommonProtocol.BATCH_SEP + "PING"));
+    }
+
+    @Test
+    void toText_NullFieldIsEmpty() {
+        Message message = Message.of(EmailProtocol.SEND_EMAIL, "a@voidmail.com", "b@voidmail.com", null, "body");
+
+        assertEquals(EmailProtocol.SEND_EMAIL + "##a@voidmail.com##b@voidmail.com####body", message.toText());
+        assertArrayEquals(new String[]{EmailProtocol.SEND_EMAIL, "a@voidmail.com", "b@voidmail.com", "", "body"},
+                message.toParts());
+        assertEquals("", message.getString(2));
+    }
+}
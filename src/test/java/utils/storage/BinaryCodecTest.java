@@ -0,0 +1,98 @@
+package utils.storage;
+
+import model.Email;
+import model.User;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryCodecTest {
+
+    private static Email email(String id, LocalDateTime timestamp) {
+        return Email.builder()
+                .id(id)
+                .sender("john@voidmail.com")
+                .recipient("jane@voidmail.com")
+                .subject("Subject " + id)
+                .content("Content ünïcödé " + "x".repeat(70_000))
+                .timestamp(timestamp)
+                .viewed(true)
+                .build();
+    }
+
+    private static byte[] writeEmails(Map<String, Email> emails) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryCodec.writeEmails(emails, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    void emails_RoundTripAcrossBlocks() throws IOException {
+        Map<String, Email> emails = new LinkedHashMap<>();
+        for (int i = 0; i < 40; i++) {
+            emails.put("e" + i, email("e" + i, LocalDateTime.of(2025, 5, 4, 10, 30, i, i * 1000)));
+        }
+        emails.put("no-time", email("no-time", null));
+
+        Map<String, Email> read = new HashMap<>();
+        BinaryCodec.readEmails(new ByteArrayInputStream(writeEmails(emails)), read);
+
+        assertEquals(emails.keySet(), read.keySet());
+        for (String id : emails.keySet()) {
+            assertEquals(emails.get(id).toString(), read.get(id).toString());
+        }
+    }
+
+    @Test
+    void users_RoundTrip() throws IOException {
+        User user = new User("John", "Doe", "john@voidmail.com", "hash", "salt");
+        user.setEmailsReceived(List.of(email("e1", LocalDateTime.of(2025, 5, 4, 10, 30))));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BinaryCodec.writeUsers(Map.of(user.getEmail(), user), out);
+        Map<String, User> read = new HashMap<>();
+        BinaryCodec.readUsers(new ByteArrayInputStream(out.toByteArray()), read);
+
+        User loaded = read.get("john@voidmail.com");
+        assertEquals(user.getId(), loaded.getId());
+        assertEquals("hash", loaded.getHashedPassword());
+        assertNull(loaded.getEmailsSent());
+        assertEquals(user.getEmailsReceived().get(0).toString(), loaded.getEmailsReceived().get(0).toString());
+    }
+
+    @Test
+    void readEmails_RejectsDamagedAndTruncatedFiles() throws IOException {
+        byte[] bytes = writeEmails(Map.of("e1", email("e1", LocalDateTime.of(2025, 5, 4, 10, 30))));
+
+        byte[] damaged = bytes.clone();
+        damaged[40] ^= 1;
+        assertThrows(IOException.class, () -> BinaryCodec.readEmails(new ByteArrayInputStream(damaged), new HashMap<>()));
+
+        byte[] truncated = Arrays.copyOf(bytes, bytes.length - 4);
+        assertThrows(IOException.class, () -> BinaryCodec.readEmails(new ByteArrayInputStream(truncated), new HashMap<>()));
+
+        assertThrows(IOException.class, () -> BinaryCodec.readUsers(new ByteArrayInputStream(bytes), new HashMap<>()));
+    }
+
+    @Test
+    void readEmails_RejectsBlockLongerThanFile() throws IOException {
+        byte[] bytes = writeEmails(Map.of("e1", email("e1", LocalDateTime.of(2025, 5, 4, 10, 30))));
+
+        // The length of the first block follows the 7 byte header and its record count
+        ByteBuffer.wrap(bytes).putInt(11, Integer.MAX_VALUE - 8);
+        IOException e = assertThrows(IOException.class,
+                () -> BinaryCodec.readEmails(new ByteArrayInputStream(bytes), new HashMap<>()));
+        assertEquals("Binary snapshot ends before its last block", e.getMessage());
+    }
+}
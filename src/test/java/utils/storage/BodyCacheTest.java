@@ -0,0 +1,57 @@
+package utils.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BodyCacheTest {
+
+    @Test
+    void get_LoadsOnceAndCountsHitsAndMisses() {
+        BodyCache cache = new BodyCache(1 << 20);
+        AtomicInteger loads = new AtomicInteger();
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("body", cache.get("a", () -> {
+                loads.incrementAndGet();
+                return "body";
+            }));
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2.0 / 3, cache.getHitRatio(), 1e-9);
+    }
+
+    @Test
+    void get_EvictsLeastRecentlyUsedWhenFull() {
+        String body = "x".repeat(400);
+        // Room for two bodies, not three
+        BodyCache cache = new BodyCache(2 * (2L * body.length() + 96));
+        cache.get("a", () -> body);
+        cache.get("b", () -> body);
+        cache.get("a", () -> body);
+        cache.get("c", () -> body);
+
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.getEntryCount());
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+        long misses = cache.getMisses();
+        cache.get("a", () -> body);
+        assertEquals(misses, cache.getMisses(), "a was used last, so b was evicted");
+        cache.get("b", () -> body);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    void get_DoesNotCacheContentLargerThanTheCache() {
+        BodyCache cache = new BodyCache(100);
+
+        assertEquals("y".repeat(100), cache.get("a", () -> "y".repeat(100)));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getBytes());
+    }
+}
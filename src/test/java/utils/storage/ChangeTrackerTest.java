@@ -0,0 +1,83 @@
+package utils.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChangeTrackerTest {
+
+    @Test
+    void drain_ChangesMarkedDuringSaveGoToNextSave() {
+        ChangeTracker tracker = new ChangeTracker();
+        tracker.markChanged("e1");
+        tracker.markChanged("e2");
+
+        Set<String> saving = tracker.drain();
+        // Marked while the first save is still writing
+        tracker.markChanged("e3");
+        tracker.markChanged("e1");
+
+        assertEquals(Set.of("e1", "e2"), saving);
+        assertEquals(Set.of("e1", "e3"), tracker.drain());
+        assertTrue(tracker.drain().isEmpty());
+    }
+
+    @Test
+    void markAllChanged_GivesBackKeysOfFailedSaveWithoutLosingNewOnes() {
+        ChangeTracker tracker = new ChangeTracker();
+        tracker.markChanged("e1");
+
+        Set<String> failed = tracker.drain();
+        tracker.markChanged("e2");
+        tracker.markAllChanged(failed);
+
+        assertEquals(Set.of("e1", "e2"), tracker.drain());
+    }
+
+    @Test
+    void drain_EveryKeyMarkedWhileSavingIsSavedExactlyOnce() throws Exception {
+        ChangeTracker tracker = new ChangeTracker();
+        int markers = 4;
+        int keysPerMarker = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(markers);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> marking = new ArrayList<>();
+        for (int m = 0; m < markers; m++) {
+            int marker = m;
+            marking.add(executor.submit(() -> {
+                start.await();
+                for (int i = 0; i < keysPerMarker; i++) {
+                    tracker.markChanged(marker + "-" + i);
+                }
+                return null;
+            }));
+        }
+
+        // Saves keep draining while the keys are marked, each key must be written by exactly one of them
+        List<String> written = new ArrayList<>();
+        start.countDown();
+        while (!marking.stream().allMatch(Future::isDone)) {
+            written.addAll(tracker.drain());
+        }
+        written.addAll(tracker.drain());
+        for (Future<?> future : marking) {
+            future.get();
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(markers * keysPerMarker, written.size());
+        assertEquals(markers * keysPerMarker, new HashSet<>(written).size());
+        assertEquals(0, tracker.size());
+    }
+}
@@ -0,0 +1,163 @@
+package utils.storage;
+
+import exception.JournalException;
+import model.Email;
+import model.User;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalTest {
+
+    @TempDir
+    Path directory;
+
+    private static Email email(String id) {
+        return Email.builder()
+                .id(id)
+                .sender("john@voidmail.com")
+                .recipient("jane@voidmail.com")
+                .subject("Subject " + id)
+                .content("Content " + id)
+                .timestamp(LocalDateTime.of(2025, 5, 4, 10, 30))
+                .viewed(false)
+                .build();
+    }
+
+    @Test
+    void replay_AppliesRecordsInOrder() throws IOException {
+        User user = new User("John", "Doe", "john@voidmail.com", null);
+        try (Journal journal = new Journal(directory, false, 0, 256)) {
+            journal.append(JournalRecord.userRegistered(user));
+            journal.append(JournalRecord.emailSent(email("e1")));
+            journal.append(JournalRecord.emailViewed("e1"));
+        }
+
+        Map<String, User> users = new HashMap<>();
+        Map<String, Email> emails = new HashMap<>();
+        long replayed = Journal.replay(directory, record -> record.applyTo(users, emails));
+
+        assertEquals(3, replayed);
+        assertEquals("Doe", users.get("john@voidmail.com").getLastName());
+        assertEquals(LocalDateTime.of(2025, 5, 4, 10, 30), emails.get("e1").getTimestamp());
+        assertTrue(emails.get("e1").isViewed());
+    }
+
+    @Test
+    void replay_ReplacesSavedCopyAndKeepsItsViewedFlag() throws IOException {
+        try (Journal journal = new Journal(directory, false, 0, 256)) {
+            journal.append(JournalRecord.emailSent(email("e1")));
+        }
+        // The saved copy may have lost its content in a crash, the journal holds it whole
+        Email saved = email("e1");
+        saved.setContent("Content e");
+        saved.setViewed(true);
+        Map<String, Email> emails = new HashMap<>(Map.of("e1", saved));
+
+        Journal.replay(directory, record -> record.applyTo(new HashMap<>(), emails));
+
+        assertEquals("Content e1", emails.get("e1").getContent());
+        assertTrue(emails.get("e1").isViewed());
+    }
+
+    @Test
+    void replay_StopsAtTornRecord() throws IOException {
+        try (Journal journal = new Journal(directory, false, 0, 256)) {
+            journal.append(JournalRecord.emailSent(email("e1")));
+        }
+        try (var files = Files.list(directory)) {
+            Path segment = files.findFirst().orElseThrow();
+            Files.writeString(segment, "0badc0de {\"type\":\"SEND_EM", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        }
+
+        List<JournalRecord> records = new ArrayList<>();
+        Journal.replay(directory, records::add);
+
+        assertEquals(1, records.size());
+        assertEquals("e1", records.get(0).email().getId());
+    }
+
+    @Test
+    void rotate_OlderSegmentsCanBeDeleted() throws IOException {
+        try (Journal journal = new Journal(directory, false, 0, 256)) {
+            journal.append(JournalRecord.emailSent(email("e1")));
+            long segment = journal.rotate();
+            journal.append(JournalRecord.emailSent(email("e2")));
+            journal.deleteSegmentsBefore(segment);
+        }
+
+        List<JournalRecord> records = new ArrayList<>();
+        Journal.replay(directory, records::add);
+
+        assertEquals(1, records.size());
+        assertEquals("e2", records.get(0).email().getId());
+    }
+
+    @Test
+    void append_AppliesChangeOnlyOnceRecordIsWritten() throws IOException {
+        Journal journal = new Journal(directory, false, 0, 256);
+        List<JournalRecord> writtenBeforeChange = new ArrayList<>();
+        journal.append(JournalRecord.emailSent(email("e1")), () -> {
+            try {
+                Journal.replay(directory, writtenBeforeChange::add);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertEquals(1, writtenBeforeChange.size());
+
+        journal.close();
+        AtomicBoolean applied = new AtomicBoolean();
+        assertThrows(JournalException.class,
+                () -> journal.append(JournalRecord.emailSent(email("e2")), () -> applied.set(true)));
+        assertFalse(applied.get(), "a change that was not journaled is not applied");
+    }
+
+    @Test
+    void rotate_WaitsForJournaledChangesToBeApplied() throws Exception {
+        try (Journal journal = new Journal(directory, false, 0, 256)) {
+            CountDownLatch applying = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Void> change = CompletableFuture.runAsync(() ->
+                    journal.append(JournalRecord.emailSent(email("e1")), () -> {
+                        applying.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }));
+            assertTrue(applying.await(5, TimeUnit.SECONDS));
+
+            CompletableFuture<Long> rotated = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return journal.rotate();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            assertThrows(TimeoutException.class, () -> rotated.get(200, TimeUnit.MILLISECONDS));
+
+            release.countDown();
+            change.get(5, TimeUnit.SECONDS);
+            assertTrue(rotated.get(5, TimeUnit.SECONDS) > 0);
+        }
+    }
+}
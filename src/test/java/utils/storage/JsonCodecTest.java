@@ -0,0 +1,89 @@
+package utils.storage;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import model.Email;
+import model.User;
+import org.junit.jupiter.api.Test;
+import utils.LocalDateTimeAdapter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JsonCodecTest {
+
+    private static Email email(String id, LocalDateTime timestamp) {
+        return Email.builder()
+                .id(id)
+                .sender("john@voidmail.com")
+                .recipient("jane@voidmail.com")
+                .subject("Subject \"" + id + "\"")
+                .content("Line one\nLine two ünïcödé")
+                .timestamp(timestamp)
+                .viewed(true)
+                .build();
+    }
+
+    @Test
+    void emails_RoundTrip() throws IOException {
+        Map<String, Email> emails = new LinkedHashMap<>();
+        emails.put("e1", email("e1", LocalDateTime.of(2025, 5, 4, 10, 30)));
+        emails.put("e2", email("e2", LocalDateTime.of(2025, 5, 4, 10, 30, 15, 123456789)));
+
+        StringWriter out = new StringWriter();
+        JsonCodec.writeEmails(emails, out);
+        Map<String, Email> read = new HashMap<>();
+        JsonCodec.readEmails(new StringReader(out.toString()), read);
+
+        assertFalse(out.toString().contains("\n  "));
+        assertEquals(emails.keySet(), read.keySet());
+        for (String id : emails.keySet()) {
+            assertEquals(emails.get(id).toString(), read.get(id).toString());
+        }
+    }
+
+    @Test
+    void users_ReadsFilesWrittenByGson() throws IOException {
+        User user = new User("John", "Doe", "john@voidmail.com", "hash", "salt");
+        user.setEmailsSent(List.of(email("e1", LocalDateTime.of(2025, 5, 4, 10, 30))));
+        Gson gson = new GsonBuilder()
+                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+                .setPrettyPrinting()
+                .create();
+        String json = gson.toJson(Map.of(user.getEmail(), user));
+
+        Map<String, User> read = new HashMap<>();
+        JsonCodec.readUsers(new StringReader(json), read);
+
+        User loaded = read.get("john@voidmail.com");
+        assertEquals(user.getId(), loaded.getId());
+        assertEquals("hash", loaded.getHashedPassword());
+        assertEquals("salt", loaded.getSalt());
+        assertEquals(user.getEmailsSent().get(0).toString(), loaded.getEmailsSent().get(0).toString());
+    }
+
+    @Test
+    void readEmails_MalformedInputIsAnIOException() {
+        String json = "{\"e1\":{\"id\":\"e1\",\"timestamp\":\"yesterday\"}}";
+        assertThrows(IOException.class, () -> JsonCodec.readEmails(new StringReader(json), new HashMap<>()));
+    }
+
+    @Test
+    void parseTimestamp_MatchesFormatter() {
+        for (String text : List.of("2025-05-04T10:30:15", "2025-05-04T10:30:15.1", "2025-05-04T10:30:15.123456789",
+                "2025-05-04T10:30", "+12025-05-04T10:30:15")) {
+            assertEquals(LocalDateTime.parse(text), JsonCodec.parseTimestamp(text), text);
+        }
+        assertThrows(DateTimeException.class, () -> JsonCodec.parseTimestamp("2025-13-04T10:30:15"));
+        assertThrows(DateTimeException.class, () -> JsonCodec.parseTimestamp("2025-05-04T10:30:1x"));
+    }
+}
@@ -0,0 +1,94 @@
+package utils.storage;
+
+import model.Email;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MailboxPagerTest {
+    private static final int USERS = 40;
+
+    @TempDir
+    Path directory;
+
+    private static Email email(int i, String sender, String recipient) {
+        return Email.builder()
+                .id("id-" + i)
+                .sender(sender)
+                .recipient(recipient)
+                .subject("Subject " + i)
+                .content("Content " + i)
+                .timestamp(LocalDateTime.of(2025, 5, 4, 10, 30).plusMinutes(i))
+                .build();
+    }
+
+    /**
+     * Every user sends one email to the next one.
+     */
+    private static Map<String, Email> emails() {
+        Map<String, Email> emails = new HashMap<>();
+        for (int i = 0; i < USERS; i++) {
+            Email email = email(i, "user" + i + "@voidmail.com", "user" + (i + 1) % USERS + "@voidmail.com");
+            emails.put(email.getId(), email);
+        }
+        return emails;
+    }
+
+    @Test
+    void load_ReadsOnlyTheSegmentsOfTheUsersMailbox() throws IOException {
+        SegmentedEmailStore store = new SegmentedEmailStore(directory, 16, StorageFormat.BINARY, 32);
+        store.save(emails());
+
+        MailboxPager pager = new MailboxPager(store);
+        Map<String, Email> loaded = new HashMap<>();
+        pager.load("user5@voidmail.com", loaded::putAll);
+
+        assertTrue(pager.isLoaded("user5@voidmail.com"));
+        assertTrue(loaded.containsKey("id-4"), "received from user4");
+        assertTrue(loaded.containsKey("id-5"), "sent to user6");
+        assertTrue(loaded.size() < USERS);
+        assertFalse(pager.isComplete());
+
+        pager.loadAll(loaded::putAll);
+        assertTrue(pager.isComplete());
+        assertEquals(USERS, loaded.size());
+    }
+
+    @Test
+    void loadDeltas_HoldsChangesSavedAfterTheSegments() throws IOException {
+        SegmentedEmailStore store = new SegmentedEmailStore(directory, 4, StorageFormat.JSON, 32);
+        Map<String, Email> emails = emails();
+        store.save(emails);
+        Email viewed = emails.get("id-7");
+        viewed.setViewed(true);
+        store.saveDelta(Map.of(viewed.getId(), viewed));
+
+        Map<String, Email> deltas = new MailboxPager(store).loadDeltas();
+
+        assertEquals(1, deltas.size());
+        assertTrue(deltas.get("id-7").isViewed());
+    }
+
+    @Test
+    void load_FollowsSegmentsReplacedByLaterSave() throws IOException {
+        SegmentedEmailStore store = new SegmentedEmailStore(directory, 8, StorageFormat.JSON, 32);
+        store.save(emails());
+        MailboxPager pager = new MailboxPager(store);
+
+        Map<String, Email> emails = emails();
+        Email added = email(USERS, "user1@voidmail.com", "user2@voidmail.com");
+        emails.put(added.getId(), added);
+        store.save(emails);
+
+        Map<String, Email> loaded = new HashMap<>();
+        pager.load("user2@voidmail.com", loaded::putAll);
+        assertTrue(loaded.containsKey(added.getId()));
+    }
+}
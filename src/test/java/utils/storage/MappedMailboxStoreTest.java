@@ -0,0 +1,194 @@
+package utils.storage;
+
+import exception.DamagedContentException;
+import model.Email;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MappedMailboxStoreTest {
+    private static final int SEGMENT_BYTES = 1 << 16;
+
+    @TempDir
+    Path directory;
+
+    private static Map<String, Email> emails(int count, String content) {
+        Map<String, Email> emails = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Email email = Email.builder()
+                    .id("id-" + i)
+                    .sender("john@voidmail.com")
+                    .recipient("user" + i + "@voidmail.com")
+                    .subject("Subject " + i)
+                    .content(content + " " + i)
+                    .timestamp(LocalDateTime.of(2025, 5, 4, 10, 30, 15, 123_000_000).plusMinutes(i))
+                    .build();
+            emails.put(email.getId(), email);
+        }
+        return emails;
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    void save_MovesContentOffHeapAndLoadReadsItLazily() throws IOException {
+        MappedMailboxStore store = new MappedMailboxStore(directory, SEGMENT_BYTES);
+        Map<String, Email> emails = emails(20, "Hello ✉");
+        assertEquals(20, store.save(emails));
+
+        Email saved = emails.get("id-3");
+        assertNotNull(saved.getContentSource());
+        assertEquals("Hello ✉ 3", saved.getContent());
+        assertEquals("Hello ✉ 3".getBytes(StandardCharsets.UTF_8).length, saved.getSize());
+        assertEquals(0, store.save(emails), "nothing changed since the last save");
+
+        Map<String, Email> loaded = new MappedMailboxStore(directory, SEGMENT_BYTES).load();
+        assertEquals(20, loaded.size());
+        Email email = loaded.get("id-3");
+        assertNotNull(email.getContentSource());
+        assertEquals(saved.getTimestamp(), email.getTimestamp());
+        assertEquals(saved.toString(), email.toString());
+        assertEquals("Hello ✉ 3", email.getContent());
+        assertSame(loaded.get("id-1").getSender(), loaded.get("id-2").getSender());
+    }
+
+    @Test
+    void save_AppendsViewedFlagsAndNewEmailsAfterLoad() throws IOException {
+        MappedMailboxStore store = new MappedMailboxStore(directory, SEGMENT_BYTES);
+        store.save(emails(5, "Content"));
+
+        Map<String, Email> emails = store.load();
+        emails.get("id-2").setViewed(true);
+        emails.put("id-5", emails(6, "Content").get("id-5"));
+        assertEquals(2, store.save(emails));
+
+        Map<String, Email> loaded = new MappedMailboxStore(directory, SEGMENT_BYTES).load();
+        assertEquals(6, loaded.size());
+        assertTrue(loaded.get("id-2").isViewed());
+        assertFalse(loaded.get("id-3").isViewed());
+        assertEquals("Content 5", loaded.get("id-5").getContent());
+    }
+
+    @Test
+    void save_StartsNewSegmentWhenRecordDoesNotFit() throws IOException {
+        MappedMailboxStore store = new MappedMailboxStore(directory, SEGMENT_BYTES);
+        String large = "x".repeat(SEGMENT_BYTES / 3);
+        store.save(emails(4, large));
+
+        assertTrue(segmentFiles() > 1);
+        Map<String, Email> loaded = new MappedMailboxStore(directory, SEGMENT_BYTES).load();
+        assertEquals(4, loaded.size());
+        assertEquals(large + " 3", loaded.get("id-3").getContent());
+    }
+
+    @Test
+    void load_IgnoresDamagedRecordAtTheEnd() throws IOException {
+        MappedMailboxStore store = new MappedMailboxStore(directory, SEGMENT_BYTES);
+        store.save(emails(1, "First"));
+        Map<String, Email> second = emails(2, "Second");
+        second.remove("id-0");
+        store.save(second);
+        store.close();
+
+        // Damages the subject of the second record, which its checksum covers
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        int at = new String(bytes, StandardCharsets.ISO_8859_1).lastIndexOf("Subject 1");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), at);
+        }
+
+        MappedMailboxStore reopened = new MappedMailboxStore(directory, SEGMENT_BYTES);
+        Map<String, Email> loaded = reopened.load();
+        assertEquals(1, loaded.size());
+        assertEquals("First 0", loaded.get("id-0").getContent());
+
+        // The damaged record is written over by the next save
+        reopened.save(emails(2, "Again"));
+        assertEquals(2, new MappedMailboxStore(directory, SEGMENT_BYTES).load().size());
+    }
+
+    @Test
+    void getContent_ThrowsWhenSavedContentIsDamaged() throws IOException {
+        MappedMailboxStore store = new MappedMailboxStore(directory, SEGMENT_BYTES);
+        store.save(emails(2, "Content"));
+        store.close();
+
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        byte[] bytes = Files.readAllBytes(segment);
+        int at = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("Content 1");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), at);
+        }
+
+        // The header is intact, so the email loads, but its content is not handed out
+        Map<String, Email> loaded = new MappedMailboxStore(directory, SEGMENT_BYTES).load();
+        assertEquals(2, loaded.size());
+        assertEquals("Content 0", loaded.get("id-0").getContent());
+        assertThrows(DamagedContentException.class, () -> loaded.get("id-1").getContent());
+    }
+
+    @Test
+    void delete_RemovesSegmentsAndNextSaveWritesEmailsAgain() throws IOException {
+        MappedMailboxStore store = new MappedMailboxStore(directory, SEGMENT_BYTES);
+        Map<String, Email> emails = emails(3, "Content");
+        store.save(emails);
+
+        store.delete();
+        assertFalse(store.exists());
+        assertEquals("Content 1", emails.get("id-1").getContent(), "still readable from the old mapping");
+
+        assertEquals(3, store.save(emails));
+        assertEquals(3, new MappedMailboxStore(directory, SEGMENT_BYTES).load().size());
+    }
+
+    @Test
+    void save_KeepsRecentContentOnHeapAndReadsOlderThroughCache() throws IOException {
+        BodyCache cache = new BodyCache(1 << 20);
+        MappedMailboxStore store = new MappedMailboxStore(directory, SEGMENT_BYTES, Duration.ofDays(1), cache);
+        Map<String, Email> emails = emails(2, "Content");
+        Email recent = emails.get("id-1");
+        recent.setTimestamp(LocalDateTime.now().minusHours(1));
+        store.save(emails);
+
+        assertNotNull(recent.getContentSource());
+        assertEquals("Content 1", recent.getContent());
+        assertEquals(0, cache.getMisses(), "recent content is still on the heap");
+
+        Email old = emails.get("id-0");
+        assertEquals("Content 0", old.getContent());
+        assertEquals("Content 0", old.getContent());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+
+        // Once it is older than the hot age, the next save moves it off the heap too
+        recent.setTimestamp(LocalDateTime.now().minusDays(2));
+        store.save(Map.of());
+        assertEquals("Content 1", recent.getContent());
+        assertEquals(2, cache.getMisses());
+    }
+}
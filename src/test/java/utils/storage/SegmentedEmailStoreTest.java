@@ -0,0 +1,116 @@
+package utils.storage;
+
+import model.Email;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentedEmailStoreTest {
+
+    @TempDir
+    Path directory;
+
+    private static Map<String, Email> emails(int count) {
+        Map<String, Email> emails = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            Email email = Email.builder()
+                    .id("id-" + i)
+                    .sender("john@voidmail.com")
+                    .recipient("user" + i + "@voidmail.com")
+                    .subject("Subject " + i)
+                    .content("Content " + i)
+                    .timestamp(LocalDateTime.of(2025, 5, 4, 10, 30).plusMinutes(i))
+                    .build();
+            emails.put(email.getId(), email);
+        }
+        return emails;
+    }
+
+    private List<String> files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).sorted().toList();
+        }
+    }
+
+    @Test
+    void saveAndLoad_AllSegmentsInBothFormats() throws IOException {
+        for (StorageFormat format : StorageFormat.values()) {
+            SegmentedEmailStore store = new SegmentedEmailStore(directory, 4, format, 32);
+            Map<String, Email> emails = emails(100);
+            store.save(emails);
+
+            Map<String, Email> loaded = store.load();
+
+            assertEquals(emails.keySet(), loaded.keySet());
+            assertEquals(emails.get("id-7").toString(), loaded.get("id-7").toString());
+            assertEquals(5, files().size(), "manifest and 4 segments of the latest save only");
+        }
+    }
+
+    @Test
+    void save_ReplacesOlderGenerationAndKeepsLoadingNewest() throws IOException {
+        SegmentedEmailStore store = new SegmentedEmailStore(directory, 2, StorageFormat.BINARY, 32);
+        store.save(emails(10));
+        store.save(emails(3));
+
+        assertEquals(3, store.load().size());
+        assertTrue(files().stream().filter(name -> name.startsWith("emails-")).allMatch(name -> name.contains("00000002")));
+
+        store.delete();
+        assertFalse(store.exists());
+        assertTrue(files().isEmpty());
+    }
+
+    @Test
+    void load_FailsWhenSegmentsDoNotMatchManifest() throws IOException {
+        SegmentedEmailStore store = new SegmentedEmailStore(directory, 1, StorageFormat.JSON, 32);
+        store.save(emails(5));
+        Path segment = directory.resolve(files().stream().filter(name -> name.startsWith("emails-")).findFirst().orElseThrow());
+        Files.writeString(segment, "{}");
+
+        assertThrows(IOException.class, store::load);
+    }
+
+    @Test
+    void saveDelta_AppliedOverSegmentsAndFoldedIntoNextSave() throws IOException {
+        SegmentedEmailStore store = new SegmentedEmailStore(directory, 2, StorageFormat.JSON, 2);
+        Map<String, Email> emails = emails(10);
+        store.save(emails);
+        assertFalse(store.shouldCompact());
+
+        Email viewed = emails.get("id-3");
+        viewed.setViewed(true);
+        store.saveDelta(Map.of(viewed.getId(), viewed));
+        Email added = emails(11).get("id-10");
+        store.saveDelta(Map.of(added.getId(), added));
+
+        Map<String, Email> loaded = store.load();
+        assertEquals(11, loaded.size());
+        assertTrue(loaded.get("id-3").isViewed());
+        assertTrue(store.shouldCompact(), "two deltas reach the limit");
+
+        loaded.put("id-10", added);
+        store.save(loaded);
+        assertFalse(store.shouldCompact());
+        assertTrue(files().stream().noneMatch(name -> name.startsWith("delta-")));
+        assertTrue(store.load().get("id-3").isViewed());
+    }
+
+    @Test
+    void saveDelta_FailsWithoutSnapshot() {
+        SegmentedEmailStore store = new SegmentedEmailStore(directory, 1, StorageFormat.BINARY, 32);
+
+        assertTrue(assertDoesNotThrow(store::shouldCompact));
+        assertThrows(IOException.class, () -> store.saveDelta(emails(1)));
+    }
+}
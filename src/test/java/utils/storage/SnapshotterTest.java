@@ -0,0 +1,78 @@
+package utils.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SnapshotterTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void isDue_OnceEnoughChangesAreJournaled() throws IOException {
+        try (Journal journal = new Journal(directory.resolve("journal"), false, 0, 256)) {
+            journal.append(JournalRecord.emailViewed("before"));
+            // Changes journaled before the snapshotter was created are not counted
+            Snapshotter snapshotter = new Snapshotter(null, null, journal, 60_000, 2);
+            assertFalse(snapshotter.isDue());
+
+            journal.append(JournalRecord.emailViewed("e1"));
+            assertFalse(snapshotter.isDue());
+
+            journal.append(JournalRecord.emailViewed("e2"));
+            assertTrue(snapshotter.isDue());
+            snapshotter.close();
+        }
+    }
+
+    @Test
+    void isDue_OnceAnyChangeIsOlderThanTheInterval() throws IOException, InterruptedException {
+        try (Journal journal = new Journal(directory.resolve("journal"), false, 0, 256)) {
+            Snapshotter snapshotter = new Snapshotter(null, null, journal, 20, 10_000);
+            Thread.sleep(40);
+            // Without changes there is nothing to save, however long it has been
+            assertFalse(snapshotter.isDue());
+
+            journal.append(JournalRecord.emailViewed("e1"));
+            assertTrue(snapshotter.isDue());
+            snapshotter.close();
+        }
+    }
+
+    @Test
+    void atomicWrite_ReplacesFileThroughTemporaryFile() throws IOException {
+        Path target = directory.resolve("users.json");
+        Files.writeString(target, "old");
+
+        AtomicFiles.write(target, AtomicFiles.text(writer -> {
+            // The content goes to the temporary file, the target is untouched until the rename
+            assertTrue(Files.exists(directory.resolve("users.json" + AtomicFiles.TEMP_SUFFIX)));
+            assertEquals("old", Files.readString(target));
+            writer.write("new");
+        }));
+
+        assertEquals("new", Files.readString(target, StandardCharsets.UTF_8));
+        assertFalse(Files.exists(directory.resolve("users.json" + AtomicFiles.TEMP_SUFFIX)));
+    }
+
+    @Test
+    void atomicWrite_KeepsOldFileWhenWriteFails() throws IOException {
+        Path target = directory.resolve("users.json");
+        Files.writeString(target, "old");
+
+        assertThrows(IOException.class, () -> AtomicFiles.write(target, out -> {
+            out.write("half".getBytes(StandardCharsets.UTF_8));
+            throw new IOException("Disk full");
+        }));
+
+        assertEquals("old", Files.readString(target));
+        assertFalse(Files.exists(directory.resolve("users.json" + AtomicFiles.TEMP_SUFFIX)));
+    }
+}